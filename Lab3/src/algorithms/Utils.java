@@ -111,6 +111,72 @@ public class Utils {
     }
     
     
+    /** Merges k arrays sorted in descending order into one in O(n*log(k))
+     * time, with a heap of the heads of the arrays. Among equal elements the
+     * ones from arrays of lower indices go first.
+     *
+     * @param runs - arrays sorted in descending order (may be empty)
+     * @return - merged array sorted in descending order
+     */
+    public static double[] kWayMergeDescending(double[][] runs){
+        int size = 0;
+        for(double[] run : runs){ size += run.length; }
+        double[] result = new double[size];
+        int[] pos = new int[runs.length];
+
+        //binary heap of the indices of non-empty runs, the biggest head on top
+        int[] heap = new int[runs.length];
+        int heapSize = 0;
+        for(int r = 0; r < runs.length; ++r){
+            if(runs[r].length > 0){
+                heap[heapSize++] = r;
+            }
+        }
+        for(int i = heapSize/2 - 1; i >= 0; --i){
+            siftDown(heap, heapSize, i, runs, pos);
+        }
+        for(int j = 0; j < size; ++j){
+            int r = heap[0];
+            result[j] = runs[r][pos[r]++];
+            if(pos[r] == runs[r].length){
+                heap[0] = heap[--heapSize];
+            }
+            siftDown(heap, heapSize, 0, runs, pos);
+        }
+        return result;
+    }
+
+
+    private static void siftDown(int[] heap, int heapSize, int i,
+            double[][] runs, int[] pos){
+        while(true){
+            int top = i;
+            int left = 2*i + 1;
+            int right = left + 1;
+            if(left < heapSize && goesBefore(heap[left], heap[top], runs, pos)){
+                top = left;
+            }
+            if(right < heapSize && goesBefore(heap[right], heap[top], runs, pos)){
+                top = right;
+            }
+            if(top == i){
+                return;
+            }
+            int tmp = heap[i];
+            heap[i] = heap[top];
+            heap[top] = tmp;
+            i = top;
+        }
+    }
+
+
+    private static boolean goesBefore(int r1, int r2, double[][] runs, int[] pos){
+        double h1 = runs[r1][pos[r1]];
+        double h2 = runs[r2][pos[r2]];
+        return h1 > h2 || (h1 == h2 && r1 < r2);
+    }
+
+
     public static boolean isSorted(double[] a) {
         for (int i = 0; i < a.length - 1; i++) { 
             if (a[i] > a[i + 1]) {
@@ -5,6 +5,7 @@
 package algorithms.distributed;
 
 import distributedmodel.Node;
+import java.util.function.IntFunction;
 
 /**
  *
@@ -74,5 +75,106 @@ public class BasicCommunication {
         }
         return result[0];
     }
+
+    
+    /** A subroutine that, if run on each of the nodes in the distributed
+     * system, broadcasts data of node rootId to all the nodes in
+     * \Theta(log(nNodes)) steps, along a binomial tree (in ranks relative to
+     * the root). Any number of nodes and any root is allowed.
+     * 
+     * @param node
+     * @param data      - data to broadcast - only meaningful for the root
+     * @param rootId
+     * @return          - broadcasted data
+     */
+    public static double[] broadcast(Node node, double[] data, int rootId)
+    {
+        return broadcast(node, data, rootId, (int srcId) -> node.receive().getData());
+    }
+    
+    
+    /** Same as broadcast(node, data, rootId), with messages received by
+     * receiveFrom(srcId).
+     */
+    static double[] broadcast(Node node, double[] data, int rootId,
+            IntFunction<double[]> receiveFrom)
+    {
+        int nNodes = node.getNumberOfAllNodes();
+        int myRank = Math.floorMod(node.getMyId() - rootId, nNodes);
+        int span = subtreeSpan(myRank, nNodes);
+        
+        double[] result = data;
+        if(myRank != 0){
+            result = receiveFrom.apply((rootId + myRank - span) % nNodes);
+        }
+        for(int mask = span >> 1; mask >= 1; mask >>= 1){
+            int child = myRank + mask;
+            if(child < nNodes){
+                node.send((rootId + child) % nNodes, result);
+            }
+        }
+        return result;
+    }
+    
+    
+    /** Personalized all-to-all exchange of parts of different sizes: node i
+     * sends parts[j] to node j and gets the parts addressed to it by all the
+     * nodes (the sizes do not have to be known in advance - they are given by
+     * the messages). The parts are sent by an auxiliary thread, one
+     * destination after another starting from the next node, while the node
+     * receives, so the synchronous channels do not deadlock. Every node sends
+     * and receives nNodes-1 messages.
+     * 
+     * @param node
+     * @param parts     - parts[j] is for node j (parts[myId] stays in place)
+     * @return          - result[i] is the part got from node i
+     */
+    public static double[][] alltoallv(Node node, double[][] parts)
+    {
+        Inbox inbox = new Inbox(node);
+        return alltoallv(node, parts, inbox::receiveFrom);
+    }
+    
+    
+    /** Same as alltoallv(node, parts), with messages received by
+     * receiveFrom(srcId).
+     */
+    static double[][] alltoallv(Node node, double[][] parts,
+            IntFunction<double[]> receiveFrom)
+    {
+        int myId = node.getMyId();
+        int nNodes = node.getNumberOfAllNodes();
+        Thread sender = new Thread(() -> {
+            for(int k = 1; k < nNodes; ++k){
+                int destId = (myId + k) % nNodes;
+                node.send(destId, parts[destId]);
+            }
+        });
+        sender.start();
+        
+        double[][] result = new double[nNodes][];
+        result[myId] = parts[myId];
+        for(int k = 1; k < nNodes; ++k){
+            int srcId = Math.floorMod(myId - k, nNodes);
+            result[srcId] = receiveFrom.apply(srcId);
+        }
+        try {
+            sender.join();
+        } catch (InterruptedException ex) {
+            throw new RuntimeException(ex);
+        }
+        return result;
+    }
+    
+    
+    /** Number of ranks in the binomial subtree of a given rank (possibly
+     * extending beyond nNodes).
+     */
+    static int subtreeSpan(int rank, int nNodes){
+        if(rank != 0){
+            return Integer.lowestOneBit(rank);
+        }
+        return (nNodes <= 1) ? 1 : Integer.highestOneBit(nNodes - 1) << 1;
+    }
     
 }
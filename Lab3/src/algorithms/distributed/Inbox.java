@@ -0,0 +1,48 @@
+/*
+ *  This code is for Parallel and Distributed Algorithms
+ *  laboratory at Gdansk University of Technology
+ */
+package algorithms.distributed;
+
+import distributedmodel.DataPacket;
+import distributedmodel.Node;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+/** Receives the messages of a node by their sources. Messages from other
+ * sources that arrive in the meantime (e.g. data of the next phase of an
+ * algorithm from a node that has already finished the current one) are kept
+ * until they are asked for; the messages from one source are taken in the
+ * order in which they were sent.
+ *      Should be used by one thread at a time, for all the receives of an
+ * algorithm.
+ *
+ * @author Karol Draszawka <kadr@eti.pg.gda.pl>
+ */
+class Inbox {
+
+    private final Node mNode;
+    private final HashMap<Integer, ArrayDeque<double[]>> mPending = new HashMap<>();
+
+
+    Inbox(Node node){
+        mNode = node;
+    }
+
+
+    double[] receiveFrom(int srcId)
+    {
+        ArrayDeque<double[]> pending = mPending.get(srcId);
+        if(pending != null && !pending.isEmpty()){
+            return pending.pollFirst();
+        }
+        while(true){
+            DataPacket dp = mNode.receive();
+            if(dp.getSourceId() == srcId){
+                return dp.getData();
+            }
+            mPending.computeIfAbsent(dp.getSourceId(),
+                    (Integer id) -> new ArrayDeque<>()).addLast(dp.getData());
+        }
+    }
+}
@@ -6,6 +6,9 @@ package algorithms.distributed;
 
 import algorithms.Utils;
 import distributedmodel.Node;
+import distributedmodel.Topology;
+import java.util.Arrays;
+import java.util.function.IntFunction;
 
 /**
  *
@@ -63,14 +66,17 @@ public class Sort {
 
         int nNodes = node.getNumberOfAllNodes();
         int d = Utils.binlog(nNodes);
+        Inbox inbox = new Inbox(node);
         for(int i = 0; i<d; ++i){
             for(int j = i; j >= 0; --j){
                 int otherId = myId^(1<<j);
                 //if in myId (i+1)-th bit is not equal to j-th bit
                 if( ((myId&(1<<(i+1))) != 0) != ((myId&(1<<j)) != 0) ){
-                    compareSplitDescending(node, otherId, Half.UPPER);
+                    compareSplitDescendingOverlap(node, otherId, Half.UPPER,
+                            inbox::receiveFrom);
                 }else{
-                    compareSplitDescending(node, otherId, Half.LOWER);
+                    compareSplitDescendingOverlap(node, otherId, Half.LOWER,
+                            inbox::receiveFrom);
                 }
             }
         }
@@ -86,10 +92,13 @@ public class Sort {
      * 
      * Example: 
      *          Before: node.myData = [10 6 4 1], otherId myData = [9 5 4 3], h = LOWER
-     *          After:  node.myData = [4 4 3 1]
+     *          After:  node.myData = [10 9 6 5]
      * 
      *          Before: node.myData = [10 6 4 1], otherId myData = [9 5 4 3], h = UPPER
-     *          After:  node.myData = [10 9 6 5]
+     *          After:  node.myData = [4 4 3 1]
+     * 
+     * (LOWER and UPPER refer to the position of the node in the descending
+     * order, so LOWER keeps the bigger elements.)
      * 
      * 
      * @param node
@@ -113,5 +122,352 @@ public class Sort {
         else
             System.arraycopy(newData, myData.length, myData, 0, myData.length);
     }
+
+
+    /** Same result as compareSplitDescending (both nodes need the same
+     * amount of data), but only the overlapping parts of the data are sent
+     * and no merged array of both datas is built:
+     * 1. the nodes exchange their boundary elements - the smallest one of the
+     *    LOWER node (which keeps the bigger elements) and the biggest one of
+     *    the UPPER node; if the first is not smaller, the data is already
+     *    split and nothing more is sent,
+     * 2. the LOWER node sends its elements smaller than the biggest one of
+     *    UPPER (only these can move),
+     * 3. the UPPER node finds how many elements m really move and sends its m
+     *    biggest ones,
+     * 4. each node merges, in place, the elements it keeps with the ones it
+     *    gets - LOWER from the back, UPPER from the front.
+     * 
+     * Example: 
+     *          Before: node.myData = [10 6 4 1], otherId myData = [9 5 4 3], h = LOWER
+     *          Sent:   LOWER -> UPPER [1], [6 4 1],  UPPER -> LOWER [9], [9 5]
+     *          After:  node.myData = [10 9 6 5], otherId myData = [4 4 3 1]
+     * 
+     * @param node
+     * @param otherId
+     * @param h
+     */
+    public static void compareSplitDescendingOverlap(Node node, int otherId,
+            Half h){
+        compareSplitDescendingOverlap(node, otherId, h,
+                (int srcId) -> node.receive().getData());
+    }
+    
+    
+    /** As above, with the messages from otherId taken by receiveFrom - needed
+     * when the other neighbours of the node may already send the messages of
+     * the next steps.
+     */
+    static void compareSplitDescendingOverlap(Node node, int otherId, Half h,
+            IntFunction<double[]> receiveFrom){
+        double[] myData = node.getMyData();
+        int n = myData.length;
+        if(n == 0){
+            return;
+        }
+        if(h == Half.LOWER) {
+            double otherMax = receiveFrom.apply(otherId)[0];
+            node.send(otherId, new double[] {myData[n-1]});
+            if(myData[n-1] >= otherMax){
+                return;
+            }
+            int from = n;
+            while(from > 0 && myData[from-1] < otherMax){
+                --from;
+            }
+            node.send(otherId, Arrays.copyOfRange(myData, from, n));
+            double[] incoming = receiveFrom.apply(otherId);
+            
+            //merge myData[0..n-m) and incoming from the back
+            int i = n - incoming.length - 1;
+            int j = incoming.length - 1;
+            for(int w = n - 1; j >= 0; --w){
+                if(i >= 0 && myData[i] < incoming[j]){
+                    myData[w] = myData[i--];
+                }else{
+                    myData[w] = incoming[j--];
+                }
+            }
+        }else {
+            node.send(otherId, new double[] {myData[0]});
+            double otherMin = receiveFrom.apply(otherId)[0];
+            if(otherMin >= myData[0]){
+                return;
+            }
+            double[] tail = receiveFrom.apply(otherId);
+            
+            //the k-th biggest of mine goes up iff it beats the k-th smallest
+            //of the other node
+            int m = 0;
+            while(m < tail.length && myData[m] > tail[tail.length - 1 - m]){
+                ++m;
+            }
+            node.send(otherId, Arrays.copyOf(myData, m));
+            
+            //merge myData[m..n) and tail[tail.length-m..] from the front
+            int i = m;
+            int j = tail.length - m;
+            for(int w = 0; j < tail.length; ++w){
+                if(i < n && myData[i] > tail[j]){
+                    myData[w] = myData[i++];
+                }else{
+                    myData[w] = tail[j++];
+                }
+            }
+        }
+    }
+    
+    
+    /** Odd-even transposition sort, when each node has n/nNodes part of the
+     * data. Any number of nodes is allowed, but each node has to have the same
+     * amount of data. Sorts in decreasing order (node 0 gets the biggest
+     * elements).
+     *      The nodes are treated as a linear array, so only nodes i and i+1
+     * communicate - it fits rings and meshes (a snake through the mesh) as
+     * well as hypercubes. In nNodes phases the even (in odd phases: the odd)
+     * nodes compare-split with their right neighbours.
+     * 
+     * @param node
+     */
+    public static void oddEvenTranspositionSortDesc(Node node){
+        int nNodes = node.getNumberOfAllNodes();
+        int[] line = new int[nNodes];
+        for(int i = 0; i < nNodes; ++i){
+            line[i] = i;
+        }
+        double[] myData = node.getMyData().clone();
+        Utils.reverseSortArray(myData);
+        
+        myData = oddEvenTranspositionDesc(node, new Inbox(node), line,
+                node.getMyId(), myData);
+        node.setMyData(myData);
+    }
+    
+    
+    /** Shear sort on a 2D mesh of nNodes/nColumns rows and nColumns columns
+     * (node ids in row-major order, see Topology), when each node has the same
+     * amount of data. Sorts in decreasing order along the snake: row 0 from
+     * left to right, row 1 from right to left, row 2 from left to right etc.
+     * (so node 0 gets the biggest elements).
+     *      ceil(log2(nRows))+1 phases of sorting the rows (in the snake
+     * directions) interleaved with ceil(log2(nRows)) phases of sorting the
+     * columns (downwards), each by odd-even transposition of the blocks - only
+     * the neighbours in the mesh communicate.
+     * 
+     * @param node
+     * @param nColumns  - width of the mesh, has to divide the number of nodes
+     */
+    public static void shearSortDesc(Node node, int nColumns){
+        int nNodes = node.getNumberOfAllNodes();
+        if(nColumns <= 0 || nNodes % nColumns != 0){
+            throw new RuntimeException(String.format(
+                    "%d nodes do not form a mesh with %d columns.%n",
+                    nNodes, nColumns));
+        }
+        int nRows = nNodes / nColumns;
+        int myRow = Topology.meshRowOfId(node.getMyId(), nColumns);
+        int myCol = Topology.meshColOfId(node.getMyId(), nColumns);
+        
+        //rows in the snake directions, columns downwards
+        int[] myRowLine = new int[nColumns];
+        for(int c = 0; c < nColumns; ++c){
+            int col = (myRow % 2 == 0) ? c : nColumns - 1 - c;
+            myRowLine[c] = Topology.meshCoordsToId(myRow, col, nColumns);
+        }
+        int myPosInRow = (myRow % 2 == 0) ? myCol : nColumns - 1 - myCol;
+        int[] myColLine = new int[nRows];
+        for(int r = 0; r < nRows; ++r){
+            myColLine[r] = Topology.meshCoordsToId(r, myCol, nColumns);
+        }
+        
+        Inbox inbox = new Inbox(node);
+        double[] myData = node.getMyData().clone();
+        Utils.reverseSortArray(myData);
+        
+        int nColumnPhases = Utils.binlog(nRows);
+        if((1 << nColumnPhases) < nRows){
+            ++nColumnPhases;
+        }
+        for(int phase = 0; phase < nColumnPhases; ++phase){
+            myData = oddEvenTranspositionDesc(node, inbox, myRowLine,
+                    myPosInRow, myData);
+            myData = oddEvenTranspositionDesc(node, inbox, myColLine, myRow,
+                    myData);
+        }
+        myData = oddEvenTranspositionDesc(node, inbox, myRowLine, myPosInRow,
+                myData);
+        node.setMyData(myData);
+    }
+    
+    
+    /** Odd-even transposition of the blocks of the nodes line[0..], the
+     * biggest elements to line[0]. Run by all the nodes of the line.
+     * 
+     * @param line      - ids of the nodes, in order
+     * @param myPos     - position of the current node in line
+     * @param myData    - sorted in decreasing order
+     * @return          - the new data of the node, sorted in decreasing order
+     */
+    private static double[] oddEvenTranspositionDesc(Node node, Inbox inbox,
+            int[] line, int myPos, double[] myData){
+        for(int phase = 0; phase < line.length; ++phase){
+            int otherPos = ((myPos + phase) % 2 == 0) ? myPos + 1 : myPos - 1;
+            if(otherPos >= 0 && otherPos < line.length){
+                myData = mergeSplitDescending(node, inbox, line[otherPos],
+                        myData, myPos < otherPos);
+            }
+        }
+        return myData;
+    }
+    
+    
+    /** Block compare-split of two nodes: they exchange their data (sorted in
+     * descending order), merge it and each keeps as many elements as it had -
+     * the biggest ones or the smallest ones. The one that keeps the biggest
+     * sends first.
+     */
+    private static double[] mergeSplitDescending(Node node, Inbox inbox,
+            int otherId, double[] myData, boolean keepBigger){
+        double[] otherData;
+        if(keepBigger){
+            node.send(otherId, myData);
+            otherData = inbox.receiveFrom(otherId);
+        }else{
+            otherData = inbox.receiveFrom(otherId);
+            node.send(otherId, myData);
+        }
+        double[] merged = Utils.mergeDescending(myData, otherData);
+        return keepBigger ? Arrays.copyOf(merged, myData.length)
+                : Arrays.copyOfRange(merged, merged.length - myData.length,
+                        merged.length);
+    }
+    
+    
+    /** Sample sort (sorting by regular sampling) of the data of all the
+     * nodes, in decreasing order. Works for any number of nodes and any (also
+     * different, also zero) sizes of the data of the nodes. At the end node 0
+     * has the biggest elements, node 1 the next ones etc. - the sizes are
+     * balanced by the sampling, but depend on the data.
+     *      Steps:
+     * 1. each node sorts its data and takes nNodes regularly spaced samples,
+     *    each weighted by (size of its data)/nNodes, so that the nodes with
+     *    more data count more,
+     * 2. the samples are gathered in node 0, which takes nNodes-1 splitters
+     *    at the weighted quantiles and broadcasts them,
+     * 3. each node cuts its data into nNodes buckets by the splitters and
+     *    sends bucket j to node j (alltoallv) - the only exchange of the
+     *    data,
+     * 4. each node merges the nNodes sorted buckets it got.
+     * 
+     * @param node 
+     */
+    public static void sampleSortDesc(Node node){
+        int nNodes = node.getNumberOfAllNodes();
+        Inbox inbox = new Inbox(node);
+        
+        double[] myData = node.getMyData().clone();
+        Utils.reverseSortArray(myData);
+        
+        double[] samples = new double[(myData.length > 0) ? 2*nNodes : 0];
+        for(int j = 0; j < samples.length/2; ++j){
+            int pos = (int) (((2L*j + 1) * myData.length) / (2L*nNodes));
+            samples[2*j] = myData[pos];
+            samples[2*j + 1] = (double) myData.length / nNodes;
+        }
+        double[] allSamples = gatherSamples(node, samples, inbox);
+        double[] splitters = (node.getMyId() == 0) ?
+                chooseSplitters(allSamples, nNodes) : null;
+        splitters = BasicCommunication.broadcast(node, splitters, 0,
+                inbox::receiveFrom);
+        
+        //bucket j gets the elements x with splitters[j-1] > x >= splitters[j]
+        double[][] buckets = new double[nNodes][];
+        int from = 0;
+        for(int j = 0; j < nNodes; ++j){
+            int to = (j < nNodes - 1) ?
+                    countNotLess(myData, from, splitters[j]) : myData.length;
+            buckets[j] = Arrays.copyOfRange(myData, from, to);
+            from = to;
+        }
+        double[][] received = BasicCommunication.alltoallv(node, buckets,
+                inbox::receiveFrom);
+        
+        node.setMyData(Utils.kWayMergeDescending(received));
+    }
+    
+    
+    /** Gathers the samples (value, weight pairs) of all the nodes in node 0,
+     * along a binomial tree.
+     * 
+     * @return - all the samples in node 0, null in the other nodes
+     */
+    private static double[] gatherSamples(Node node, double[] samples,
+            Inbox inbox){
+        int myId = node.getMyId();
+        int nNodes = node.getNumberOfAllNodes();
+        int span = BasicCommunication.subtreeSpan(myId, nNodes);
+        
+        double[] subtreeSamples = samples;
+        for(int mask = 1; mask < span; mask <<= 1){
+            int child = myId + mask;
+            if(child < nNodes){
+                double[] childSamples = inbox.receiveFrom(child);
+                double[] tmp = Arrays.copyOf(subtreeSamples,
+                        subtreeSamples.length + childSamples.length);
+                System.arraycopy(childSamples, 0, tmp, subtreeSamples.length,
+                        childSamples.length);
+                subtreeSamples = tmp;
+            }
+        }
+        if(myId != 0){
+            node.send(myId - span, subtreeSamples);
+            return null;
+        }
+        return subtreeSamples;
+    }
+    
+    
+    /** nNodes-1 splitters (in decreasing order) at the weighted quantiles
+     * k/nNodes of the samples.
+     */
+    private static double[] chooseSplitters(double[] samples, int nNodes){
+        double[][] pairs = new double[samples.length/2][];
+        double totalWeight = 0;
+        for(int i = 0; i < pairs.length; ++i){
+            pairs[i] = new double[] {samples[2*i], samples[2*i + 1]};
+            totalWeight += samples[2*i + 1];
+        }
+        Arrays.sort(pairs, (double[] p1, double[] p2) -> Double.compare(p2[0], p1[0]));
+        
+        double[] splitters = new double[nNodes - 1];
+        double cumulativeWeight = 0;
+        int i = 0;
+        for(int k = 0; k < nNodes - 1; ++k){
+            double target = (k + 1) * totalWeight / nNodes;
+            while(i < pairs.length - 1 && cumulativeWeight + pairs[i][1] < target){
+                cumulativeWeight += pairs[i][1];
+                ++i;
+            }
+            splitters[k] = (pairs.length > 0) ? pairs[i][0] : 0;
+        }
+        return splitters;
+    }
+    
+    
+    /** Index of the first element smaller than value in data[from..] (sorted
+     * in decreasing order), i.e. from + number of elements >= value there.
+     */
+    private static int countNotLess(double[] data, int from, double value){
+        int lo = from, hi = data.length;
+        while(lo < hi){
+            int mid = (lo + hi) >>> 1;
+            if(data[mid] >= value){
+                lo = mid + 1;
+            }else{
+                hi = mid;
+            }
+        }
+        return lo;
+    }
     
 }
@@ -0,0 +1,391 @@
+/*
+ *  This code is for Parallel and Distributed Algorithms
+ *  laboratory at Gdansk University of Technology
+ */
+package algorithms.shared;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/** External merge sort of binary files of doubles that do not fit in the
+ * memory. The files are raw sequences of doubles in FILE_BYTE_ORDER (no
+ * header).
+ *      Steps:
+ * 1. run formation - the input is cut into chunks of runLength values; up to
+ *    nParallelRuns chunks at a time are memory-mapped, copied to the heap,
+ *    sorted with SortSM.radixSortParallel(Descending) and written (mapped)
+ *    to temporary run files,
+ * 2. merging - at most MAX_FAN_IN runs at a time are merged into one with a
+ *    loser tree (log2(k) comparisons per value), reading and writing through
+ *    buffers of BUFFER_BYTES; with more runs there are several passes.
+ * The order is the one of Arrays.sort (-0.0 before 0.0, NaNs at the end),
+ * or the reverse.
+ *
+ * @author Karol Draszawka <kadr@eti.pg.gda.pl>
+ */
+public final class ExternalSortSM {
+
+    public static final ByteOrder FILE_BYTE_ORDER = ByteOrder.LITTLE_ENDIAN;
+
+    static final int MAX_FAN_IN = 64;
+    static final int BUFFER_BYTES = 1 << 20;
+    private static final int MAX_RUN_LENGTH = Integer.MAX_VALUE / Double.BYTES;
+    private static final int MIN_RUN_LENGTH = 1 << 16;
+    private static final int DEFAULT_PARALLEL_RUNS = 2;
+    /** heap bytes per value of a run being sorted: the values and the two
+     * arrays of keys of the radix sort
+     */
+    private static final int BYTES_PER_SORTED_VALUE = 3 * Long.BYTES;
+
+
+    private ExternalSortSM(){
+    }
+
+
+    /** Sorts the input file into the output file, with runs as long as half
+     * of the maximal heap allows and the temporary files in the directory of
+     * the output.
+     *
+     * @param inputFileName
+     * @param outputFileName
+     * @param descending
+     * @throws IOException
+     */
+    public static void sort(String inputFileName, String outputFileName,
+            boolean descending) throws IOException
+    {
+        long budget = Runtime.getRuntime().maxMemory() / 2;
+        long runLength = budget / ((long) BYTES_PER_SORTED_VALUE * DEFAULT_PARALLEL_RUNS);
+        runLength = Math.max(MIN_RUN_LENGTH, Math.min(MAX_RUN_LENGTH, runLength));
+        File tmpDir = new File(outputFileName).getAbsoluteFile().getParentFile();
+        sort(inputFileName, outputFileName, descending, (int) runLength,
+                DEFAULT_PARALLEL_RUNS, tmpDir);
+    }
+
+
+    /** Sorts the input file into the output file.
+     *
+     * @param inputFileName
+     * @param outputFileName
+     * @param descending
+     * @param runLength     - number of values sorted in memory at a time
+     * @param nParallelRuns - number of runs formed at the same time (so the
+     *                        heap has to hold nParallelRuns*runLength values
+     *                        with the radix sort buffers)
+     * @param tmpDir        - directory for the run files
+     * @throws IOException
+     */
+    public static void sort(String inputFileName, String outputFileName,
+            boolean descending, int runLength, int nParallelRuns, File tmpDir)
+            throws IOException
+    {
+        if(runLength <= 0 || runLength > MAX_RUN_LENGTH || nParallelRuns <= 0){
+            throw new IllegalArgumentException(String.format(
+                    "Bad run length %d or number of parallel runs %d.",
+                    runLength, nParallelRuns));
+        }
+        ArrayList<File> runs = formRuns(inputFileName, descending, runLength,
+                nParallelRuns, tmpDir);
+        try{
+            while(runs.size() > MAX_FAN_IN){
+                ArrayList<File> merged = new ArrayList<>();
+                try{
+                    for(int from = 0; from < runs.size(); from += MAX_FAN_IN){
+                        File run = File.createTempFile("run", ".bin", tmpDir);
+                        merged.add(run);
+                        mergeRuns(runs.subList(from, Math.min(from + MAX_FAN_IN, runs.size())),
+                                run, descending);
+                    }
+                }catch(IOException ex){
+                    deleteAll(merged);
+                    throw ex;
+                }
+                deleteAll(runs);
+                runs = merged;
+            }
+            if(runs.size() == 1){
+                Files.move(runs.get(0).toPath(), new File(outputFileName).toPath(),
+                        StandardCopyOption.REPLACE_EXISTING);
+                runs.clear();
+            }else{
+                mergeRuns(runs, new File(outputFileName), descending);
+            }
+        }finally{
+            deleteAll(runs);
+        }
+    }
+
+
+    /** Sorts the chunks of the input into run files, nParallelRuns at a time.
+     */
+    private static ArrayList<File> formRuns(String inputFileName,
+            boolean descending, int runLength, int nParallelRuns, File tmpDir)
+            throws IOException
+    {
+        long nValues;
+        try (RandomAccessFile file = new RandomAccessFile(inputFileName, "r")){
+            if(file.length() % Double.BYTES != 0){
+                throw new IOException("Not a file of doubles: " + inputFileName);
+            }
+            nValues = file.length() / Double.BYTES;
+        }
+        int nRuns = (int) Math.max(1, (nValues + runLength - 1) / runLength);
+
+        ExecutorService es = Executors.newFixedThreadPool(nParallelRuns);
+        ArrayList<Future<File>> futures = new ArrayList<>();
+        for(int r = 0; r < nRuns; ++r){
+            long first = (long) r * runLength;
+            int length = (int) Math.min(runLength, nValues - first);
+            futures.add(es.submit(() -> formRun(inputFileName, first, length,
+                    descending, tmpDir)));
+        }
+        es.shutdown();
+
+        ArrayList<File> runs = new ArrayList<>();
+        try{
+            for(Future<File> f : futures){
+                runs.add(f.get());
+            }
+        }catch(InterruptedException | ExecutionException ex){
+            //stop the other runs and delete the files of the finished ones
+            es.shutdownNow();
+            try{
+                es.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+            }catch(InterruptedException ie){
+                Thread.currentThread().interrupt();
+            }
+            runs.clear();
+            for(Future<File> f : futures){
+                if(f.isDone() && !f.isCancelled()){
+                    try{
+                        runs.add(f.get());
+                    }catch(InterruptedException | ExecutionException ignored){
+                        //failed, no file left
+                    }
+                }
+            }
+            deleteAll(runs);
+            if(ex instanceof ExecutionException && ex.getCause() instanceof IOException){
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException("Forming of the runs failed.", ex);
+        }
+        return runs;
+    }
+
+
+    private static File formRun(String inputFileName, long first, int length,
+            boolean descending, File tmpDir) throws IOException
+    {
+        double[] values = new double[length];
+        try (RandomAccessFile file = new RandomAccessFile(inputFileName, "r");
+                FileChannel channel = file.getChannel()){
+            MappedByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY,
+                    first * Double.BYTES, (long) length * Double.BYTES);
+            chunk.order(FILE_BYTE_ORDER).asDoubleBuffer().get(values);
+        }
+        if(descending){
+            SortSM.radixSortParallelDescending(values);
+        }else{
+            SortSM.radixSortParallel(values);
+        }
+
+        File run = File.createTempFile("run", ".bin", tmpDir);
+        try (RandomAccessFile file = new RandomAccessFile(run, "rw");
+                FileChannel channel = file.getChannel()){
+            MappedByteBuffer out = channel.map(FileChannel.MapMode.READ_WRITE,
+                    0, (long) length * Double.BYTES);
+            out.order(FILE_BYTE_ORDER).asDoubleBuffer().put(values);
+        }catch(IOException | RuntimeException ex){
+            run.delete();
+            throw ex;
+        }
+        return run;
+    }
+
+
+    /** k-way merge of the runs into the output with a loser tree: tree[0]
+     * is the run with the next value, tree[1..k-1] are the runs that lost
+     * at the inner nodes (the node t has children 2t and 2t+1, the run r is
+     * the leaf k+r). After taking a value from the winner, only its path to
+     * the root is replayed.
+     */
+    private static void mergeRuns(List<File> runs, File output,
+            boolean descending) throws IOException
+    {
+        int k = runs.size();
+        RunReader[] readers = new RunReader[k];
+        try (RunWriter writer = new RunWriter(output)){
+            for(int r = 0; r < k; ++r){
+                readers[r] = new RunReader(runs.get(r));
+            }
+
+            int[] tree = new int[k];
+            int[] winners = new int[2*k];
+            for(int r = 0; r < k; ++r){
+                winners[k + r] = r;
+            }
+            for(int t = k - 1; t > 0; --t){
+                int a = winners[2*t];
+                int b = winners[2*t + 1];
+                boolean aWins = goesBefore(readers, a, b, descending);
+                winners[t] = aWins ? a : b;
+                tree[t] = aWins ? b : a;
+            }
+            tree[0] = (k > 1) ? winners[1] : 0;
+
+            while(readers[tree[0]].hasNext()){
+                int w = tree[0];
+                writer.write(readers[w].next());
+                for(int t = (w + k) / 2; t > 0; t /= 2){
+                    if(goesBefore(readers, tree[t], w, descending)){
+                        int tmp = tree[t];
+                        tree[t] = w;
+                        w = tmp;
+                    }
+                }
+                tree[0] = w;
+            }
+        }finally{
+            for(RunReader reader : readers){
+                if(reader != null){
+                    reader.close();
+                }
+            }
+        }
+    }
+
+
+    /** Whether the head of run a goes before the head of run b; exhausted
+     * runs go last, ties go to the lower run (so the merge is stable).
+     */
+    private static boolean goesBefore(RunReader[] readers, int a, int b,
+            boolean descending)
+    {
+        if(!readers[b].hasNext()){
+            return readers[a].hasNext();
+        }
+        if(!readers[a].hasNext()){
+            return false;
+        }
+        int c = Double.compare(readers[a].peek(), readers[b].peek());
+        if(descending){
+            c = -c;
+        }
+        return c < 0 || (c == 0 && a < b);
+    }
+
+
+    private static void deleteAll(ArrayList<File> files){
+        for(File f : files){
+            f.delete();
+        }
+    }
+
+
+    /** Sequential reading of a run file through a buffer.
+     */
+    private static final class RunReader implements AutoCloseable {
+        private final RandomAccessFile mFile;
+        private final FileChannel mChannel;
+        private final ByteBuffer mBuffer;
+        private boolean mHasNext;
+        private double mNext;
+
+        RunReader(File run) throws IOException {
+            mFile = new RandomAccessFile(run, "r");
+            mChannel = mFile.getChannel();
+            mBuffer = ByteBuffer.allocateDirect(BUFFER_BYTES).order(FILE_BYTE_ORDER);
+            mBuffer.limit(0);
+            advance();
+        }
+
+        boolean hasNext(){
+            return mHasNext;
+        }
+
+        double peek(){
+            return mNext;
+        }
+
+        double next() throws IOException {
+            double value = mNext;
+            advance();
+            return value;
+        }
+
+        private void advance() throws IOException {
+            if(mBuffer.remaining() < Double.BYTES){
+                mBuffer.compact();
+                while(mBuffer.position() < Double.BYTES
+                        && mChannel.read(mBuffer) >= 0){
+                    //until a whole value is there or the end of the file
+                }
+                mBuffer.flip();
+            }
+            mHasNext = mBuffer.remaining() >= Double.BYTES;
+            if(mHasNext){
+                mNext = mBuffer.getDouble();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            mFile.close();
+        }
+    }
+
+
+    /** Sequential writing of a file through a buffer.
+     */
+    private static final class RunWriter implements AutoCloseable {
+        private final RandomAccessFile mFile;
+        private final FileChannel mChannel;
+        private final ByteBuffer mBuffer;
+
+        RunWriter(File file) throws IOException {
+            mFile = new RandomAccessFile(file, "rw");
+            mFile.setLength(0);
+            mChannel = mFile.getChannel();
+            mBuffer = ByteBuffer.allocateDirect(BUFFER_BYTES).order(FILE_BYTE_ORDER);
+        }
+
+        void write(double value) throws IOException {
+            if(!mBuffer.hasRemaining()){
+                flush();
+            }
+            mBuffer.putDouble(value);
+        }
+
+        private void flush() throws IOException {
+            mBuffer.flip();
+            while(mBuffer.hasRemaining()){
+                mChannel.write(mBuffer);
+            }
+            mBuffer.clear();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try{
+                flush();
+            }finally{
+                mFile.close();
+            }
+        }
+    }
+}
@@ -5,8 +5,10 @@
 package algorithms.shared;
 
 import java.sql.Time;
+import java.util.Arrays;
 import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.RecursiveAction;
+import java.util.stream.IntStream;
 
 /**
  *
@@ -14,6 +16,12 @@ import java.util.concurrent.RecursiveAction;
  */
 public class SortSM {
     public static final long TIME_SLEEP = 5;
+    private static final int INSERTION_THRESHOLD = 24;
+    private static final int NINTHER_THRESHOLD = 128;
+    private static final int PARTITION_BLOCK_SIZE = 1 << 14;
+    private static final int RADIX_BITS = 8;
+    private static final int RADIX_PARALLEL_THRESHOLD = 1 << 16;
+    
     public static void serialQuicksort(double[] array){
         serialQuicksort(array, 0, array.length-1);
     }
@@ -49,40 +57,358 @@ public class SortSM {
     }
     
     
+    /** Parallel introsort in the common ForkJoin pool:
+     * - the pivot is the median of 3 elements (of 3 medians of 3 - the ninther
+     *   - for ranges longer than NINTHER_THRESHOLD),
+     * - the elements equal to the pivot are gathered in the middle (3-way
+     *   partition) and not sorted any more, so many duplicates do no harm,
+     * - ranges longer than PARALLEL_PARTITION_THRESHOLD (the top levels) are
+     *   partitioned in parallel by blocks, with a buffer of the array size
+     *   (unless there is only one worker),
+     * - ranges shorter than FORK_THRESHOLD are sorted serially by the same
+     *   algorithm, ranges shorter than INSERTION_THRESHOLD by insertion,
+     * - below recursion depth 2*log2(n) the range is heapsorted, so the
+     *   worst case is O(n*log(n)) whatever the data.
+     */
     private static class QuickSortAction extends RecursiveAction{
-        static final int THRESHOLD = 10;
+        static final int FORK_THRESHOLD = 1 << 13;
+        static final int PARALLEL_PARTITION_THRESHOLD = 1 << 17;
         final double[] array;
+        final double[] buffer;
         final int sPos, ePos;
+        final int depthLimit;
+        
         private QuickSortAction(double[] array) {
-            this.array = array;
-            sPos = 0;
-            ePos = array.length-1;
+            this(array, (array.length > PARALLEL_PARTITION_THRESHOLD
+                    && ForkJoinPool.getCommonPoolParallelism() > 1) ?
+                    new double[array.length] : null,
+                    0, array.length-1, 2*(31 - Integer.numberOfLeadingZeros(
+                            Math.max(array.length, 1))));
         }
 
-        private QuickSortAction(double[] array, int sPos, int ePos) {
+        private QuickSortAction(double[] array, double[] buffer, int sPos,
+                int ePos, int depthLimit) {
             this.array = array;
+            this.buffer = buffer;
             this.sPos = sPos;
             this.ePos = ePos;
+            this.depthLimit = depthLimit;
         }
 
         @Override
         protected void compute() {
-            if (ePos - sPos < THRESHOLD)
-                serialQuicksort(array, sPos, ePos);
+            if (ePos - sPos < FORK_THRESHOLD)
+                introsort(array, sPos, ePos, depthLimit);
+            else if (depthLimit == 0)
+                heapsort(array, sPos, ePos);
             else {
-                int partitionPoint = partitionPhase(array, sPos, ePos);
+                double pivot = choosePivot(array, sPos, ePos);
+                int[] equalRange = (buffer != null
+                        && ePos - sPos >= PARALLEL_PARTITION_THRESHOLD) ?
+                        parallelPartition(array, buffer, sPos, ePos, pivot) :
+                        partition3Way(array, sPos, ePos, pivot);
 
                 //Recurential calls
-                invokeAll(new QuickSortAction(array, sPos, partitionPoint-1),
-                        new QuickSortAction(array, partitionPoint+1, ePos));
+                invokeAll(new QuickSortAction(array, buffer, sPos,
+                                equalRange[0]-1, depthLimit-1),
+                        new QuickSortAction(array, buffer, equalRange[1]+1,
+                                ePos, depthLimit-1));
             }
         }
 
     }
     
     public static void QuicksortDescendingForkJoin(double[] array){
-        ForkJoinPool pool = new ForkJoinPool();
-        pool.invoke(new QuickSortAction(array));
+        ForkJoinPool.commonPool().invoke(new QuickSortAction(array));
+    }
+    
+    
+    /** Serial introsort (descending) of array[sPos..ePos]: recursion on the
+     * shorter part, loop on the longer one.
+     */
+    private static void introsort(double[] array, int sPos, int ePos,
+            int depthLimit){
+        while(ePos - sPos >= INSERTION_THRESHOLD){
+            if(depthLimit == 0){
+                heapsort(array, sPos, ePos);
+                return;
+            }
+            --depthLimit;
+            int[] equalRange = partition3Way(array, sPos, ePos,
+                    choosePivot(array, sPos, ePos));
+            if(equalRange[0] - sPos < ePos - equalRange[1]){
+                introsort(array, sPos, equalRange[0]-1, depthLimit);
+                sPos = equalRange[1]+1;
+            }else{
+                introsort(array, equalRange[1]+1, ePos, depthLimit);
+                ePos = equalRange[0]-1;
+            }
+        }
+        insertionSort(array, sPos, ePos);
+    }
+    
+    
+    private static void insertionSort(double[] array, int sPos, int ePos){
+        for(int i = sPos+1; i <= ePos; ++i){
+            double x = array[i];
+            int j = i-1;
+            while(j >= sPos && array[j] < x){
+                array[j+1] = array[j];
+                --j;
+            }
+            array[j+1] = x;
+        }
+    }
+    
+    
+    /** Heapsort (descending) of array[sPos..ePos], with a min-heap - the
+     * smallest elements go to the end.
+     */
+    private static void heapsort(double[] array, int sPos, int ePos){
+        int n = ePos - sPos + 1;
+        for(int i = n/2 - 1; i >= 0; --i){
+            siftDown(array, sPos, i, n);
+        }
+        for(int last = n-1; last > 0; --last){
+            double tmp = array[sPos];
+            array[sPos] = array[sPos+last];
+            array[sPos+last] = tmp;
+            siftDown(array, sPos, 0, last);
+        }
+    }
+    
+    
+    private static void siftDown(double[] array, int offset, int i, int n){
+        double x = array[offset+i];
+        while(2*i + 1 < n){
+            int child = 2*i + 1;
+            if(child + 1 < n && array[offset+child+1] < array[offset+child]){
+                ++child;
+            }
+            if(array[offset+child] >= x){
+                break;
+            }
+            array[offset+i] = array[offset+child];
+            i = child;
+        }
+        array[offset+i] = x;
+    }
+    
+    
+    private static double choosePivot(double[] array, int sPos, int ePos){
+        int n = ePos - sPos + 1;
+        int mid = sPos + n/2;
+        if(n < NINTHER_THRESHOLD){
+            return medianOf3(array[sPos], array[mid], array[ePos]);
+        }
+        int step = n/8;
+        return medianOf3(
+                medianOf3(array[sPos], array[sPos+step], array[sPos+2*step]),
+                medianOf3(array[mid-step], array[mid], array[mid+step]),
+                medianOf3(array[ePos-2*step], array[ePos-step], array[ePos]));
+    }
+    
+    
+    private static double medianOf3(double a, double b, double c){
+        if(a < b){
+            return (b < c) ? b : Math.max(a, c);
+        }
+        return (a < c) ? a : Math.max(b, c);
+    }
+    
+    
+    /** 3-way partition of array[sPos..ePos] around pivot, in place: the
+     * elements greater than pivot go first, then the equal ones, then the
+     * smaller ones.
+     * 
+     * @return - the first and the last position of the elements equal to pivot
+     */
+    private static int[] partition3Way(double[] array, int sPos, int ePos,
+            double pivot){
+        int gt = sPos;      //array[sPos..gt-1] > pivot
+        int lt = ePos;      //array[lt+1..ePos] < pivot
+        int i = sPos;
+        while(i <= lt){
+            double x = array[i];
+            if(x > pivot){
+                array[i++] = array[gt];
+                array[gt++] = x;
+            }else if(x < pivot){
+                array[i] = array[lt];
+                array[lt--] = x;
+            }else{
+                ++i;
+            }
+        }
+        return new int[] {gt, lt};
+    }
+    
+    
+    /** Same result as partition3Way (but stable), done by blocks in parallel:
+     * the blocks count their greater, equal and smaller elements, the counts
+     * give each block its places in the buffer, the blocks copy their
+     * elements there, and the buffer is copied back.
+     */
+    private static int[] parallelPartition(double[] array, double[] buffer,
+            int sPos, int ePos, double pivot){
+        int n = ePos - sPos + 1;
+        int nBlocks = (n + PARTITION_BLOCK_SIZE - 1) / PARTITION_BLOCK_SIZE;
+        int[][] counts = new int[nBlocks][3];
+        
+        IntStream.range(0, nBlocks).parallel().forEach((int b) -> {
+            int[] c = counts[b];
+            for(int i = blockStart(sPos, n, b, nBlocks);
+                    i < blockStart(sPos, n, b+1, nBlocks); ++i){
+                ++c[(array[i] > pivot) ? 0 : (array[i] == pivot) ? 1 : 2];
+            }
+        });
+        
+        //counts[b] become the starting positions of the block in the buffer
+        int[] total = new int[3];
+        for(int[] c : counts){
+            for(int k = 0; k < 3; ++k){
+                total[k] += c[k];
+            }
+        }
+        int[] next = {sPos, sPos + total[0], sPos + total[0] + total[1]};
+        for(int[] c : counts){
+            for(int k = 0; k < 3; ++k){
+                int count = c[k];
+                c[k] = next[k];
+                next[k] += count;
+            }
+        }
+        
+        IntStream.range(0, nBlocks).parallel().forEach((int b) -> {
+            int[] pos = counts[b];
+            for(int i = blockStart(sPos, n, b, nBlocks);
+                    i < blockStart(sPos, n, b+1, nBlocks); ++i){
+                double x = array[i];
+                buffer[pos[(x > pivot) ? 0 : (x == pivot) ? 1 : 2]++] = x;
+            }
+        });
+        IntStream.range(0, nBlocks).parallel().forEach((int b) -> {
+            int from = blockStart(sPos, n, b, nBlocks);
+            System.arraycopy(buffer, from, array, from,
+                    blockStart(sPos, n, b+1, nBlocks) - from);
+        });
+        return new int[] {sPos + total[0], sPos + total[0] + total[1] - 1};
+    }
+    
+    
+    private static int blockStart(int sPos, int n, int b, int nBlocks){
+        return sPos + (int) ((long) n * b / nBlocks);
+    }
+    
+    
+    
+    
+    
+    /** Parallel LSD radix sort in ascending order (in the order of
+     * Arrays.sort: -0.0 before 0.0, NaNs at the end).
+     * 
+     * @param array 
+     */
+    public static void radixSortParallel(double[] array){
+        radixSortParallel(array, false);
+    }
+    
+    
+    /** Parallel LSD radix sort in descending order.
+     * 
+     * @param array 
+     */
+    public static void radixSortParallelDescending(double[] array){
+        radixSortParallel(array, true);
+    }
+    
+    
+    /** Each double is mapped to a long whose unsigned order is the order of
+     * the doubles (the sign bit is flipped for non-negative numbers, all the
+     * bits for negative ones; all the bits once more for descending order).
+     * doubleToLongBits turns every NaN - also one with the sign bit set -
+     * into the canonical positive NaN, so all the NaNs go to the end, as in
+     * Arrays.sort and Double.compare (the merge of ExternalSortSM relies on
+     * that), and come back as canonical NaNs. Then the longs are sorted by
+     * RADIX_BITS-bit digits, from the least significant one. In each pass
+     * the array is cut into one block per worker of the common pool: the
+     * blocks count their digits in parallel, the prefix sums of the counts
+     * (digit by digit, block by block) give each block its own places for
+     * each digit, and the blocks scatter their keys there in parallel - so
+     * the passes are stable. A pass is skipped when all the keys have the
+     * same digit (e.g. the top digits of numbers of similar magnitudes).
+     */
+    private static void radixSortParallel(double[] array, boolean descending){
+        int n = array.length;
+        int nBlocks = (n < RADIX_PARALLEL_THRESHOLD) ? 1 :
+                Math.min(ForkJoinPool.getCommonPoolParallelism(),
+                        n / RADIX_PARALLEL_THRESHOLD + 1);
+        long flip = descending ? -1L : 0L;
+        final long[] mapped = new long[n];
+        
+        IntStream.range(0, nBlocks).parallel().forEach((int b) -> {
+            for(int i = blockStart(0, n, b, nBlocks);
+                    i < blockStart(0, n, b+1, nBlocks); ++i){
+                long bits = Double.doubleToLongBits(array[i]);
+                mapped[i] = (bits ^ ((bits >> 63) | Long.MIN_VALUE)) ^ flip;
+            }
+        });
+        
+        long[] keys = mapped;
+        long[] other = new long[n];
+        int nDigits = 1 << RADIX_BITS;
+        int[][] offsets = new int[nBlocks][nDigits];
+        for(int shift = 0; shift < 64; shift += RADIX_BITS){
+            final long[] src = keys;
+            final long[] dst = other;
+            final int sh = shift;
+            
+            IntStream.range(0, nBlocks).parallel().forEach((int b) -> {
+                int[] count = offsets[b];
+                Arrays.fill(count, 0);
+                for(int i = blockStart(0, n, b, nBlocks);
+                        i < blockStart(0, n, b+1, nBlocks); ++i){
+                    ++count[(int) (src[i] >>> sh) & (nDigits - 1)];
+                }
+            });
+            
+            int pos = 0;
+            boolean oneDigit = false;
+            for(int d = 0; d < nDigits; ++d){
+                int digitCount = 0;
+                for(int b = 0; b < nBlocks; ++b){
+                    int count = offsets[b][d];
+                    offsets[b][d] = pos;
+                    pos += count;
+                    digitCount += count;
+                }
+                oneDigit |= (digitCount == n);
+            }
+            if(oneDigit){
+                continue;
+            }
+            
+            IntStream.range(0, nBlocks).parallel().forEach((int b) -> {
+                int[] next = offsets[b];
+                for(int i = blockStart(0, n, b, nBlocks);
+                        i < blockStart(0, n, b+1, nBlocks); ++i){
+                    long key = src[i];
+                    dst[next[(int) (key >>> sh) & (nDigits - 1)]++] = key;
+                }
+            });
+            keys = dst;
+            other = src;
+        }
+        
+        final long[] sorted = keys;
+        IntStream.range(0, nBlocks).parallel().forEach((int b) -> {
+            for(int i = blockStart(0, n, b, nBlocks);
+                    i < blockStart(0, n, b+1, nBlocks); ++i){
+                long key = sorted[i] ^ flip;
+                long bits = (key < 0) ? (key ^ Long.MIN_VALUE) : ~key;
+                array[i] = Double.longBitsToDouble(bits);
+            }
+        });
     }
     
     
@@ -132,8 +458,7 @@ public class SortSM {
     
     
     public static void MaxToHeadForkJoin(double[] array){
-        ForkJoinPool pool = new ForkJoinPool();
-        pool.invoke(new MaxToHead(array));
+        ForkJoinPool.commonPool().invoke(new MaxToHead(array));
     }
     
     
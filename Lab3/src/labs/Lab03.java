@@ -4,14 +4,23 @@
  */
 package labs;
 
+import algorithms.shared.ExternalSortSM;
 import algorithms.shared.SortSM;
 import algorithms.distributed.Sort;
 import distributedmodel.DSConfig;
 import distributedmodel.DistributedSystem;
 import distributedmodel.Node;
+import distributedmodel.Topology;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import org.jfree.chart.JFreeChart;
 import org.jfree.data.xy.XYSeries;
@@ -43,6 +52,42 @@ public class Lab03 extends BaseLabMixed {
                 },
                 validateResults, printProcessingTime, printStatusBeforeAndAfter);
 
+        singleTestRun(new DSConfig(5, DELAY_CONNECT_MILLIS, DELAY_TRANSMIT_MILLIS),
+                (Node node) -> {
+                    node.setLogCommunication(verboseCommunication);
+                    Sort.sampleSortDesc(node);
+                },
+                (DistributedSystem ds) -> initNodesWithDataOfRandomLengths(ds, 40),
+                (DistributedSystem ds) -> { if (printStatusBeforeAndAfter) { printDSStateBefore(ds); }},
+                (DistributedSystem ds) -> { if (printStatusBeforeAndAfter) { printDSStateAfter(ds); }},
+                (DistributedSystem ds) -> { if (validateResults) { validateDSStateConcatenated(ds); }},
+                printProcessingTime);
+
+        singleTestRun(new DSConfig(6, DELAY_CONNECT_MILLIS, DELAY_TRANSMIT_MILLIS),
+                (Node node) -> {
+                    node.setLogCommunication(verboseCommunication);
+                    Sort.oddEvenTranspositionSortDesc(node);
+                },
+                (DistributedSystem ds) -> {
+                    arrayLengthPerNode = 4;
+                    initNodesWithData(ds);
+                },
+                validateResults, printProcessingTime, printStatusBeforeAndAfter);
+
+        singleTestRun(new DSConfig(12, DELAY_CONNECT_MILLIS, DELAY_TRANSMIT_MILLIS),
+                (Node node) -> {
+                    node.setLogCommunication(verboseCommunication);
+                    Sort.shearSortDesc(node, 4);
+                },
+                (DistributedSystem ds) -> {
+                    arrayLengthPerNode = 4;
+                    initNodesWithData(ds);
+                },
+                (DistributedSystem ds) -> { if (printStatusBeforeAndAfter) { printDSStateBefore(ds); }},
+                (DistributedSystem ds) -> { if (printStatusBeforeAndAfter) { printDSStateAfter(ds); }},
+                (DistributedSystem ds) -> { if (validateResults) { validateDSStateConcatenated(ds, snakeOrder(3, 4)); }},
+                printProcessingTime);
+
         //Shared memory part:
 
         singleTestRun(128, (double[] data) -> {
@@ -50,11 +95,127 @@ public class Lab03 extends BaseLabMixed {
                 },
                 validateResults, printProcessingTime, printStatusBeforeAndAfter);
 
+        // inputs that break a quicksort with a naive pivot
+        singleTestRun(1 << 20, (double[] data) -> {
+                    SortSM.QuicksortDescendingForkJoin(data);
+                },
+                (double[] data) -> {
+                    initSharedMemory(data);
+                    Arrays.sort(data);
+                },
+                (double[] data) -> {}, (double[] data) -> {},
+                (double[] data) -> { if (validateResults) { validateSharedMemory(data); }},
+                printProcessingTime);
+        singleTestRun(1 << 20, (double[] data) -> {
+                    SortSM.QuicksortDescendingForkJoin(data);
+                },
+                (double[] data) -> {
+                    for (int i = 0; i < data.length; ++i) {
+                        data[i] = Math.floor(Math.random() * 4);
+                    }
+                },
+                (double[] data) -> {}, (double[] data) -> {},
+                (double[] data) -> { if (validateResults) { validateSharedMemory(data); }},
+                printProcessingTime);
+
+        singleTestRun(1 << 20, (double[] data) -> {
+                    SortSM.radixSortParallelDescending(data);
+                },
+                validateResults, printProcessingTime, printStatusBeforeAndAfter);
+        singleTestRun(1 << 20, (double[] data) -> {
+                    SortSM.radixSortParallel(data);
+                },
+                (double[] data) -> initSharedMemory(data),
+                (double[] data) -> {}, (double[] data) -> {},
+                (double[] data) -> {
+                    if (validateResults) {
+                        if (algorithms.Utils.isSorted(data)) {
+                            successfulValidationInfo();
+                        } else {
+                            failedValidationInfo();
+                        }
+                    }
+                },
+                printProcessingTime);
+        // special values: -0.0, infinities and NaNs of both signs (a NaN with
+        // the sign bit set has to end up last as well), checked against Arrays.sort
+        final double[] specials = {-0.0, 0.0, Double.NEGATIVE_INFINITY,
+                Double.POSITIVE_INFINITY, Double.NaN,
+                Double.longBitsToDouble(0xfff8000000000000L)};
+        final double[][] expected = new double[1][];
+        singleTestRun(1 << 16, (double[] data) -> {
+                    SortSM.radixSortParallel(data);
+                },
+                (double[] data) -> {
+                    initSharedMemory(data);
+                    for (int i = 0; i < data.length; i += 7) {
+                        data[i] = specials[(i / 7) % specials.length];
+                    }
+                    expected[0] = data.clone();
+                    Arrays.sort(expected[0]);
+                },
+                (double[] data) -> {}, (double[] data) -> {},
+                (double[] data) -> {
+                    if (validateResults) {
+                        if (Arrays.equals(expected[0], data)) {
+                            successfulValidationInfo();
+                        } else {
+                            failedValidationInfo();
+                        }
+                    }
+                },
+                printProcessingTime);
+
+        // external sort - through a file, 8 runs
+        singleTestRun(1 << 21, (double[] data) -> {
+                    externalSortDescending(data, 1 << 18);
+                },
+                validateResults, printProcessingTime, printStatusBeforeAndAfter);
+
         testSortAlgorithmsSharedMemory();
 
     }
 
 
+    /** Writes the data to a temporary file, sorts it with ExternalSortSM
+     * into another one and reads it back.
+     */
+    private static void externalSortDescending(double[] data, int runLength) {
+        File input = null;
+        File output = null;
+        ByteBuffer buffer = ByteBuffer.allocate(data.length * Double.BYTES)
+                .order(ExternalSortSM.FILE_BYTE_ORDER);
+        try {
+            input = File.createTempFile("lab03", ".bin");
+            output = File.createTempFile("lab03", ".bin");
+            buffer.asDoubleBuffer().put(data);
+            try (FileChannel channel = new RandomAccessFile(input, "rw").getChannel()) {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+            ExternalSortSM.sort(input.getPath(), output.getPath(), true, runLength, 2,
+                    input.getParentFile());
+            buffer.clear();
+            try (FileChannel channel = new RandomAccessFile(output, "r").getChannel()) {
+                while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                    //until the buffer is full
+                }
+            }
+            buffer.flip();
+            buffer.asDoubleBuffer().get(data);
+        } catch (IOException ex) {
+            Logger.getLogger(Lab03.class.getName()).log(Level.SEVERE, null, ex);
+        } finally {
+            for (File f : new File[]{input, output}) {
+                if (f != null) {
+                    f.delete();
+                }
+            }
+        }
+    }
+
+
     private void testSortAlgorithmsSharedMemory() {
 
         XYSeriesCollection seriesCollection = new XYSeriesCollection();
@@ -73,8 +234,15 @@ public class Lab03 extends BaseLabMixed {
                 false, printProcessingTime, printStatusBeforeAndAfter);
         seriesCollection.addSeries(exp2);
 
+        XYSeries exp3 = seriesOfRuns("Parallel radix sort",
+                (double[] data) -> {
+                    SortSM.radixSortParallelDescending(data);
+                },
+                false, printProcessingTime, printStatusBeforeAndAfter);
+        seriesCollection.addSeries(exp3);
+
         JFreeChart chart = makeChart(seriesCollection,
-                "Quicksort performance (shared memory)",
+                "Sorting performance (shared memory)",
                 "Number of elements to sort", "Execution time [s]");
 
         displayChart(chart);
@@ -111,6 +279,66 @@ public class Lab03 extends BaseLabMixed {
         successfulValidationInfo();
     }
 
+    /** Random data of random lengths from [0, maxLength] (so possibly empty).
+     */
+    private void initNodesWithDataOfRandomLengths(DistributedSystem ds, int maxLength) {
+        int nNodes = ds.getConfiguration().getNumberOfNodes();
+        initialNodesData = new double[nNodes][];
+        for (int i = 0; i < nNodes; ++i) {
+            initialNodesData[i] = generateRandomData((int) (Math.random() * (maxLength + 1)));
+        }
+        for (Node n : ds.getNodes()) {
+            n.setMyData(initialNodesData[n.getMyId()]);
+        }
+    }
+
+    /** The data of the nodes, one after another, has to be the initial data
+     * sorted in descending order (the nodes may have different amounts of it).
+     */
+    private void validateDSStateConcatenated(DistributedSystem ds) {
+        int[] nodesOrder = new int[ds.getConfiguration().getNumberOfNodes()];
+        for (int i = 0; i < nodesOrder.length; ++i) {
+            nodesOrder[i] = i;
+        }
+        validateDSStateConcatenated(ds, nodesOrder);
+    }
+
+    /** As above, but the nodes are taken in the given order.
+     */
+    private void validateDSStateConcatenated(DistributedSystem ds, int[] nodesOrder) {
+        double[] referenceData = algorithms.Utils.flatten2dArray(initialNodesData);
+        referenceData = Arrays.stream(referenceData).mapToObj(v -> v)
+                .sorted(Comparator.reverseOrder()).mapToDouble(v -> (v)).toArray();
+
+        double[][] nodesData = new double[ds.getConfiguration().getNumberOfNodes()][];
+        for (int i = 0; i < nodesData.length; ++i) {
+            nodesData[i] = ds.getNode(nodesOrder[i]).getMyData();
+            if (nodesData[i] == null) {
+                failedValidationInfo();
+                return;
+            }
+        }
+        if (Arrays.equals(algorithms.Utils.flatten2dArray(nodesData), referenceData)) {
+            successfulValidationInfo();
+        } else {
+            failedValidationInfo();
+        }
+    }
+
+    /** Ids of the nodes of a nRows x nColumns mesh along the snake: row 0
+     * from left to right, row 1 from right to left etc.
+     */
+    private static int[] snakeOrder(int nRows, int nColumns) {
+        int[] order = new int[nRows * nColumns];
+        for (int r = 0; r < nRows; ++r) {
+            for (int c = 0; c < nColumns; ++c) {
+                int col = (r % 2 == 0) ? c : nColumns - 1 - c;
+                order[r * nColumns + c] = Topology.meshCoordsToId(r, col, nColumns);
+            }
+        }
+        return order;
+    }
+
     @Override
     protected void initSharedMemory(double[] data) {
         for (int i = 0; i < data.length; ++i) {
@@ -7,8 +7,10 @@ package algorithms.distributed;
 import algorithms.Utils;
 import distributedmodel.DataPacket;
 import distributedmodel.Node;
+import java.util.Arrays;
 import java.util.function.BinaryOperator;
 import java.util.function.DoubleBinaryOperator;
+import java.util.function.IntFunction;
 
 /**
  *
@@ -393,9 +395,151 @@ public class BasicCommunication {
                 });
         return tmp[0];
     }
-    
-    
-    
+
+
+    /** A subroutine that, if run on each of the nodes in the distributed
+     * system, reduces data of all the nodes with op and returns the result
+     * in every node, in \Theta(log(nNodes)) steps (recursive doubling). Any
+     * number of nodes is allowed: the nodes above the highest power of two
+     * first hand their data over to a partner and get the result from it at
+     * the end.
+     *      op has to be associative and commutative. Its arguments are always
+     * given in the order of node ids (the data of lower ids first), so all
+     * the nodes get exactly the same result, also in floating point.
+     *
+     * @param node
+     * @param data  - data to reduce
+     * @param op    - reduce operation of type (double[], double[]) -> double[]
+     * @return      - reduced data (in all the nodes)
+     */
+    public static double[] allreduce(Node node, double[] data,
+            BinaryOperator<double[]> op)
+    {
+        return allreduce(node, data, op, (int srcId) -> {
+            DataPacket dp = node.receive();
+            if(dp.getSourceId() != srcId){
+                throw new RuntimeException(String.format(
+                        "Node %d expected data from node %d, but got from %d.",
+                        node.getMyId(), srcId, dp.getSourceId()));
+            }
+            return dp.getData();
+        });
+    }
+
+
+    public static double allreduce(Node node, double localValueToReduce,
+            DoubleBinaryOperator op)
+    {
+        double[] tmp = allreduce(node, new double[] {localValueToReduce},
+                (double[] v1, double[] v2) -> new double[] {op.applyAsDouble(v1[0], v2[0])});
+        return tmp[0];
+    }
+
+
+    /** Allreduce of (value, index) pairs that finds the maximum value and its
+     * index (e.g. the row of the pivot in Gaussian elimination). Among equal
+     * values the lowest index wins, so the result does not depend on the
+     * order of the nodes.
+     *
+     * @param node
+     * @param value     - local candidate (e.g. -1 if the node has none and
+     * the values are absolute values)
+     * @param index     - its index
+     * @return          - {maximum value, its index} (in all the nodes)
+     */
+    public static double[] allreduceMaxLoc(Node node, double value, double index)
+    {
+        return allreduce(node, new double[] {value, index}, BasicCommunication::maxLoc);
+    }
+
+
+    static double[] maxLoc(double[] v1, double[] v2){
+        if(v1[0] > v2[0] || (v1[0] == v2[0] && v1[1] <= v2[1])){
+            return v1;
+        }
+        return v2;
+    }
+
+
+    /** A subroutine that, if run on each of the nodes in the distributed
+     * system, broadcasts data of node rootId to all the nodes in
+     * \Theta(log(nNodes)) steps. Any number of nodes and any root is allowed
+     * (the binomial tree of scatterv).
+     *
+     * @param node
+     * @param data      - data to broadcast - only meaningful for the root
+     * @param rootId
+     * @return          - broadcasted data
+     */
+    public static double[] broadcast(Node node, double[] data, int rootId)
+    {
+        return broadcast(node, data, rootId, (int srcId) -> node.receive().getData());
+    }
+
+
+    /** Same as broadcast(node, data, rootId), with messages received by
+     * receiveFrom(srcId).
+     */
+    static double[] broadcast(Node node, double[] data, int rootId,
+            IntFunction<double[]> receiveFrom)
+    {
+        int nNodes = node.getNumberOfAllNodes();
+        int myRank = Math.floorMod(node.getMyId() - rootId, nNodes);
+        int span = subtreeSpan(myRank, nNodes);
+
+        double[] result = data;
+        if(myRank != 0){
+            result = receiveFrom.apply((rootId + myRank - span) % nNodes);
+        }
+        for(int mask = span >> 1; mask >= 1; mask >>= 1){
+            int child = myRank + mask;
+            if(child < nNodes){
+                node.send((rootId + child) % nNodes, result);
+            }
+        }
+        return result;
+    }
+
+
+    /** Same as allreduce(node, data, op), with messages received by
+     * receiveFrom(srcId) - for algorithms that have other messages in flight
+     * and sort them by source.
+     */
+    static double[] allreduce(Node node, double[] data,
+            BinaryOperator<double[]> op, IntFunction<double[]> receiveFrom)
+    {
+        int myId = node.getMyId();
+        int nNodes = node.getNumberOfAllNodes();
+        int powerOfTwo = Integer.highestOneBit(nNodes);
+
+        if(myId >= powerOfTwo){
+            node.send(myId - powerOfTwo, data);
+            return receiveFrom.apply(myId - powerOfTwo);
+        }
+        double[] acc = data;
+        if(myId + powerOfTwo < nNodes){
+            acc = op.apply(acc, receiveFrom.apply(myId + powerOfTwo));
+        }
+        for(int mask = 1; mask < powerOfTwo; mask <<= 1){
+            int partner = myId ^ mask;
+            //the lower id sends first - the channels are synchronous
+            if(myId < partner){
+                node.send(partner, acc);
+                acc = op.apply(acc, receiveFrom.apply(partner));
+            }else{
+                double[] other = receiveFrom.apply(partner);
+                node.send(partner, acc);
+                acc = op.apply(other, acc);
+            }
+        }
+        if(myId + powerOfTwo < nNodes){
+            node.send(myId + powerOfTwo, acc);
+        }
+        return acc;
+    }
+
+
+
     /** \Theta(nNodes) version of @see BasicCommunication#reduce
      * 
      * @param node
@@ -588,6 +732,141 @@ public class BasicCommunication {
             }
         }
         node.setMyData(new double[] {result});
+    }    
+    
+    /** A subroutine that, if run on each of the nodes in the distributed
+     * system, scatters parts of different sizes (counts[i] elements for node
+     * i) of the data of node rootId in \Theta(log(nNodes)) steps. Any number
+     * of nodes and any root is allowed.
+     *      The nodes form a binomial tree rooted at rootId (in ranks relative
+     * to the root); each node gets the parts of its whole subtree in one
+     * message from its parent and passes the parts of the subtrees of its
+     * children on, the biggest subtree first. Nodes with nothing to get in
+     * their subtree do not communicate.
+     * 
+     * @param node
+     * @param data      - parts of all the nodes one after another, in the
+     * order of node ids - only meaningful for the root
+     * @param counts    - sizes of the parts (the same in all the nodes)
+     * @param rootId
+     * @return          - the part of this node
+     */
+    public static double[] scatterv(Node node, double[] data, int[] counts,
+            int rootId)
+    {
+        int nNodes = node.getNumberOfAllNodes();
+        int myRank = Math.floorMod(node.getMyId() - rootId, nNodes);
+        int[] offsets = relativeOffsets(counts, rootId, nNodes);
+        int span = subtreeSpan(myRank, nNodes);
+        int myEnd = Math.min(myRank + span, nNodes);
+        
+        //the parts of my subtree (ranks [myRank, myEnd)), starting at offsets[myRank]
+        double[] subtreeData;
+        if(myRank == 0){
+            //reorder the parts from the order of ids to the order of ranks
+            subtreeData = new double[offsets[nNodes]];
+            for(int id = 0, pos = 0; id < nNodes; ++id){
+                int rank = Math.floorMod(id - rootId, nNodes);
+                System.arraycopy(data, pos, subtreeData, offsets[rank], counts[id]);
+                pos += counts[id];
+            }
+        }else if(offsets[myEnd] > offsets[myRank]){
+            subtreeData = node.receive().getData();
+        }else{
+            subtreeData = new double[0];
+        }
+        
+        for(int mask = span >> 1; mask >= 1; mask >>= 1){
+            int child = myRank + mask;
+            if(child < nNodes){
+                int childEnd = Math.min(child + mask, nNodes);
+                if(offsets[childEnd] > offsets[child]){
+                    node.send((rootId + child) % nNodes, Arrays.copyOfRange(
+                            subtreeData, offsets[child] - offsets[myRank],
+                            offsets[childEnd] - offsets[myRank]));
+                }
+            }
+        }
+        return Arrays.copyOf(subtreeData, counts[node.getMyId()]);
+    }
+    
+    
+    /** Reverse of scatterv - gathers parts of different sizes (counts[i]
+     * elements from node i) in node rootId in \Theta(log(nNodes)) steps, along
+     * the same binomial tree. A node sends the parts of its subtree to its
+     * parent when it has got them from all its children (in any order).
+     * 
+     * @param node
+     * @param myPart    - the part of this node (counts[myId] elements)
+     * @param counts    - sizes of the parts (the same in all the nodes)
+     * @param rootId
+     * @return          - in the root: parts of all the nodes one after
+     * another, in the order of node ids; null in the other nodes
+     */
+    public static double[] gatherv(Node node, double[] myPart, int[] counts,
+            int rootId)
+    {
+        int nNodes = node.getNumberOfAllNodes();
+        int myId = node.getMyId();
+        int myRank = Math.floorMod(myId - rootId, nNodes);
+        int[] offsets = relativeOffsets(counts, rootId, nNodes);
+        int span = subtreeSpan(myRank, nNodes);
+        int myEnd = Math.min(myRank + span, nNodes);
+        
+        double[] subtreeData = new double[offsets[myEnd] - offsets[myRank]];
+        System.arraycopy(myPart, 0, subtreeData, 0, counts[myId]);
+        
+        int nExpected = 0;
+        for(int mask = 1; mask < span; mask <<= 1){
+            int child = myRank + mask;
+            if(child < nNodes
+                    && offsets[Math.min(child + mask, nNodes)] > offsets[child]){
+                ++nExpected;
+            }
+        }
+        for(int i = 0; i < nExpected; ++i){
+            DataPacket dp = node.receive();
+            int child = Math.floorMod(dp.getSourceId() - rootId, nNodes);
+            System.arraycopy(dp.getData(), 0, subtreeData,
+                    offsets[child] - offsets[myRank], dp.getData().length);
+        }
+        
+        if(myRank != 0){
+            if(subtreeData.length > 0){
+                node.send((rootId + myRank - span) % nNodes, subtreeData);
+            }
+            return null;
+        }
+        
+        double[] result = new double[subtreeData.length];
+        for(int id = 0, pos = 0; id < nNodes; ++id){
+            int rank = Math.floorMod(id - rootId, nNodes);
+            System.arraycopy(subtreeData, offsets[rank], result, pos, counts[id]);
+            pos += counts[id];
+        }
+        return result;
+    }
+    
+    
+    /** Number of ranks in the binomial subtree of a given rank (possibly
+     * extending beyond nNodes).
+     */
+    private static int subtreeSpan(int rank, int nNodes){
+        if(rank != 0){
+            return Integer.lowestOneBit(rank);
+        }
+        return (nNodes <= 1) ? 1 : Integer.highestOneBit(nNodes - 1) << 1;
+    }
+    
+    
+    /** Offsets of the parts in the order of ranks relative to the root.
+     */
+    private static int[] relativeOffsets(int[] counts, int rootId, int nNodes){
+        int[] offsets = new int[nNodes + 1];
+        for(int rank = 0; rank < nNodes; ++rank){
+            offsets[rank + 1] = offsets[rank] + counts[(rootId + rank) % nNodes];
+        }
+        return offsets;
     }
     
 }
@@ -0,0 +1,871 @@
+/*
+ *  This code is for Parallel and Distributed Algorithms
+ *  laboratory at Gdansk University of Technology
+ */
+
+package algorithms.distributed;
+
+import datastructures.Matrix;
+import distributedmodel.DataPacket;
+import distributedmodel.DistributedMatrix;
+import distributedmodel.Node;
+import distributedmodel.Topology;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/** Distributed solvers of linear systems A*x = b.
+ *      The iterative solvers (Jacobi, Conjugate Gradient) work on systems
+ * given by a 5-point stencil on an nRows x nCols grid of unknowns:
+ * <pre>
+ *  (A*x)_ij = diag*x_ij + offDiag*(x_i-1,j + x_i+1,j + x_i,j-1 + x_i,j+1)
+ * </pre>
+ * with zeros outside the grid (Dirichlet boundary), e.g. diag = 4,
+ * offDiag = -1 is the discrete Laplacian. The grid (x, b, ...) is stored as
+ * a distributed matrix with the block layout (DistributedMatrix.block), so
+ * a node needs only the edges of the blocks of its 4 neighbours in the mesh
+ * (the halo) to apply the stencil. The halo is exchanged while the node
+ * computes the interior of its block; the dot products and norms are
+ * allreduced.
+ *      The direct solver (LU factorization with partial pivoting and
+ * forward/back substitution) works on dense matrices distributed by rows
+ * (see factorizeLU).
+ *      In all the solvers the messages are matched by their sources, so a
+ * node may get the next message of a faster node before it has finished the
+ * current step. The nodes are not synchronized at the end - call
+ * node.synchronizeDS() before other communication that could be mistaken for
+ * a part of a solver.
+ *
+ * @author Karol Draszawka <kadr@eti.pg.gda.pl>
+ */
+public class LinearSolvers {
+
+    /** Outcome of an iterative solver.
+     */
+    public static final class IterationInfo {
+        public final int nIterations;
+        public final double relativeResidual;   // ||b - A*x|| / ||b||
+        public final boolean converged;
+
+        IterationInfo(int nIterations, double relativeResidual, boolean converged){
+            this.nIterations = nIterations;
+            this.relativeResidual = relativeResidual;
+            this.converged = converged;
+        }
+
+        @Override
+        public String toString(){
+            return String.format("%s after %d iterations, relative residual %.3e",
+                    converged ? "Converged" : "Not converged",
+                    nIterations, relativeResidual);
+        }
+    }
+
+
+    /** y = A*x for the stencil A (see class description). Every node of the
+     * mesh of x has to call it; y gets the layout of x (the local parts are
+     * stored under the name of y).
+     *
+     * @param node
+     * @param x
+     * @param y
+     * @param diag
+     * @param offDiag
+     */
+    public static void multiplyStencil(Node node, DistributedMatrix x,
+            DistributedMatrix y, double diag, double offDiag)
+    {
+        checkGridLayout(x, y);
+        if(node.getMyId() >= x.getNumberOfMeshNodes()){
+            return;
+        }
+        GridPart part = new GridPart(node, x);
+        double[] ax = part.applyStencil(x.getLocal(node).getMatrixRowwise(), diag, offDiag);
+        y.setLocal(node, part.toMatrix(ax));
+    }
+
+
+    /** Jacobi iterations x <- x + (b - A*x)/diag for the stencil A, starting
+     * from the local parts of x, until ||b - A*x|| <= tolerance*||b|| or
+     * maxIterations iterations. The solution is stored in x. Converges if A
+     * is strictly diagonally dominant (|diag| > 4*|offDiag|); slowly for the
+     * Laplacian.
+     *      Every node of the system has to call it (the nodes outside the
+     * mesh take part only in the allreduces). Each iteration makes one halo
+     * exchange and one allreduce.
+     *
+     * @param node
+     * @param x             - initial guess; the solution at the end
+     * @param b             - right hand side, in the layout of x
+     * @param diag
+     * @param offDiag
+     * @param tolerance
+     * @param maxIterations
+     * @return
+     */
+    public static IterationInfo solveJacobi(Node node, DistributedMatrix x,
+            DistributedMatrix b, double diag, double offDiag,
+            double tolerance, int maxIterations)
+    {
+        checkGridLayout(x, b);
+        GridPart part = new GridPart(node, x);
+        double[] xs = part.getLocal(x);
+        double[] bs = part.getLocal(b);
+        double bNorm = Math.sqrt(part.dot(bs, bs));
+        if(bNorm == 0){
+            Arrays.fill(xs, 0);
+            part.setLocal(x, xs);
+            return new IterationInfo(0, 0, true);
+        }
+
+        int iter = 0;
+        double relResidual;
+        double[] r = new double[xs.length];
+        while(true){
+            double[] ax = part.applyStencil(xs, diag, offDiag);
+            for(int i = 0; i < r.length; ++i){
+                r[i] = bs[i] - ax[i];
+            }
+            relResidual = Math.sqrt(part.dot(r, r)) / bNorm;
+            if(relResidual <= tolerance || iter == maxIterations){
+                break;
+            }
+            for(int i = 0; i < xs.length; ++i){
+                xs[i] += r[i] / diag;
+            }
+            ++iter;
+        }
+        part.setLocal(x, xs);
+        return new IterationInfo(iter, relResidual, relResidual <= tolerance);
+    }
+
+
+    /** Conjugate Gradient method for the stencil A, starting from the local
+     * parts of x, until ||r|| <= tolerance*||b|| or maxIterations iterations
+     * (r is the residual updated by the recurrence of the method). The
+     * solution is stored in x. A has to be symmetric positive definite -
+     * which for the stencil means diag > 0 and |offDiag| <= diag/4 (the
+     * Laplacian included).
+     *      Every node of the system has to call it (the nodes outside the
+     * mesh take part only in the allreduces). Each iteration makes one halo
+     * exchange and two allreduces.
+     *
+     * @param node
+     * @param x             - initial guess; the solution at the end
+     * @param b             - right hand side, in the layout of x
+     * @param diag
+     * @param offDiag
+     * @param tolerance
+     * @param maxIterations
+     * @return
+     */
+    public static IterationInfo solveCG(Node node, DistributedMatrix x,
+            DistributedMatrix b, double diag, double offDiag,
+            double tolerance, int maxIterations)
+    {
+        checkGridLayout(x, b);
+        GridPart part = new GridPart(node, x);
+        double[] xs = part.getLocal(x);
+        double[] bs = part.getLocal(b);
+        double bNorm = Math.sqrt(part.dot(bs, bs));
+        if(bNorm == 0){
+            Arrays.fill(xs, 0);
+            part.setLocal(x, xs);
+            return new IterationInfo(0, 0, true);
+        }
+
+        double[] r = part.applyStencil(xs, diag, offDiag);
+        for(int i = 0; i < r.length; ++i){
+            r[i] = bs[i] - r[i];
+        }
+        double[] p = r.clone();
+        double rr = part.dot(r, r);
+
+        int iter = 0;
+        double relResidual;
+        while(true){
+            relResidual = Math.sqrt(rr) / bNorm;
+            if(relResidual <= tolerance || iter == maxIterations){
+                break;
+            }
+            double[] ap = part.applyStencil(p, diag, offDiag);
+            double alpha = rr / part.dot(p, ap);
+            for(int i = 0; i < xs.length; ++i){
+                xs[i] += alpha * p[i];
+                r[i] -= alpha * ap[i];
+            }
+            double rrNew = part.dot(r, r);
+            double beta = rrNew / rr;
+            for(int i = 0; i < p.length; ++i){
+                p[i] = r[i] + beta * p[i];
+            }
+            rr = rrNew;
+            ++iter;
+        }
+        part.setLocal(x, xs);
+        return new IterationInfo(iter, relResidual, relResidual <= tolerance);
+    }
+
+
+    /** LU factorization with partial pivoting, P*A = L*U, of a square matrix
+     * distributed by rows: whole rows, dealt to the nodes of a mesh with one
+     * column in blocks of rowBlockSize rows in a round-robin manner (e.g.
+     * new DistributedMatrix(name, n, n, nNodes, 1, nb, n)). The cyclic
+     * layout keeps the work balanced while the active part of the matrix
+     * shrinks.
+     *      The matrix is factorized by panels of rowBlockSize columns, so the
+     * diagonal block of a panel is in one node. In each column of the panel
+     * the pivot is found by allreduce-maxloc, the rows are interchanged
+     * (within the panel only) and the pivot row is broadcast, so that all the
+     * nodes can eliminate below it. Then the interchanges of the panel are
+     * applied to the other columns, the owner of the diagonal block computes
+     * the block row of U and broadcasts it, and the nodes update their rows
+     * of the trailing matrix. With lookahead: the columns of the next panel
+     * are updated first, and the rest of the update is done by an auxiliary
+     * thread while the next panel is factorized.
+     *      The local parts of a are overwritten with L (unit lower triangular,
+     * below the diagonal) and U. Every node of the system has to call it (the
+     * nodes outside the mesh take part only in the collective operations).
+     * Throws a RuntimeException (in all the nodes) if the matrix is singular.
+     *
+     * @param node
+     * @param a
+     * @return      - pivots: row j was interchanged with row pivots[j] at
+     * step j (the same in all the nodes)
+     */
+    public static int[] factorizeLU(Node node, DistributedMatrix a)
+    {
+        checkRowLayout(a, a);
+        if(a.getNRows() != a.getNCols()){
+            throw new RuntimeException("LU factorization of a non-square matrix.");
+        }
+        int n = a.getNRows();
+        int nb = a.getRowBlockSize();
+        RowPart part = new RowPart(node, a);
+        double[][] rows = part.getLocalRows(a);
+        int[] pivots = new int[n];
+
+        Thread trailingUpdate = null;
+        for(int k = 0; k < n; k += nb){
+            int panelEnd = Math.min(k + nb, n);
+            try{
+                factorizePanel(part, rows, k, panelEnd, pivots);
+            }finally{
+                if(trailingUpdate != null){
+                    join(trailingUpdate);
+                }
+            }
+            part.swapRows(rows, pivots, k, panelEnd, 0, k, panelEnd, n);
+            if(panelEnd == n){
+                break;
+            }
+
+            double[] u12 = part.broadcastBlockRowOfU(rows, k, panelEnd, n);
+            int firstRow = part.firstLocalRow(panelEnd);
+            int lookaheadEnd = Math.min(panelEnd + nb, n);
+            updateTrailing(rows, firstRow, k, panelEnd, u12, n, panelEnd, lookaheadEnd);
+            if(lookaheadEnd < n){
+                int from = k;
+                trailingUpdate = new Thread(() -> updateTrailing(rows, firstRow, from,
+                        panelEnd, u12, n, lookaheadEnd, n));
+                trailingUpdate.start();
+            }else{
+                trailingUpdate = null;
+            }
+        }
+        part.setLocalRows(a, rows);
+        return pivots;
+    }
+
+
+    /** Solves A*x = b given the factorization of factorizeLU (lu, pivots).
+     * b (any number of columns) has to be distributed by rows like lu; its
+     * local parts are overwritten with x.
+     *      The rows of b are interchanged as in the factorization, then
+     * L*y = P*b and U*x = y are solved block by block: the owner of a
+     * diagonal block solves the triangular system of the block and
+     * broadcasts the solved part, and all the nodes subtract it from their
+     * rows below (above, in the back substitution).
+     *      Every node of the system has to call it.
+     *
+     * @param node
+     * @param lu
+     * @param pivots
+     * @param b
+     */
+    public static void solveLU(Node node, DistributedMatrix lu, int[] pivots,
+            DistributedMatrix b)
+    {
+        checkRowLayout(lu, b);
+        int n = lu.getNRows();
+        int nb = lu.getRowBlockSize();
+        int nRhs = b.getNCols();
+        RowPart part = new RowPart(node, lu);
+        double[][] luRows = part.getLocalRows(lu);
+        double[][] x = part.getLocalRows(b);
+
+        part.swapRows(x, pivots, 0, n, 0, 0, 0, nRhs);
+
+        //forward substitution, L*y = P*b (L has a unit diagonal)
+        for(int k = 0; k < n; k += nb){
+            int blockEnd = Math.min(k + nb, n);
+            double[] y = null;
+            if(part.isMine(k)){
+                for(int t = k; t < blockEnd; ++t){
+                    double[] xt = x[part.localRowOf(t)];
+                    double[] lt = luRows[part.localRowOf(t)];
+                    for(int s = k; s < t; ++s){
+                        subtractScaled(xt, lt[s], x[part.localRowOf(s)], 0, nRhs);
+                    }
+                }
+                y = packRows(x, part, k, blockEnd, 0, nRhs);
+            }
+            y = BasicCommunication.broadcast(node, y, part.ownerOf(k), part.mInbox::receiveFrom);
+            for(int r = part.firstLocalRow(blockEnd); r < x.length; ++r){
+                for(int t = k; t < blockEnd; ++t){
+                    subtractScaled(x[r], luRows[r][t], y, (t - k)*nRhs, nRhs);
+                }
+            }
+        }
+
+        //back substitution, U*x = y
+        for(int k = ((n - 1) / nb) * nb; k >= 0; k -= nb){
+            int blockEnd = Math.min(k + nb, n);
+            double[] xb = null;
+            if(part.isMine(k)){
+                for(int t = blockEnd - 1; t >= k; --t){
+                    double[] xt = x[part.localRowOf(t)];
+                    double[] ut = luRows[part.localRowOf(t)];
+                    for(int s = t + 1; s < blockEnd; ++s){
+                        subtractScaled(xt, ut[s], x[part.localRowOf(s)], 0, nRhs);
+                    }
+                    for(int c = 0; c < nRhs; ++c){
+                        xt[c] /= ut[t];
+                    }
+                }
+                xb = packRows(x, part, k, blockEnd, 0, nRhs);
+            }
+            xb = BasicCommunication.broadcast(node, xb, part.ownerOf(k), part.mInbox::receiveFrom);
+            for(int r = 0; r < part.firstLocalRow(k); ++r){
+                for(int t = k; t < blockEnd; ++t){
+                    subtractScaled(x[r], luRows[r][t], xb, (t - k)*nRhs, nRhs);
+                }
+            }
+        }
+        part.setLocalRows(b, x);
+    }
+
+
+    /** Unblocked elimination in columns [k, panelEnd), restricted to these
+     * columns.
+     */
+    private static void factorizePanel(RowPart part, double[][] rows,
+            int k, int panelEnd, int[] pivots)
+    {
+        Node node = part.mNode;
+        int myId = node.getMyId();
+        for(int j = k; j < panelEnd; ++j){
+            double best = -1;
+            int bestRow = -1;
+            for(int r = part.firstLocalRow(j); r < rows.length; ++r){
+                double v = Math.abs(rows[r][j]);
+                if(v > best){
+                    best = v;
+                    bestRow = part.globalRowOf(r);
+                }
+            }
+            double[] max = BasicCommunication.allreduce(node, new double[] {best, bestRow},
+                    BasicCommunication::maxLoc, part.mInbox::receiveFrom);
+            if(!(max[0] > 0)){
+                throw new RuntimeException(String.format(
+                        "The matrix is singular (column %d).", j));
+            }
+            int piv = (int) max[1];
+            pivots[j] = piv;
+
+            //the pivot row is broadcast by its owner; the owner of row j
+            //replaces row j with it and sends the old row j in its place
+            int pivOwner = part.ownerOf(piv);
+            int jOwner = part.ownerOf(j);
+            double[] pivotRow = part.isMine(piv) ?
+                    Arrays.copyOfRange(rows[part.localRowOf(piv)], k, panelEnd) : null;
+            pivotRow = BasicCommunication.broadcast(node, pivotRow, pivOwner,
+                    part.mInbox::receiveFrom);
+            if(piv != j){
+                if(jOwner == myId){
+                    double[] rowJ = rows[part.localRowOf(j)];
+                    double[] oldRowJ = Arrays.copyOfRange(rowJ, k, panelEnd);
+                    System.arraycopy(pivotRow, 0, rowJ, k, panelEnd - k);
+                    if(pivOwner == myId){
+                        System.arraycopy(oldRowJ, 0, rows[part.localRowOf(piv)], k, panelEnd - k);
+                    }else{
+                        node.send(pivOwner, oldRowJ);
+                    }
+                }else if(pivOwner == myId){
+                    System.arraycopy(part.mInbox.receiveFrom(jOwner), 0,
+                            rows[part.localRowOf(piv)], k, panelEnd - k);
+                }
+            }
+
+            double pivot = pivotRow[j - k];
+            for(int r = part.firstLocalRow(j + 1); r < rows.length; ++r){
+                double[] row = rows[r];
+                double l = row[j] / pivot;
+                row[j] = l;
+                for(int c = j + 1; c < panelEnd; ++c){
+                    row[c] -= l * pivotRow[c - k];
+                }
+            }
+        }
+    }
+
+
+    /** A22 -= L21 * U12 in columns [colFrom, colTo), for the local rows from
+     * firstRow on. U12 is the block row of U of the panel [k, panelEnd),
+     * stored rowwise with columns from panelEnd to n.
+     */
+    private static void updateTrailing(double[][] rows, int firstRow, int k,
+            int panelEnd, double[] u12, int n, int colFrom, int colTo)
+    {
+        int ldu = n - panelEnd;
+        for(int r = firstRow; r < rows.length; ++r){
+            double[] row = rows[r];
+            for(int t = k; t < panelEnd; ++t){
+                double l = row[t];
+                if(l != 0){
+                    int uOff = (t - k)*ldu - panelEnd;
+                    for(int c = colFrom; c < colTo; ++c){
+                        row[c] -= l * u12[uOff + c];
+                    }
+                }
+            }
+        }
+    }
+
+
+    /** row[0..n) -= factor * data[offset..offset+n)
+     */
+    private static void subtractScaled(double[] row, double factor,
+            double[] data, int offset, int n)
+    {
+        for(int c = 0; c < n; ++c){
+            row[c] -= factor * data[offset + c];
+        }
+    }
+
+
+    /** Columns [colFrom, colTo) of the local rows with global indices
+     * [rowFrom, rowTo), one after another.
+     */
+    private static double[] packRows(double[][] rows, RowPart part,
+            int rowFrom, int rowTo, int colFrom, int colTo)
+    {
+        int width = colTo - colFrom;
+        double[] packed = new double[(rowTo - rowFrom)*width];
+        for(int g = rowFrom; g < rowTo; ++g){
+            System.arraycopy(rows[part.localRowOf(g)], colFrom,
+                    packed, (g - rowFrom)*width, width);
+        }
+        return packed;
+    }
+
+
+    /** The rows of a matrix distributed by rows stored in a node. Nodes
+     * outside the mesh have none.
+     */
+    private static final class RowPart {
+        private final Node mNode;
+        private final Inbox mInbox;
+        private final DistributedMatrix mLayout;
+        private final int mMeshRow;         // -1 outside the mesh
+        private final int mNLocalRows;
+
+        RowPart(Node node, DistributedMatrix layout)
+        {
+            mNode = node;
+            mInbox = new Inbox(node);
+            mLayout = layout;
+            int myId = node.getMyId();
+            mMeshRow = (myId < layout.getNumberOfMeshNodes()) ? myId : -1;
+            mNLocalRows = (mMeshRow < 0) ? 0 : layout.getLocalNRows(mMeshRow);
+        }
+
+
+        double[][] getLocalRows(DistributedMatrix dm)
+        {
+            double[][] rows = new double[mNLocalRows][];
+            if(mNLocalRows > 0){
+                Matrix local = dm.getLocal(mNode);
+                for(int r = 0; r < mNLocalRows; ++r){
+                    rows[r] = local.getRow(r);
+                }
+            }
+            return rows;
+        }
+
+
+        void setLocalRows(DistributedMatrix dm, double[][] rows){
+            if(mMeshRow >= 0){
+                dm.setLocal(mNode, (rows.length > 0) ? new Matrix(rows, false) :
+                        new Matrix(0, dm.getNCols()));
+            }
+        }
+
+
+        int ownerOf(int globalRow){
+            return mLayout.meshRowOfRow(globalRow);
+        }
+
+
+        boolean isMine(int globalRow){
+            return ownerOf(globalRow) == mMeshRow;
+        }
+
+
+        int localRowOf(int globalRow){
+            return mLayout.localRowOf(globalRow);
+        }
+
+
+        int globalRowOf(int localRow){
+            return mLayout.globalRowOf(mMeshRow, localRow);
+        }
+
+
+        /** Index of the first local row with a global index >= globalRow
+         * (the number of local rows if there is none).
+         */
+        int firstLocalRow(int globalRow)
+        {
+            int r = 0;
+            while(r < mNLocalRows && globalRowOf(r) < globalRow){
+                ++r;
+            }
+            return r;
+        }
+
+
+        /** Interchanges rows j and pivots[j] for j = from, ..., to-1 (in this
+         * order), in columns [c0, c1) and [c2, c3). Rows of different nodes
+         * are exchanged by messages.
+         */
+        void swapRows(double[][] rows, int[] pivots, int from, int to,
+                int c0, int c1, int c2, int c3)
+        {
+            int myId = mNode.getMyId();
+            for(int j = from; j < to; ++j){
+                int piv = pivots[j];
+                if(piv == j || (!isMine(j) && !isMine(piv))){
+                    continue;
+                }
+                if(isMine(j) && isMine(piv)){
+                    double[] rowJ = rows[localRowOf(j)];
+                    double[] rowPiv = rows[localRowOf(piv)];
+                    swapElements(rowJ, rowPiv, c0, c1);
+                    swapElements(rowJ, rowPiv, c2, c3);
+                    continue;
+                }
+                int mine = isMine(j) ? j : piv;
+                int otherId = isMine(j) ? ownerOf(piv) : ownerOf(j);
+                double[] row = rows[localRowOf(mine)];
+                double[] segments = new double[(c1 - c0) + (c3 - c2)];
+                System.arraycopy(row, c0, segments, 0, c1 - c0);
+                System.arraycopy(row, c2, segments, c1 - c0, c3 - c2);
+                //the lower id sends first - the channels are synchronous
+                double[] received;
+                if(myId < otherId){
+                    mNode.send(otherId, segments);
+                    received = mInbox.receiveFrom(otherId);
+                }else{
+                    received = mInbox.receiveFrom(otherId);
+                    mNode.send(otherId, segments);
+                }
+                System.arraycopy(received, 0, row, c0, c1 - c0);
+                System.arraycopy(received, c1 - c0, row, c2, c3 - c2);
+            }
+        }
+
+
+        /** U12 = inv(L11) * A12 for the panel [k, panelEnd), computed by the
+         * owner of the diagonal block (in its rows) and broadcast to all the
+         * nodes, rowwise, with columns from panelEnd to n.
+         */
+        double[] broadcastBlockRowOfU(double[][] rows, int k, int panelEnd, int n)
+        {
+            double[] u12 = null;
+            if(isMine(k)){
+                for(int t = k + 1; t < panelEnd; ++t){
+                    double[] rowT = rows[localRowOf(t)];
+                    for(int s = k; s < t; ++s){
+                        double l = rowT[s];
+                        if(l != 0){
+                            double[] rowS = rows[localRowOf(s)];
+                            for(int c = panelEnd; c < n; ++c){
+                                rowT[c] -= l * rowS[c];
+                            }
+                        }
+                    }
+                }
+                u12 = packRows(rows, this, k, panelEnd, panelEnd, n);
+            }
+            return BasicCommunication.broadcast(mNode, u12, ownerOf(k), mInbox::receiveFrom);
+        }
+    }
+
+
+    private static void swapElements(double[] u, double[] v, int from, int to)
+    {
+        for(int c = from; c < to; ++c){
+            double tmp = u[c];
+            u[c] = v[c];
+            v[c] = tmp;
+        }
+    }
+
+
+    /** Both matrices have to be distributed by whole rows in the same way.
+     */
+    private static void checkRowLayout(DistributedMatrix a, DistributedMatrix other)
+    {
+        if(a.getMeshColCount() != 1 || other.getMeshColCount() != 1
+                || a.getColBlockSize() < a.getNCols()
+                || other.getColBlockSize() < other.getNCols()){
+            throw new RuntimeException("The matrices have to be distributed by whole rows.");
+        }
+        if(a.getNRows() != other.getNRows()
+                || a.getMeshRowCount() != other.getMeshRowCount()
+                || a.getRowBlockSize() != other.getRowBlockSize()){
+            throw new RuntimeException("The matrices have different row layouts.");
+        }
+    }
+
+
+    /** The block of the grid stored in a node, with the ids of its
+     * neighbours in the mesh (-1 at the edges of the grid). Nodes outside the
+     * mesh have an empty block and no neighbours.
+     */
+    private static final class GridPart {
+        private static final int NORTH = 0, SOUTH = 1, WEST = 2, EAST = 3;
+
+        private final Node mNode;
+        private final Inbox mInbox;
+        private final int mNRows, mNCols;
+        private final int[] mNeighbourIds = {-1, -1, -1, -1};
+
+        GridPart(Node node, DistributedMatrix grid)
+        {
+            mNode = node;
+            mInbox = new Inbox(node);
+            int myId = node.getMyId();
+            if(myId >= grid.getNumberOfMeshNodes()){
+                mNRows = 0;
+                mNCols = 0;
+                return;
+            }
+            int meshRowCount = grid.getMeshRowCount();
+            int meshColCount = grid.getMeshColCount();
+            int row = Topology.meshRowOfId(myId, meshColCount);
+            int col = Topology.meshColOfId(myId, meshColCount);
+            mNRows = grid.getLocalNRows(row);
+            mNCols = grid.getLocalNCols(col);
+            if(row > 0){
+                mNeighbourIds[NORTH] = Topology.meshCoordsToId(row - 1, col, meshColCount);
+            }
+            if(row < meshRowCount - 1){
+                mNeighbourIds[SOUTH] = Topology.meshCoordsToId(row + 1, col, meshColCount);
+            }
+            if(col > 0){
+                mNeighbourIds[WEST] = Topology.meshCoordsToId(row, col - 1, meshColCount);
+            }
+            if(col < meshColCount - 1){
+                mNeighbourIds[EAST] = Topology.meshCoordsToId(row, col + 1, meshColCount);
+            }
+        }
+
+
+        double[] getLocal(DistributedMatrix dm){
+            return (mNRows == 0) ? new double[0] : dm.getLocal(mNode).getMatrixRowwise();
+        }
+
+
+        void setLocal(DistributedMatrix dm, double[] local){
+            if(mNRows != 0){
+                dm.setLocal(mNode, toMatrix(local));
+            }
+        }
+
+
+        Matrix toMatrix(double[] local){
+            return new Matrix(mNRows, mNCols, local);
+        }
+
+
+        /** Dot product of two distributed vectors (in all the nodes).
+         */
+        double dot(double[] u, double[] v)
+        {
+            double sum = 0;
+            for(int i = 0; i < u.length; ++i){
+                sum += u[i] * v[i];
+            }
+            double[] res = BasicCommunication.allreduce(mNode, new double[] {sum},
+                    (double[] s1, double[] s2) -> new double[] {s1[0] + s2[0]},
+                    mInbox::receiveFrom);
+            return res[0];
+        }
+
+
+        /** A*x on the local block. The edges of the block are sent to the
+         * neighbours and their edges received by auxiliary threads, while
+         * this thread computes the interior of the block (which does not need
+         * the halo); then the edges of the block are computed.
+         */
+        double[] applyStencil(double[] x, double diag, double offDiag)
+        {
+            double[] y = new double[x.length];
+            if(mNRows == 0 || mNCols == 0){
+                return y;
+            }
+
+            double[][] edges = {
+                Arrays.copyOfRange(x, 0, mNCols),
+                Arrays.copyOfRange(x, (mNRows - 1)*mNCols, mNRows*mNCols),
+                column(x, 0),
+                column(x, mNCols - 1)
+            };
+            Thread[] senders = new Thread[4];
+            for(int dir = 0; dir < 4; ++dir){
+                int destId = mNeighbourIds[dir];
+                if(destId >= 0){
+                    double[] edge = edges[dir];
+                    senders[dir] = new Thread(() -> mNode.send(destId, edge));
+                    senders[dir].start();
+                }
+            }
+            double[][] halo = new double[4][];
+            Thread receiver = new Thread(() -> {
+                for(int dir = 0; dir < 4; ++dir){
+                    halo[dir] = (mNeighbourIds[dir] >= 0) ?
+                            mInbox.receiveFrom(mNeighbourIds[dir]) :
+                            new double[(dir == NORTH || dir == SOUTH) ? mNCols : mNRows];
+                }
+            });
+            receiver.start();
+
+            for(int i = 1; i < mNRows - 1; ++i){
+                for(int j = 1; j < mNCols - 1; ++j){
+                    int ij = i*mNCols + j;
+                    y[ij] = diag*x[ij] + offDiag*(x[ij - mNCols] + x[ij + mNCols]
+                                                  + x[ij - 1] + x[ij + 1]);
+                }
+            }
+
+            join(receiver);
+            for(int j = 0; j < mNCols; ++j){
+                y[j] = stencilAt(x, halo, 0, j, diag, offDiag);
+                int last = (mNRows - 1)*mNCols + j;
+                y[last] = stencilAt(x, halo, mNRows - 1, j, diag, offDiag);
+            }
+            for(int i = 1; i < mNRows - 1; ++i){
+                y[i*mNCols] = stencilAt(x, halo, i, 0, diag, offDiag);
+                y[i*mNCols + mNCols - 1] = stencilAt(x, halo, i, mNCols - 1, diag, offDiag);
+            }
+            for(Thread sender : senders){
+                if(sender != null){
+                    join(sender);
+                }
+            }
+            return y;
+        }
+
+
+        /** The stencil at (i,j), with the halo used outside of the block.
+         * Sums the neighbours in the same order as the interior loop.
+         */
+        private double stencilAt(double[] x, double[][] halo, int i, int j,
+                double diag, double offDiag)
+        {
+            int ij = i*mNCols + j;
+            double north = (i > 0) ? x[ij - mNCols] : halo[NORTH][j];
+            double south = (i < mNRows - 1) ? x[ij + mNCols] : halo[SOUTH][j];
+            double west = (j > 0) ? x[ij - 1] : halo[WEST][i];
+            double east = (j < mNCols - 1) ? x[ij + 1] : halo[EAST][i];
+            return diag*x[ij] + offDiag*(north + south + west + east);
+        }
+
+
+        private double[] column(double[] x, int j){
+            double[] col = new double[mNRows];
+            for(int i = 0; i < mNRows; ++i){
+                col[i] = x[i*mNCols + j];
+            }
+            return col;
+        }
+    }
+
+
+    /** Receives messages from given sources. Messages from other sources
+     * that arrive in the meantime (e.g. the halo of the next iteration from
+     * a neighbour that has already finished an allreduce) are kept until
+     * they are asked for; the messages from one source are taken in the
+     * order in which they were sent.
+     */
+    private static final class Inbox {
+        private final Node mNode;
+        private final HashMap<Integer, ArrayDeque<double[]>> mPending = new HashMap<>();
+
+        Inbox(Node node){
+            mNode = node;
+        }
+
+        double[] receiveFrom(int srcId)
+        {
+            ArrayDeque<double[]> pending = mPending.get(srcId);
+            if(pending != null && !pending.isEmpty()){
+                return pending.pollFirst();
+            }
+            while(true){
+                DataPacket dp = mNode.receive();
+                if(dp.getSourceId() == srcId){
+                    return dp.getData();
+                }
+                mPending.computeIfAbsent(dp.getSourceId(),
+                        (Integer id) -> new ArrayDeque<>()).addLast(dp.getData());
+            }
+        }
+    }
+
+
+    /** The grid has to be in the block layout with non-empty blocks, and the
+     * other vector in the same layout.
+     */
+    private static void checkGridLayout(DistributedMatrix grid,
+            DistributedMatrix other)
+    {
+        if(grid.getNRows() != other.getNRows() || grid.getNCols() != other.getNCols()
+                || grid.getMeshRowCount() != other.getMeshRowCount()
+                || grid.getMeshColCount() != other.getMeshColCount()
+                || grid.getRowBlockSize() != other.getRowBlockSize()
+                || grid.getColBlockSize() != other.getColBlockSize()){
+            throw new RuntimeException("Vectors of the grid have different layouts.");
+        }
+        if((long) grid.getRowBlockSize() * grid.getMeshRowCount() < grid.getNRows()
+                || (long) grid.getColBlockSize() * grid.getMeshColCount() < grid.getNCols()){
+            throw new RuntimeException("The grid has to be distributed in the block layout.");
+        }
+        if(grid.getLocalNRows(grid.getMeshRowCount() - 1) == 0
+                || grid.getLocalNCols(grid.getMeshColCount() - 1) == 0){
+            throw new RuntimeException("Every node of the mesh has to get a part of the grid.");
+        }
+    }
+
+
+    private static void join(Thread thread)
+    {
+        try {
+            thread.join();
+        } catch (InterruptedException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+}
@@ -5,10 +5,20 @@
 
 package algorithms.distributed;
 
+import algorithms.shared.MatrixOperationsSM;
 import datastructures.Matrix;
 import distributedmodel.DataPacket;
+import distributedmodel.DistributedMatrix;
 import distributedmodel.Node;
 import distributedmodel.Topology;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.IntFunction;
+import java.util.function.IntPredicate;
+import java.util.function.IntUnaryOperator;
 
 /**
  *
@@ -16,16 +26,535 @@ import distributedmodel.Topology;
  */
 public class MatrixOperations {
     
+    public static final int DEFAULT_SUMMA_PANEL_WIDTH = 8;
     
+    /** How many received panels may wait for the multiplication in SUMMA.
+     */
+    private static final int SUMMA_LOOKAHEAD = 2;
+    
+    
+    /** Cannon's algorithm: C = A*B on a sqrt(p) x sqrt(p) mesh (wrapped
+     * around, i.e. a torus). Node (i,j) starts with blocks A_ij and B_ij (in
+     * node.A and node.B) and ends with C_ij in node.C. The matrices do not
+     * have to be square - only the mesh does.
+     *      After the initial skew (row i of A is shifted left by i, column j
+     * of B is shifted up by j), node (i,j) holds A_ik and B_kj with the same
+     * k; in each of the sqrt(p) steps it adds their product to C_ij and
+     * passes A one node left and B one node up. Every node thus sends and
+     * receives O(n^2/sqrt(p)) elements in total.
+     *      The shift for the next step is done by an auxiliary thread while
+     * the node multiplies the current blocks, so the communication time is
+     * overlapped with the computations.
+     *      If the node has a compute pool (a hybrid system, see
+     * DSConfig.getComputePoolSize()), the local products are computed by the
+     * pool with the parallel tiled multiplication.
+     *      At the end node.A and node.B hold the blocks in their shifted (not
+     * the original) positions.
+     * 
+     * @param node 
+     */
     public static void multiplySquareMtxSimple(Node node)
     {
+        int meshSideSize = (int) Math.sqrt(node.getNumberOfAllNodes());
+        Matrix[] abc = cannonSteps(node, node.A, node.B, meshSideSize, 0,
+                0, meshSideSize, meshSideSize);
+        node.A = abc[0];
+        node.B = abc[1];
+        node.C = abc[2];
+    }
+    
+    
+    /** 2.5D (communication avoiding) matrix multiplication: C = A*B on
+     * p = q*q*nLayers nodes arranged in nLayers layers of q x q meshes. Node
+     * (i,j) of layer k has id k*q*q + i*q + j. The nodes of layer 0 start with
+     * blocks A_ij and B_ij (as in Cannon's algorithm, e.g. scattered with
+     * DistributedSystem.scatterDistributedMatrix on a q x q mesh) and end with
+     * C_ij in node.C; node.A and node.B are not changed.
+     *      The algorithm uses nLayers copies of the matrices to send less:
+     * 1) layer 0 replicates its blocks to all the layers (binomial tree along
+     *    the layers),
+     * 2) each layer does its own 1/nLayers part of the q steps of Cannon's
+     *    algorithm (layer k starts with the blocks skewed by k*q/nLayers
+     *    more), with the shifts overlapped with multiplications,
+     * 3) the partial results are summed along the layers into layer 0.
+     * Every node sends O(n^2/sqrt(nLayers*p)) elements in the shifts, i.e.
+     * sqrt(nLayers) times less than in Cannon's algorithm on the same number
+     * of nodes, at the cost of nLayers times more memory and the (logarithmic)
+     * replication and reduction. nLayers = 1 is Cannon's algorithm; if q is
+     * not divisible by nLayers, some layers do one step more.
+     *      Only the nodes of layer 0 get the result - node.C is null in the
+     * other layers.
+     * 
+     * @param node
+     * @param nLayers   - number of copies of the matrices
+     */
+    public static void multiplyMtx25D(Node node, int nLayers)
+    {
+        int nNodes = node.getNumberOfAllNodes();
+        int meshSideSize = (nLayers < 1) ? 0 :
+                (int) Math.round(Math.sqrt(nNodes / nLayers));
+        if(nLayers < 1 || meshSideSize * meshSideSize * nLayers != nNodes){
+            throw new RuntimeException(String.format(
+                    "%d nodes cannot be arranged in %d layers of square meshes.",
+                    nNodes, nLayers));
+        }
+        int layerSize = meshSideSize * meshSideSize;
         int myId = node.getMyId();
+        int myLayer = myId / layerSize;
+        
+        //1) replication: in round d, layers [0, d) pass their blocks to
+        //layers [d, 2d)
+        Matrix a = node.A;
+        Matrix b = node.B;
+        for(int d = 1; d < nLayers; d <<= 1){
+            if(myLayer < d && myLayer + d < nLayers){
+                node.send(myId + d*layerSize, a.serialize());
+                node.send(myId + d*layerSize, b.serialize());
+            }else if(myLayer >= d && myLayer < 2*d){
+                a = Matrix.deserialize(node.receive().getData());
+                b = Matrix.deserialize(node.receive().getData());
+            }
+        }
+        node.synchronizeDS();
+        
+        //2) a part of Cannon's algorithm in each layer
+        int firstStep = (meshSideSize * myLayer) / nLayers;
+        int nSteps = (meshSideSize * (myLayer + 1)) / nLayers - firstStep;
+        int nStepsMax = (meshSideSize + nLayers - 1) / nLayers;
+        Matrix c = cannonSteps(node, a, b, meshSideSize, myLayer*layerSize,
+                firstStep, nSteps, nStepsMax)[2];
+        
+        //3) reduction along the layers - in round d, layer k (k mod 2d = d)
+        //sends its sum to layer k-d; the order of receiving does not matter
+        for(int d = 1; d < nLayers; d <<= 1){
+            if(myLayer % (2*d) == d){
+                node.send(myId - d*layerSize, c.serialize());
+                c = null;
+                break;
+            }else if(myLayer + d < nLayers){
+                c.addInPlace(Matrix.deserialize(node.receive().getData()));
+            }
+        }
+        node.C = c;
+    }
+    
+    
+    /** Steps [firstStep, firstStep + nSteps) of Cannon's algorithm on a
+     * meshSideSize x meshSideSize mesh of nodes with ids starting from
+     * idOffset. The node (i,j) of the mesh starts with A_ij and B_ij, which
+     * are skewed so that it holds A_ik and B_kj with k = i + j + firstStep.
+     *      As the shifts are separated by system-wide barriers, every node of
+     * the system has to call this with the same nStepsMax (the greatest
+     * nSteps of all the meshes).
+     * 
+     * @return  - {A, B, C}: the blocks of A and B after the shifts, and the sum
+     * of the products of the nSteps pairs of blocks
+     */
+    private static Matrix[] cannonSteps(Node node, Matrix a, Matrix b,
+            int meshSideSize, int idOffset, int firstStep, int nSteps,
+            int nStepsMax)
+    {
+        int myMeshId = node.getMyId() - idOffset;
+        int myRow = Topology.meshRowOfId(myMeshId, meshSideSize);
+        int myCol = Topology.meshColOfId(myMeshId, meshSideSize);
+        
+        //initial skew - A_ij goes to (i, j-i-firstStep),
+        //B_ij goes to (i-j-firstStep, j)
+        int aSkew = (nSteps > 0) ? myRow + firstStep : 0;
+        int bSkew = (nSteps > 0) ? myCol + firstStep : 0;
+        a = shiftBlock(node, a,
+                idOffset + meshNeighbourId(myRow, myCol, 0, -aSkew,
+                        meshSideSize, meshSideSize),
+                idOffset + meshNeighbourId(myRow, myCol, 0, aSkew,
+                        meshSideSize, meshSideSize));
+        node.synchronizeDS();
+        b = shiftBlock(node, b,
+                idOffset + meshNeighbourId(myRow, myCol, -bSkew, 0,
+                        meshSideSize, meshSideSize),
+                idOffset + meshNeighbourId(myRow, myCol, bSkew, 0,
+                        meshSideSize, meshSideSize));
+        node.synchronizeDS();
+        
+        Matrix c = new Matrix(a.getNRows(), b.getNCols());
+        int leftId = idOffset + meshNeighbourId(myRow, myCol, 0, -1, meshSideSize, meshSideSize);
+        int rightId = idOffset + meshNeighbourId(myRow, myCol, 0, 1, meshSideSize, meshSideSize);
+        int upId = idOffset + meshNeighbourId(myRow, myCol, -1, 0, meshSideSize, meshSideSize);
+        int downId = idOffset + meshNeighbourId(myRow, myCol, 1, 0, meshSideSize, meshSideSize);
+        
+        for(int step = 0; step < nStepsMax; ++step){
+            final boolean shift = step < nSteps - 1;
+            final Matrix aToSend = a;
+            final Matrix bToSend = b;
+            final Matrix[] shifted = new Matrix[2];
+            Thread shifter = null;
+            if(step < nStepsMax - 1){
+                shifter = new Thread(() -> {
+                    shifted[0] = shift ? shiftBlock(node, aToSend, leftId, rightId) : null;
+                    node.synchronizeDS();
+                    shifted[1] = shift ? shiftBlock(node, bToSend, upId, downId) : null;
+                    node.synchronizeDS();
+                });
+                shifter.start();
+            }
+            
+            if(step < nSteps){
+                c.addInPlace(multiplyLocal(node, a, b));
+            }
+            
+            if(shifter != null){
+                join(shifter);
+                if(shift){
+                    a = shifted[0];
+                    b = shifted[1];
+                }
+            }
+        }
+        return new Matrix[] {a, b, c};
+    }
+    
+    
+    /** Sends the block to destId and returns the block received from srcId
+     * (see sendReceive); does not communicate if destId is the node itself.
+     */
+    private static Matrix shiftBlock(Node node, Matrix block, int destId,
+            int srcId)
+    {
+        if(destId == node.getMyId()){
+            return block;
+        }
+        return Matrix.deserialize(sendReceive(node, destId, block.serialize(),
+                srcId));
+    }
+
+    
+    
+    /** SUMMA with the default panel width on a sqrt(p) x sqrt(p) mesh.
+     * 
+     * @param node 
+     */
+    public static void multiplyMtxSUMMA(Node node)
+    {
         int meshSideSize = (int) Math.sqrt(node.getNumberOfAllNodes());
-        int myRow = Topology.meshRowOfId(myId, meshSideSize);
-        int myCol = Topology.meshColOfId(myId, meshSideSize);
+        multiplyMtxSUMMA(node, meshSideSize, meshSideSize,
+                DEFAULT_SUMMA_PANEL_WIDTH);
+    }
+    
+    
+    /** SUMMA (Scalable Universal Matrix Multiplication Algorithm): C = A*B on
+     * a meshRowCount x meshColCount mesh, for rectangular matrices. Node (i,j)
+     * starts with blocks A_ij and B_ij (as done by
+     * DistributedSystem.scatterDistributedMatrix with the same mesh) and ends
+     * with C_ij in node.C; A and B are not changed.
+     *      The inner dimension is cut into panels of at most panelWidth
+     * columns of A (rows of B), so that no panel crosses a block boundary. For
+     * every panel, the nodes owning its part of A broadcast it along their
+     * mesh rows, the nodes owning its part of B broadcast it along their mesh
+     * columns, and every node adds the product of the two received panels to
+     * C_ij.
+     *      The broadcasts are pipelined: a panel is passed around the row
+     * (column) ring from node to node, and each node forwards it as soon as it
+     * gets it, so the next panel can already enter the ring while the
+     * previous one is still travelling, and the panels received in advance
+     * are multiplied while the next ones arrive. Smaller panels give a
+     * longer pipeline, but more messages.
+     * 
+     * @param node
+     * @param meshRowCount
+     * @param meshColCount
+     * @param panelWidth    - maximal width of a panel
+     */
+    public static void multiplyMtxSUMMA(Node node, int meshRowCount,
+            int meshColCount, int panelWidth)
+    {
+        if(meshRowCount * meshColCount != node.getNumberOfAllNodes()){
+            throw new RuntimeException(String.format(
+                    "Mesh %d x %d does not match the number of nodes %d.",
+                    meshRowCount, meshColCount, node.getNumberOfAllNodes()));
+        }
+        if(panelWidth < 1){
+            throw new RuntimeException("Panel width must be positive.");
+        }
+        int myId = node.getMyId();
+        int myRow = Topology.meshRowOfId(myId, meshColCount);
+        int myCol = Topology.meshColOfId(myId, meshColCount);
+        Matrix a = node.A;
+        Matrix b = node.B;
+        int aBlockNCols = a.getNCols();
+        int bBlockNRows = b.getNRows();
+        int innerSize = aBlockNCols * meshColCount;
+        if(innerSize != bBlockNRows * meshRowCount){
+            throw new RuntimeException("Matrices inner sizes mismatch");
+        }
+        
+        int[] panelStarts = summaPanelStarts(innerSize, aBlockNCols,
+                bBlockNRows, panelWidth);
+        int nPanels = panelStarts.length - 1;
+        IntUnaryOperator aOwnerCol = (int p) -> panelStarts[p] / aBlockNCols;
+        IntUnaryOperator bOwnerRow = (int p) -> panelStarts[p] / bBlockNRows;
+        
+        int leftId = meshNeighbourId(myRow, myCol, 0, -1, meshRowCount, meshColCount);
+        int rightId = meshNeighbourId(myRow, myCol, 0, 1, meshRowCount, meshColCount);
+        int upId = meshNeighbourId(myRow, myCol, -1, 0, meshRowCount, meshColCount);
+        int downId = meshNeighbourId(myRow, myCol, 1, 0, meshRowCount, meshColCount);
+        
+        //the inbox receives everything addressed to the node and sorts it by
+        //sender, so the row and column pipelines do not block each other
+        int nFromLeft = 0;
+        int nFromUp = 0;
+        for(int p = 0; p < nPanels; ++p){
+            nFromLeft += (aOwnerCol.applyAsInt(p) != myCol) ? 1 : 0;
+            nFromUp += (bOwnerRow.applyAsInt(p) != myRow) ? 1 : 0;
+        }
+        BlockingQueue<double[]> fromLeft = new LinkedBlockingQueue<>();
+        BlockingQueue<double[]> fromUp = new LinkedBlockingQueue<>();
+        int nExpected = nFromLeft + nFromUp;
+        Thread inbox = new Thread(() -> {
+            for(int i = 0; i < nExpected; ++i){
+                DataPacket dp = node.receive();
+                if(dp.getSourceId() == leftId){
+                    put(fromLeft, dp.getData());
+                }else if(dp.getSourceId() == upId){
+                    put(fromUp, dp.getData());
+                }else{
+                    throw new RuntimeException(String.format(
+                            "Node %d got unexpected data from node %d.",
+                            myId, dp.getSourceId()));
+                }
+            }
+        });
+        
+        BlockingQueue<Matrix> aPanels = new ArrayBlockingQueue<>(SUMMA_LOOKAHEAD);
+        BlockingQueue<Matrix> bPanels = new ArrayBlockingQueue<>(SUMMA_LOOKAHEAD);
+        Thread rowPipeline = startPanelPipeline(node, nPanels,
+                (int p) -> aOwnerCol.applyAsInt(p) != myCol ? null :
+                        a.getSubmatrix(0, panelStarts[p] - myCol*aBlockNCols,
+                            a.getNRows(), panelStarts[p+1] - panelStarts[p]),
+                (int p) -> Math.floorMod(myCol + 1, meshColCount) != aOwnerCol.applyAsInt(p),
+                fromLeft, rightId, aPanels);
+        Thread colPipeline = startPanelPipeline(node, nPanels,
+                (int p) -> bOwnerRow.applyAsInt(p) != myRow ? null :
+                        b.getSubmatrix(panelStarts[p] - myRow*bBlockNRows, 0,
+                            panelStarts[p+1] - panelStarts[p], b.getNCols()),
+                (int p) -> Math.floorMod(myRow + 1, meshRowCount) != bOwnerRow.applyAsInt(p),
+                fromUp, downId, bPanels);
+        inbox.start();
+        
+        Matrix c = new Matrix(a.getNRows(), b.getNCols());
+        for(int p = 0; p < nPanels; ++p){
+            c.addInPlace(multiplyLocal(node, take(aPanels), take(bPanels)));
+        }
+        
+        join(rowPipeline);
+        join(colPipeline);
+        join(inbox);
+        node.C = c;
+    }
+    
+    
+    /** Starts a thread passing consecutive panels along a ring of nodes: for
+     * each panel it takes the node's own panel or the one received from the
+     * previous node of the ring, forwards it to the next node (unless the next
+     * one is the owner, i.e. the ring is closed) and hands it over to the
+     * computations.
+     */
+    private static Thread startPanelPipeline(Node node, int nPanels,
+            IntFunction<Matrix> ownPanel, IntPredicate forward,
+            BlockingQueue<double[]> received, int nextId,
+            BlockingQueue<Matrix> panels)
+    {
+        Thread pipeline = new Thread(() -> {
+            for(int p = 0; p < nPanels; ++p){
+                Matrix panel = ownPanel.apply(p);
+                double[] data = (panel != null) ? panel.serialize() : take(received);
+                if(forward.test(p)){
+                    node.send(nextId, data);
+                }
+                put(panels, (panel != null) ? panel : Matrix.deserialize(data));
+            }
+        });
+        pipeline.start();
+        return pipeline;
+    }
+    
+    
+    /** Cuts [0, innerSize) into panels of at most panelWidth, not crossing the
+     * boundaries of the column blocks of A and the row blocks of B.
+     * 
+     * @return  - starts of the panels, followed by innerSize
+     */
+    private static int[] summaPanelStarts(int innerSize, int aBlockNCols,
+            int bBlockNRows, int panelWidth)
+    {
+        int[] starts = new int[innerSize + 1];
+        int nPanels = 0;
+        for(int k = 0; k < innerSize; ){
+            starts[nPanels++] = k;
+            int aBlockEnd = (k / aBlockNCols + 1) * aBlockNCols;
+            int bBlockEnd = (k / bBlockNRows + 1) * bBlockNRows;
+            k = Math.min(k + panelWidth, Math.min(aBlockEnd, bBlockEnd));
+        }
+        starts[nPanels] = innerSize;
+        return Arrays.copyOf(starts, nPanels + 1);
+    }
+    
+    
+    /** Distributes a matrix from node rootId to the nodes of the mesh of dm
+     * through the network (scatterv along a binomial tree), so that the cost
+     * of the distribution is part of the measured time. Every node of the
+     * system has to call it; the nodes of the mesh get their local parts
+     * (stored under the name of dm), the others only pass data on. The nodes
+     * are not synchronized at the end - call node.synchronizeDS() before any
+     * other communication that could be mistaken for a part of the scatter.
+     * 
+     * @param node
+     * @param global    - the whole matrix - only meaningful for the root
+     * @param dm
+     * @param rootId 
+     */
+    public static void scatterMatrix(Node node, Matrix global,
+            DistributedMatrix dm, int rootId)
+    {
+        int nNodes = node.getNumberOfAllNodes();
+        int[] counts = new int[nNodes];
+        for(int n = 0; n < nNodes; ++n){
+            counts[n] = dm.getLocalLength(n);
+        }
+        double[] data = null;
+        if(node.getMyId() == rootId){
+            double[] globalData = global.getMatrixRowwise();
+            data = new double[dm.getNRows() * dm.getNCols()];
+            for(int n = 0, pos = 0; n < dm.getNumberOfMeshNodes(); ++n){
+                System.arraycopy(dm.extractLocalRowwise(globalData, n), 0,
+                        data, pos, counts[n]);
+                pos += counts[n];
+            }
+        }
+        
+        double[] myPart = BasicCommunication.scatterv(node, data, counts, rootId);
         
-        // TODO
-        // ...
+        int myId = node.getMyId();
+        if(myId < dm.getNumberOfMeshNodes()){
+            dm.setLocal(node, new Matrix(
+                    dm.getLocalNRows(Topology.meshRowOfId(myId, dm.getMeshColCount())),
+                    dm.getLocalNCols(Topology.meshColOfId(myId, dm.getMeshColCount())),
+                    myPart));
+        }
+    }
+    
+    
+    /** Reverse of scatterMatrix - gathers the local parts of dm in node
+     * rootId through the network (gatherv along a binomial tree).
+     * 
+     * @param node
+     * @param dm
+     * @param rootId
+     * @return      - the whole matrix in the root, null in the other nodes
+     */
+    public static Matrix collectMatrix(Node node, DistributedMatrix dm,
+            int rootId)
+    {
+        int nNodes = node.getNumberOfAllNodes();
+        int[] counts = new int[nNodes];
+        for(int n = 0; n < nNodes; ++n){
+            counts[n] = dm.getLocalLength(n);
+        }
+        double[] myPart = (node.getMyId() < dm.getNumberOfMeshNodes()) ?
+                dm.getLocal(node).getMatrixRowwise() : new double[0];
         
+        double[] data = BasicCommunication.gatherv(node, myPart, counts, rootId);
+        
+        if(data == null){
+            return null;
+        }
+        double[] globalData = new double[dm.getNRows() * dm.getNCols()];
+        for(int n = 0, pos = 0; n < dm.getNumberOfMeshNodes(); ++n){
+            dm.insertLocalRowwise(globalData, n,
+                    Arrays.copyOfRange(data, pos, pos + counts[n]));
+            pos += counts[n];
+        }
+        return new Matrix(dm.getNRows(), dm.getNCols(), globalData);
+    }
+    
+    
+    /** Product of local blocks - computed by the compute pool of the node
+     * (with the parallel tiled multiplication) if it has one, otherwise in the
+     * calling thread. Both give equal results.
+     */
+    private static Matrix multiplyLocal(Node node, Matrix a, Matrix b)
+    {
+        ForkJoinPool pool = node.getComputePool();
+        if(pool == null){
+            return a.times(b);
+        }
+        return MatrixOperationsSM.multiplyMtx(a, b, pool);
+    }
+    
+    
+    /** Id of the node shifted by (dRow, dCol) from (row, col) in a wrapped
+     * around mesh.
+     */
+    private static int meshNeighbourId(int row, int col, int dRow, int dCol,
+            int meshRowCount, int meshColCount)
+    {
+        int r = Math.floorMod(row + dRow, meshRowCount);
+        int c = Math.floorMod(col + dCol, meshColCount);
+        return Topology.meshCoordsToId(r, c, meshColCount);
+    }
+    
+    
+    /** Sends data to destId and at the same time receives data from srcId.
+     * The send is done by an auxiliary thread, so that a cycle of nodes
+     * calling this method (e.g. a cyclic shift) does not deadlock on the
+     * synchronous channels. Sending to (and receiving from) itself returns
+     * the data.
+     *      Only one message may be addressed to the node while this method
+     * runs.
+     */
+    private static double[] sendReceive(Node node, int destId, double[] data,
+            int srcId)
+    {
+        if(destId == node.getMyId()){
+            return data;
+        }
+        Thread sender = new Thread(() -> node.send(destId, data));
+        sender.start();
+        DataPacket dp = node.receive();
+        join(sender);
+        if(dp.getSourceId() != srcId){
+            throw new RuntimeException(String.format(
+                    "Node %d expected data from node %d, but got from %d.",
+                    node.getMyId(), srcId, dp.getSourceId()));
+        }
+        return dp.getData();
+    }
+    
+    
+    private static <T> T take(BlockingQueue<T> queue)
+    {
+        try {
+            return queue.take();
+        } catch (InterruptedException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+    
+    
+    private static <T> void put(BlockingQueue<T> queue, T element)
+    {
+        try {
+            queue.put(element);
+        } catch (InterruptedException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+    
+    
+    private static void join(Thread thread)
+    {
+        try {
+            thread.join();
+        } catch (InterruptedException ex) {
+            throw new RuntimeException(ex);
+        }
     }
 }
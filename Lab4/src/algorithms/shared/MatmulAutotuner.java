@@ -0,0 +1,398 @@
+/*
+ *  This code is for Parallel and Distributed Algorithms
+ *  laboratory at Gdansk University of Technology
+ */
+
+package algorithms.shared;
+
+import datastructures.Matrix;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/** Chooses the parameters of MatrixOperationsSM.multiplyMtx(a, b) - the grid
+ * of parts, the tile size and the cache block - for the current machine.
+ *      Products are grouped into shape classes (each of m, n, k rounded up to
+ * a power of two). On the first product of a class the candidates are
+ * benchmarked on random matrices of the class shape and the fastest one is
+ * kept - in memory and in a small profile file, so the next runs on the same
+ * machine do not benchmark again. The search is greedy: first the cache
+ * block, then the grid, then the tile size, each with the winners of the
+ * previous steps fixed.
+ *      The crossover of MatrixOperationsSM.multiplyMtxStrassen(a, b) is tuned
+ * the same way, once per machine, on its first use.
+ *      The profile file is given by the system property matmul.profile
+ * (default: PROFILE_FILE_NAME in the home directory - a separate one for
+ * each lab project). It is ignored if it was written on a machine with a
+ * different number of cores or architecture. Entries that are not ours
+ * (e.g. written by another version of this class sharing the file) are
+ * left alone - neither parsed nor dropped when the profile is saved.
+ * Setting the system property matmul.autotune to false turns the benchmarks
+ * off - the defaults are used for all shapes.
+ *      The benchmarks run in the thread that makes the first product of a
+ * class, and take up to a few seconds. So the first product should be made
+ * before the timed part of a test, from a single thread - not from many
+ * concurrent nodes, which would both slow the benchmarks down and include
+ * them in the measured times.
+ *
+ * @author Karol Draszawka <kadr@eti.pg.gda.pl>
+ */
+final class MatmulAutotuner {
+
+    /** Parameters of a parallel multiplication.
+     */
+    static final class Config {
+        final int block;
+        final long tileWork;
+        final int gridRows, gridCols;
+
+        Config(int block, long tileWork, int gridRows, int gridCols){
+            this.block = block;
+            this.tileWork = tileWork;
+            this.gridRows = gridRows;
+            this.gridCols = gridCols;
+        }
+
+        @Override
+        public String toString(){
+            return block + "," + tileWork + "," + gridRows + "," + gridCols;
+        }
+
+        static Config parse(String s){
+            String[] f = s.split(",");
+            if(f.length != 4){
+                throw new NumberFormatException("Bad autotuner config: " + s);
+            }
+            Config cfg = new Config(Integer.parseInt(f[0].trim()), Long.parseLong(f[1].trim()),
+                    Integer.parseInt(f[2].trim()), Integer.parseInt(f[3].trim()));
+            if(cfg.block < 1 || cfg.tileWork < 1 || cfg.gridRows < 1 || cfg.gridCols < 1){
+                throw new NumberFormatException("Bad autotuner config: " + s);
+            }
+            return cfg;
+        }
+    }
+
+    private static final int[] BLOCK_CANDIDATES = {32, 64, 128};
+    private static final long[] TILE_WORK_CANDIDATES = {1 << 14, 1 << 16, 1 << 18};
+
+    /** Shape classes above 2^MAX_SHAPE_LOG in a dimension are merged, and the
+     * benchmark matrices are at most MAX_BENCH_DIM in every dimension, so
+     * tuning a class takes at most a few seconds.
+     */
+    private static final int MAX_SHAPE_LOG = 12;
+    private static final int MAX_BENCH_DIM = 384;
+    private static final int N_BENCH_RUNS = 3;
+
+    private static final int[] STRASSEN_CROSSOVER_CANDIDATES = {64, 128, 256};
+    private static final int STRASSEN_BENCH_DIM = 512;
+
+    private static final String PROFILE_FILE_NAME = ".matmul_profile_lab4.properties";
+    private static final String MACHINE_KEY = "machine";
+    private static final String STRASSEN_CROSSOVER_KEY = "strassen.crossover";
+
+    /** 0 until tuned (or loaded from the profile). Declared before mProfile,
+     * which sets it while loading.
+     */
+    private static volatile int mStrassenCrossover;
+
+    private static final ConcurrentHashMap<String, Config> mProfile = loadProfile();
+
+
+    private MatmulAutotuner(){
+    }
+
+
+    /** Returns the parameters for C[m x n] = A[m x k] * B[k x n], tuning
+     * them first if this is the first product of its shape class.
+     *
+     * @param m
+     * @param n
+     * @param k
+     * @return
+     */
+    static Config getConfig(int m, int n, int k)
+    {
+        if((long) m * n * k < MatrixOperationsSM.MIN_PARALLEL_WORK
+                || !isEnabled()){
+            return defaultConfig();
+        }
+        String key = shapeKey(m, n, k);
+        Config cfg = mProfile.get(key);
+        return (cfg != null) ? cfg : tune(key, m, n, k);
+    }
+
+
+    /** The grid is the most square factorization of the parallelism of the
+     * common pool.
+     */
+    static Config defaultConfig()
+    {
+        int nParts = ForkJoinPool.commonPool().getParallelism();
+        int gridRows = (int) Math.sqrt(nParts);
+        while(nParts % gridRows != 0){
+            --gridRows;
+        }
+        return new Config(MatrixOperationsSM.GEMM_BLOCK, MatrixOperationsSM.TILE_WORK,
+                gridRows, nParts / gridRows);
+    }
+
+
+    /** Returns the crossover size of the Strassen-Winograd multiplication,
+     * tuning it first if it has not been tuned on this machine yet.
+     *
+     * @return
+     */
+    static int getStrassenCrossover()
+    {
+        if(!isEnabled()){
+            return MatrixOperationsSM.DEFAULT_STRASSEN_CROSSOVER;
+        }
+        int crossover = mStrassenCrossover;
+        return (crossover > 0) ? crossover : tuneStrassenCrossover();
+    }
+
+
+    private static boolean isEnabled(){
+        return !"false".equalsIgnoreCase(System.getProperty("matmul.autotune"));
+    }
+
+
+    private static synchronized Config tune(String key, int m, int n, int k)
+    {
+        Config cfg = mProfile.get(key);   //tuned by another thread meanwhile
+        if(cfg != null){
+            return cfg;
+        }
+        Random rnd = new Random(m ^ ((long) n << 21) ^ ((long) k << 42));
+        Matrix a = randomMatrix(benchDim(m), benchDim(k), rnd);
+        Matrix b = randomMatrix(benchDim(k), benchDim(n), rnd);
+
+        Config best = defaultConfig();
+        long bestTime = benchmark(a, b, best);
+        for(int block : BLOCK_CANDIDATES){
+            Config c = new Config(block, best.tileWork, best.gridRows, best.gridCols);
+            long t = benchmark(a, b, c);
+            if(t < bestTime){
+                best = c;
+                bestTime = t;
+            }
+        }
+        for(int[] grid : gridCandidates(ForkJoinPool.commonPool().getParallelism())){
+            Config c = new Config(best.block, best.tileWork, grid[0], grid[1]);
+            long t = benchmark(a, b, c);
+            if(t < bestTime){
+                best = c;
+                bestTime = t;
+            }
+        }
+        for(long tileWork : TILE_WORK_CANDIDATES){
+            Config c = new Config(best.block, tileWork, best.gridRows, best.gridCols);
+            long t = benchmark(a, b, c);
+            if(t < bestTime){
+                best = c;
+                bestTime = t;
+            }
+        }
+        mProfile.put(key, best);
+        saveProfile();
+        return best;
+    }
+
+
+    private static synchronized int tuneStrassenCrossover()
+    {
+        if(mStrassenCrossover > 0){   //tuned by another thread meanwhile
+            return mStrassenCrossover;
+        }
+        Random rnd = new Random(STRASSEN_BENCH_DIM);
+        Matrix a = randomMatrix(STRASSEN_BENCH_DIM, STRASSEN_BENCH_DIM, rnd);
+        Matrix b = randomMatrix(STRASSEN_BENCH_DIM, STRASSEN_BENCH_DIM, rnd);
+
+        int best = MatrixOperationsSM.DEFAULT_STRASSEN_CROSSOVER;
+        long bestTime = Long.MAX_VALUE;
+        for(int crossover : STRASSEN_CROSSOVER_CANDIDATES){
+            long t = Long.MAX_VALUE;
+            for(int run = 0; run <= N_BENCH_RUNS; ++run){
+                long t0 = System.nanoTime();
+                MatrixOperationsSM.multiplyMtxStrassen(a, b, crossover);
+                if(run > 0){
+                    t = Math.min(t, System.nanoTime() - t0);
+                }
+            }
+            if(t < bestTime){
+                best = crossover;
+                bestTime = t;
+            }
+        }
+        mStrassenCrossover = best;
+        saveProfile();
+        return best;
+    }
+
+
+    /** Best time [ns] of N_BENCH_RUNS runs, after a warm-up run.
+     */
+    private static long benchmark(Matrix a, Matrix b, Config cfg)
+    {
+        long best = Long.MAX_VALUE;
+        for(int run = 0; run <= N_BENCH_RUNS; ++run){
+            long t0 = System.nanoTime();
+            MatrixOperationsSM.multiplyMtx(a, b, cfg.gridRows, cfg.gridCols,
+                    ForkJoinPool.commonPool(), cfg.block, cfg.tileWork);
+            long t = System.nanoTime() - t0;
+            if(run > 0){
+                best = Math.min(best, t);
+            }
+        }
+        return best;
+    }
+
+
+    /** All the grids r x c with r*c == nParts.
+     */
+    private static ArrayList<int[]> gridCandidates(int nParts)
+    {
+        ArrayList<int[]> grids = new ArrayList<>();
+        for(int r = 1; r <= nParts; ++r){
+            if(nParts % r == 0){
+                grids.add(new int[]{r, nParts / r});
+            }
+        }
+        return grids;
+    }
+
+
+    private static String shapeKey(int m, int n, int k){
+        return "m" + shapeLog(m) + ".n" + shapeLog(n) + ".k" + shapeLog(k);
+    }
+
+
+    private static boolean isShapeKey(String key){
+        return key.matches("m\\d+\\.n\\d+\\.k\\d+");
+    }
+
+
+    /** ceil(log2(dim)), at most MAX_SHAPE_LOG.
+     */
+    private static int shapeLog(int dim){
+        int log = 32 - Integer.numberOfLeadingZeros(Math.max(dim - 1, 0));
+        return Math.min(log, MAX_SHAPE_LOG);
+    }
+
+
+    private static int benchDim(int dim){
+        return Math.min(1 << shapeLog(dim), MAX_BENCH_DIM);
+    }
+
+
+    private static Matrix randomMatrix(int nRows, int nCols, Random rnd)
+    {
+        double[] data = new double[nRows * nCols];
+        for(int i = 0; i < data.length; ++i){
+            data[i] = rnd.nextDouble() - 0.5;
+        }
+        return new Matrix(nRows, nCols, data);
+    }
+
+
+    private static String machineKey(){
+        return Runtime.getRuntime().availableProcessors() + "-"
+                + System.getProperty("os.arch");
+    }
+
+
+    private static File profileFile(){
+        String path = System.getProperty("matmul.profile");
+        if(path == null){
+            path = new File(System.getProperty("user.home"),
+                    PROFILE_FILE_NAME).getPath();
+        }
+        return new File(path);
+    }
+
+
+    /** The entries of the profile file - none if there is no file or it was
+     * written on another machine.
+     */
+    private static Properties readProfile()
+    {
+        Properties props = new Properties();
+        File file = profileFile();
+        if(!file.isFile()){
+            return props;
+        }
+        try (InputStream in = new FileInputStream(file)){
+            props.load(in);
+        } catch (IOException ex) {
+            Logger.getLogger(MatmulAutotuner.class.getName()).log(Level.WARNING,
+                    "Cannot read the autotuning profile " + file, ex);
+            return new Properties();
+        }
+        if(!machineKey().equals(props.getProperty(MACHINE_KEY))){
+            return new Properties();    //tuned on another machine
+        }
+        return props;
+    }
+
+
+    private static ConcurrentHashMap<String, Config> loadProfile()
+    {
+        ConcurrentHashMap<String, Config> profile = new ConcurrentHashMap<>();
+        Properties props = readProfile();
+        String crossover = props.getProperty(STRASSEN_CROSSOVER_KEY);
+        if(crossover != null){
+            try{
+                int value = Integer.parseInt(crossover.trim());
+                if(value < 1){
+                    throw new NumberFormatException("Bad Strassen crossover: " + crossover);
+                }
+                mStrassenCrossover = value;
+            } catch (NumberFormatException ex) {
+                Logger.getLogger(MatmulAutotuner.class.getName()).log(Level.WARNING,
+                        "Skipping a bad entry of the autotuning profile", ex);
+            }
+        }
+        for(String key : props.stringPropertyNames()){
+            if(isShapeKey(key)){
+                try{
+                    profile.put(key, Config.parse(props.getProperty(key)));
+                } catch (NumberFormatException ex) {
+                    Logger.getLogger(MatmulAutotuner.class.getName()).log(Level.WARNING,
+                            "Skipping a bad entry of the autotuning profile", ex);
+                }
+            }
+        }
+        return profile;
+    }
+
+
+    /** Writes our entries over the current contents of the file, so the
+     * entries written by others (also after we loaded it) are kept.
+     */
+    private static void saveProfile()
+    {
+        Properties props = readProfile();
+        props.setProperty(MACHINE_KEY, machineKey());
+        if(mStrassenCrossover > 0){
+            props.setProperty(STRASSEN_CROSSOVER_KEY, Integer.toString(mStrassenCrossover));
+        }
+        mProfile.forEach((String key, Config cfg) -> props.setProperty(key, cfg.toString()));
+        File file = profileFile();
+        try (OutputStream out = new FileOutputStream(file)){
+            props.store(out, "Matrix multiplication autotuning profile");
+        } catch (IOException ex) {
+            Logger.getLogger(MatmulAutotuner.class.getName()).log(Level.WARNING,
+                    "Cannot write the autotuning profile " + file, ex);
+        }
+    }
+}
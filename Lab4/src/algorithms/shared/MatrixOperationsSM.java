@@ -6,6 +6,8 @@
 package algorithms.shared;
 
 import datastructures.Matrix;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
  *
@@ -14,77 +16,520 @@ import datastructures.Matrix;
 public class MatrixOperationsSM {
 
 
+    /** Products with fewer multiply-adds than this are computed in the calling
+     * thread - handing them over to the pool costs more than it saves.
+     */
+    static final long MIN_PARALLEL_WORK = 1 << 15;
+
+    /** Parts of the result are split into tiles until a tile needs at most
+     * this many multiply-adds (or is a single element).
+     */
+    static final long TILE_WORK = 1 << 16;
+
+    /** Parallel multiplication of two matrices.
+     *      The result is divided into a grid of nRowParts x nColParts parts
+     * (the parts at the edges may be smaller - the sizes do not need to be
+     * divisible by the grid), and every part is further split into tiles that
+     * fit in cache. The tiles are computed by the common ForkJoin pool, whose
+     * threads persist between calls and steal work from each other, so no
+     * threads are created per call. The grid only sets how the work is cut -
+     * the number of threads is the parallelism of the pool.
+     *      The elements of the result are summed in the same order as in
+     * Matrix.times(), so the results are equal.
+     *
+     * @param a
+     * @param b
+     * @param nRowParts   - number of parts along the rows
+     * @param nColParts   - number of parts along the columns
+     * @return
+     */
     public static Matrix multiplyMtx(Matrix a, Matrix b,
-                            int nThreadsPerRow, int nThreadsPerCol)
+                            int nRowParts, int nColParts)
+    {
+        return multiplyMtx(a, b, nRowParts, nColParts,
+                ForkJoinPool.commonPool());
+    }
+
+
+    /** Same as multiplyMtx(a, b, nRowParts, nColParts), but computed by a
+     * given pool, with the grid of parts matched to its parallelism. Used
+     * e.g. by nodes of a distributed system that have their own pools.
+     *
+     * @param a
+     * @param b
+     * @param pool
+     * @return
+     */
+    public static Matrix multiplyMtx(Matrix a, Matrix b, ForkJoinPool pool)
+    {
+        int nParts = pool.getParallelism();
+        int nRowParts = (int) Math.sqrt(nParts);
+        while(nParts % nRowParts != 0){
+            --nRowParts;
+        }
+        return multiplyMtx(a, b, nRowParts, nParts / nRowParts, pool);
+    }
+
+
+    /** Same as multiplyMtx(a, b, nRowParts, nColParts), but computed by a
+     * given pool.
+     *
+     * @param a
+     * @param b
+     * @param nRowParts
+     * @param nColParts
+     * @param pool
+     * @return
+     */
+    public static Matrix multiplyMtx(Matrix a, Matrix b,
+            int nRowParts, int nColParts,
+            ForkJoinPool pool)
+    {
+        return multiplyMtx(a, b, nRowParts, nColParts,
+                pool, GEMM_BLOCK, TILE_WORK);
+    }
+
+
+    /** Parallel multiplication with the grid of parts, the tile size and the
+     * cache block chosen automatically - by MatmulAutotuner, which benchmarks
+     * the candidates on the first product of a given shape class and keeps
+     * the winners in an on-disk profile (see MatmulAutotuner).
+     *
+     * @param a
+     * @param b
+     * @return
+     */
+    public static Matrix multiplyMtx(Matrix a, Matrix b)
     {
         if(a.getNCols() != b.getNRows()){
             throw new RuntimeException("Matrices inner sizes mismatch");
         }
-        if (a.getNRows()%nThreadsPerRow != 0){
-            throw new RuntimeException("nThreadsPerRow has to divide "
-                    + "the number of rows of result a.");
-        }
-        if (b.getNCols()%nThreadsPerCol != 0){
-            throw new RuntimeException("nThreadsPerCol has to divide "
-                    + "the number of columns of result b.");
-        }
+        MatmulAutotuner.Config cfg = MatmulAutotuner.getConfig(
+                a.getNRows(), b.getNCols(), a.getNCols());
+        return multiplyMtx(a, b, cfg.gridRows, cfg.gridCols,
+                ForkJoinPool.commonPool(), cfg.block, cfg.tileWork);
+    }
 
-        Thread[][] workers = new Thread[nThreadsPerRow][nThreadsPerCol];
-        final Matrix result = new Matrix(a.getNRows(), b.getNCols());
 
-        int colsPerThread = a.getNRows() / nThreadsPerCol;
-        int rowsPerThread = b.getNCols() / nThreadsPerRow;
-        for(int i = 0 ; i < nThreadsPerRow ; i ++) {
-            for(int j = 0 ; j < nThreadsPerCol ; j++) {
-                workers[i][j] = new Worker(a, b, result, i, j, rowsPerThread, colsPerThread);
-                workers[i][j].start();
-            }
+    /** The implementation of the above - with explicit block x block cache
+     * blocks and tiles of at most tileWork multiply-adds.
+     */
+    static Matrix multiplyMtx(Matrix a, Matrix b,
+            int nRowParts, int nColParts,
+            ForkJoinPool pool, int block, long tileWork)
+    {
+        if(a.getNCols() != b.getNRows()){
+            throw new RuntimeException("Matrices inner sizes mismatch");
         }
-        for(int i = 0 ; i < nThreadsPerRow ; i ++) {
-            for(int j = 0 ; j < nThreadsPerCol ; j++) {
-                try {
-                    workers[i][j].join();
-                }catch(InterruptedException ex) {
-                    throw new RuntimeException(ex);
+        if(nRowParts < 1 || nColParts < 1){
+            throw new RuntimeException("The grid of parts must not be empty.");
+        }
+        int m = a.getNRows(), k = a.getNCols(), n = b.getNCols();
+        double[] aData = a.getMatrixRowwise();
+        double[] bData = b.getMatrixRowwise();
+        double[] cData = new double[m*n];
+
+        if((long) m * n * k < MIN_PARALLEL_WORK){
+            gemmBlocked(m, n, k, aData, 0, k, bData, 0, n, cData, 0, n, block);
+        }else{
+            int nGridRows = Math.min(nRowParts, Math.max(m, 1));
+            int nGridCols = Math.min(nColParts, Math.max(n, 1));
+            TileTask[] parts = new TileTask[nGridRows * nGridCols];
+            for(int i = 0; i < nGridRows; ++i){
+                for(int j = 0; j < nGridCols; ++j){
+                    parts[i*nGridCols + j] = new TileTask(aData, bData, cData, k, n,
+                            (m*i)/nGridRows, (m*(i+1))/nGridRows,
+                            (n*j)/nGridCols, (n*(j+1))/nGridCols,
+                            block, tileWork);
                 }
             }
+            pool.invoke(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    invokeAll(parts);
+                }
+            });
         }
+        return new Matrix(m, n, cData);
+    }
 
 
-        return result;
-    }
-    public static class Worker extends Thread {
-        private Matrix a;
-        private Matrix b;
-        private Matrix result;
-        private int myRowsIndex;
-        private int myColsIndex;
-        private int rowsPerThread;
-        private int colsPerThread;
+    /** Computes rows [rowFrom, rowTo) x columns [colFrom, colTo) of C = A*B,
+     * halving the longer side until the tile is small enough.
+     */
+    @SuppressWarnings("serial")
+    private static class TileTask extends RecursiveAction {
+        private final double[] mA, mB, mC;
+        private final int mK, mN;
+        private final int mRowFrom, mRowTo, mColFrom, mColTo;
+        private final int mBlock;
+        private final long mTileWork;
 
-        public Worker(Matrix a, Matrix b, Matrix result, int myXIndex, int myYIndex, int rowsPerThread, int colsPerThread) {
-            this.a = a;
-            this.b = b;
-            this.result = result;
-            this.myRowsIndex = myYIndex * rowsPerThread;
-            this.myColsIndex = myXIndex * colsPerThread;
-            this.rowsPerThread = rowsPerThread;
-            this.colsPerThread = colsPerThread;
+        TileTask(double[] a, double[] b, double[] c, int k, int n,
+                int rowFrom, int rowTo, int colFrom, int colTo,
+                int block, long tileWork)
+        {
+            mA = a; mB = b; mC = c;
+            mK = k; mN = n;
+            mRowFrom = rowFrom; mRowTo = rowTo;
+            mColFrom = colFrom; mColTo = colTo;
+            mBlock = block; mTileWork = tileWork;
         }
 
         @Override
-        public void run() {
-            int iters = a.getNCols();
-            for(int y = 0 ; y < rowsPerThread ; y++) {
-                for(int x = 0 ; x < colsPerThread ;x++) {
-                    double sum = 0;
-                    for(int i = 0 ; i < iters ; i ++) {
-                        sum += a.getElem(y + myRowsIndex, i) * b.getElem(i, x + myColsIndex);
+        protected void compute() {
+            int nRows = mRowTo - mRowFrom;
+            int nCols = mColTo - mColFrom;
+            if(nRows == 0 || nCols == 0){
+                return;
+            }
+            if((long) nRows * nCols * mK <= mTileWork || (nRows == 1 && nCols == 1)){
+                gemmBlocked(nRows, nCols, mK,
+                        mA, mRowFrom*mK, mK,
+                        mB, mColFrom, mN,
+                        mC, mRowFrom*mN + mColFrom, mN, mBlock);
+            }else if(nRows >= nCols){
+                int rowMid = mRowFrom + nRows/2;
+                invokeAll(new TileTask(mA, mB, mC, mK, mN, mRowFrom, rowMid, mColFrom, mColTo,
+                                       mBlock, mTileWork),
+                          new TileTask(mA, mB, mC, mK, mN, rowMid, mRowTo, mColFrom, mColTo,
+                                       mBlock, mTileWork));
+            }else{
+                int colMid = mColFrom + nCols/2;
+                invokeAll(new TileTask(mA, mB, mC, mK, mN, mRowFrom, mRowTo, mColFrom, colMid,
+                                       mBlock, mTileWork),
+                          new TileTask(mA, mB, mC, mK, mN, mRowFrom, mRowTo, colMid, mColTo,
+                                       mBlock, mTileWork));
+            }
+        }
+    }
+    
+    
+    /** Below (or at) this size the Strassen-Winograd recursion switches to the
+     * blocked classical multiplication, unless the autotuner (see
+     * MatmulAutotuner.getStrassenCrossover) has chosen another one for the
+     * machine.
+     */
+    public static final int DEFAULT_STRASSEN_CROSSOVER = 128;
+    
+    /** Number of the top levels of the recursion whose 7 products are
+     * computed in parallel (7 tasks per level). Every parallel level
+     * multiplies the workspace needed by the levels below it by 7.
+     */
+    private static final int STRASSEN_PARALLEL_DEPTH = 1;
+    
+    static final int GEMM_BLOCK = 64;
+    
+    
+    /** Classical multiplication, blocked so that the tiles of all three
+     * matrices stay in cache. Operates directly on row-major arrays - element
+     * (i,j) of a matrix is at data[off + i*ld + j].
+     *      Computes C = A*B where A is [m x k], B is [k x n]; C is overwritten.
+     */
+    static void gemmBlocked(int m, int n, int k,
+            double[] a, int aOff, int lda,
+            double[] b, int bOff, int ldb,
+            double[] c, int cOff, int ldc)
+    {
+        gemmBlocked(m, n, k, a, aOff, lda, b, bOff, ldb, c, cOff, ldc, GEMM_BLOCK);
+    }
+
+
+    /** Same as above, with block x block tiles.
+     */
+    static void gemmBlocked(int m, int n, int k,
+            double[] a, int aOff, int lda,
+            double[] b, int bOff, int ldb,
+            double[] c, int cOff, int ldc, int block)
+    {
+        for(int i = 0; i < m; ++i){
+            int cRow = cOff + i*ldc;
+            for(int j = 0; j < n; ++j){
+                c[cRow + j] = 0;
+            }
+        }
+        for(int i0 = 0; i0 < m; i0 += block){
+            int i1 = Math.min(i0 + block, m);
+            for(int p0 = 0; p0 < k; p0 += block){
+                int p1 = Math.min(p0 + block, k);
+                for(int j0 = 0; j0 < n; j0 += block){
+                    int j1 = Math.min(j0 + block, n);
+                    for(int i = i0; i < i1; ++i){
+                        int cRow = cOff + i*ldc;
+                        int aRow = aOff + i*lda;
+                        for(int p = p0; p < p1; ++p){
+                            double aIP = a[aRow + p];
+                            int bRow = bOff + p*ldb;
+                            for(int j = j0; j < j1; ++j){
+                                c[cRow + j] += aIP * b[bRow + j];
+                            }
+                        }
                     }
-                    result.setElem(y + myRowsIndex, x + myColsIndex, sum);
                 }
             }
         }
     }
     
+    
+    /** Blocked classical multiplication of two matrices (single thread).
+     * 
+     * @param a
+     * @param b
+     * @return 
+     */
+    public static Matrix multiplyMtxBlocked(Matrix a, Matrix b)
+    {
+        if(a.getNCols() != b.getNRows()){
+            throw new RuntimeException("Matrices inner sizes mismatch");
+        }
+        int m = a.getNRows(), k = a.getNCols(), n = b.getNCols();
+        double[] c = new double[checkedArraySize((long) m*n)];
+        gemmBlocked(m, n, k, a.getMatrixRowwise(), 0, k,
+                b.getMatrixRowwise(), 0, n, c, 0, n);
+        return new Matrix(m, n, c);
+    }
+    
+    
+    /** Strassen-Winograd multiplication with the crossover chosen by the
+     * autotuner.
+     * 
+     * @param a
+     * @param b
+     * @return 
+     */
+    public static Matrix multiplyMtxStrassen(Matrix a, Matrix b)
+    {
+        return multiplyMtxStrassen(a, b, MatmulAutotuner.getStrassenCrossover());
+    }
+    
+    
+    /** Strassen-Winograd multiplication (7 products and 15 additions per
+     * level), computed by the common ForkJoin pool.
+     *      The number of levels is the number of halvings that bring the
+     * smallest of the dimensions m, k, n down to the crossover; each dimension
+     * is padded with zeros separately, to a multiple of 2^levels, so the
+     * padding is smaller than 2^levels per dimension. If the smallest
+     * dimension is not above the crossover (e.g. a very flat product), there
+     * is nothing to gain and the blocked classical multiplication is used.
+     * The temporaries of all the levels are cut out from one workspace array,
+     * allocated once per call.
+     *      Note that the result is not bitwise equal to the classical product.
+     * 
+     * @param a
+     * @param b
+     * @param crossover     - products whose smallest dimension is at most
+     *                        this size are computed classically
+     * @return 
+     */
+    public static Matrix multiplyMtxStrassen(Matrix a, Matrix b, int crossover)
+    {
+        if(a.getNCols() != b.getNRows()){
+            throw new RuntimeException("Matrices inner sizes mismatch");
+        }
+        if(crossover < 1){
+            throw new RuntimeException("Crossover size has to be positive.");
+        }
+        int m = a.getNRows(), k = a.getNCols(), n = b.getNCols();
+        int minSize = Math.min(m, Math.min(k, n));
+        if(minSize <= crossover){
+            return multiplyMtxBlocked(a, b);
+        }
+        
+        int levels = 0;
+        int leaf = minSize;
+        while(leaf > crossover){
+            leaf = (leaf + 1) / 2;
+            ++levels;
+        }
+        int pm = padToLevels(m, levels);
+        int pk = padToLevels(k, levels);
+        int pn = padToLevels(n, levels);
+        
+        double[] pa = pad(a, pm, pk);
+        double[] pb = pad(b, pk, pn);
+        double[] pc = new double[checkedArraySize((long) pm*pn)];
+        double[] ws = new double[checkedArraySize(
+                strassenWorkspaceSize(pm, pk, pn, levels, 0))];
+        
+        ForkJoinPool.commonPool().invoke(new StrassenTask(
+                pa, 0, pk, pb, 0, pn, pc, 0, pn,
+                pm, pk, pn, levels, ws, 0, 0));
+        
+        double[] c = new double[checkedArraySize((long) m*n)];
+        for(int r = 0; r < m; ++r){
+            System.arraycopy(pc, r*pn, c, r*n, n);
+        }
+        return new Matrix(m, n, c);
+    }
+    
+    
+    /** The smallest multiple of 2^levels not smaller than size.
+     */
+    private static int padToLevels(int size, int levels)
+    {
+        long step = 1L << levels;
+        return checkedArraySize((size + step - 1) / step * step);
+    }
+    
+    
+    private static int checkedArraySize(long size)
+    {
+        if(size > Integer.MAX_VALUE - 8){
+            throw new RuntimeException("Matrix too large for an array: "
+                    + size + " elements.");
+        }
+        return (int) size;
+    }
+    
+    
+    private static double[] pad(Matrix x, int nRows, int nCols)
+    {
+        double[] res = new double[checkedArraySize((long) nRows*nCols)];
+        for(int r = 0; r < x.getNRows(); ++r){
+            System.arraycopy(x.getRow(r), 0, res, r*nCols, x.getNCols());
+        }
+        return res;
+    }
+    
+    
+    /** Each level needs 11 temporaries of the half sizes (S1-S4 of the shape
+     * of a quadrant of A, T1-T4 of B and 3 products of C that do not fit into
+     * the quadrants of C) plus the workspace of the level below - one shared
+     * if the products are computed one after another, 7 separate ones if they
+     * are computed in parallel.
+     */
+    private static long strassenWorkspaceSize(int m, int k, int n, int levels,
+            int depth)
+    {
+        if(levels == 0){
+            return 0;
+        }
+        long hm = m/2, hk = k/2, hn = n/2;
+        long below = strassenWorkspaceSize(m/2, k/2, n/2, levels-1, depth+1);
+        return 4*hm*hk + 4*hk*hn + 3*hm*hn
+                + (depth < STRASSEN_PARALLEL_DEPTH ? 7 : 1)*below;
+    }
+    
+    
+    /** C = A*B for A [m x k] and B [k x n] stored in larger row-major arrays
+     * (see gemmBlocked), all of m, k, n being multiples of 2^levels.
+     */
+    @SuppressWarnings("serial")
+    private static class StrassenTask extends RecursiveAction {
+        private final double[] a, b, c, ws;
+        private final int aOff, lda, bOff, ldb, cOff, ldc, wsOff;
+        private final int m, k, n, levels, depth;
+        
+        StrassenTask(double[] a, int aOff, int lda,
+                double[] b, int bOff, int ldb,
+                double[] c, int cOff, int ldc,
+                int m, int k, int n, int levels,
+                double[] ws, int wsOff, int depth)
+        {
+            this.a = a; this.aOff = aOff; this.lda = lda;
+            this.b = b; this.bOff = bOff; this.ldb = ldb;
+            this.c = c; this.cOff = cOff; this.ldc = ldc;
+            this.m = m; this.k = k; this.n = n; this.levels = levels;
+            this.ws = ws; this.wsOff = wsOff; this.depth = depth;
+        }
+        
+        @Override
+        protected void compute() {
+            if(levels == 0){
+                gemmBlocked(m, n, k, a, aOff, lda, b, bOff, ldb, c, cOff, ldc);
+                return;
+            }
+            int hm = m/2, hk = k/2, hn = n/2;
+            int sSize = hm*hk, tSize = hk*hn, xSize = hm*hn;
+            
+            int a11 = aOff, a12 = aOff + hk, a21 = aOff + hm*lda, a22 = a21 + hk;
+            int b11 = bOff, b12 = bOff + hn, b21 = bOff + hk*ldb, b22 = b21 + hn;
+            int c11 = cOff, c12 = cOff + hn, c21 = cOff + hm*ldc, c22 = c21 + hn;
+            
+            int s1 = wsOff, s2 = s1 + sSize, s3 = s2 + sSize, s4 = s3 + sSize;
+            int t1 = s4 + sSize, t2 = t1 + tSize, t3 = t2 + tSize, t4 = t3 + tSize;
+            int x1 = t4 + tSize, x2 = x1 + xSize, x3 = x2 + xSize;
+            int below = x3 + xSize;
+            
+            // S1 = A21 + A22, S2 = S1 - A11, S3 = A11 - A21, S4 = A12 - S2
+            for(int i = 0; i < hm; ++i){
+                int ai = i*lda, wi = i*hk;
+                for(int j = 0; j < hk; ++j){
+                    double vA11 = a[a11+ai+j], vA12 = a[a12+ai+j];
+                    double vA21 = a[a21+ai+j], vA22 = a[a22+ai+j];
+                    double vS1 = vA21 + vA22;
+                    double vS2 = vS1 - vA11;
+                    ws[s1+wi+j] = vS1;
+                    ws[s2+wi+j] = vS2;
+                    ws[s3+wi+j] = vA11 - vA21;
+                    ws[s4+wi+j] = vA12 - vS2;
+                }
+            }
+            // T1 = B12 - B11, T2 = B22 - T1, T3 = B22 - B12, T4 = T2 - B21
+            for(int i = 0; i < hk; ++i){
+                int bi = i*ldb, wi = i*hn;
+                for(int j = 0; j < hn; ++j){
+                    double vB11 = b[b11+bi+j], vB12 = b[b12+bi+j];
+                    double vB21 = b[b21+bi+j], vB22 = b[b22+bi+j];
+                    double vT1 = vB12 - vB11;
+                    double vT2 = vB22 - vT1;
+                    ws[t1+wi+j] = vT1;
+                    ws[t2+wi+j] = vT2;
+                    ws[t3+wi+j] = vB22 - vB12;
+                    ws[t4+wi+j] = vT2 - vB21;
+                }
+            }
+            
+            // M1 = A11*B11 -> X1,  M2 = A12*B21 -> C11,  M3 = S4*B22 -> C12,
+            // M4 = A22*T4 -> C21,  M5 = S1*T1 -> C22,    M6 = S2*T2 -> X2,
+            // M7 = S3*T3 -> X3
+            boolean parallel = depth < STRASSEN_PARALLEL_DEPTH;
+            int belowSize = (int) strassenWorkspaceSize(hm, hk, hn, levels-1, depth+1);
+            int[] wsOffs = new int[7];
+            for(int p = 0; p < 7; ++p){
+                wsOffs[p] = parallel ? below + p*belowSize : below;
+            }
+            StrassenTask[] products = new StrassenTask[]{
+                sub(a, a11, lda, b, b11, ldb, ws, x1, hn, wsOffs[0]),
+                sub(a, a12, lda, b, b21, ldb, c, c11, ldc, wsOffs[1]),
+                sub(ws, s4, hk, b, b22, ldb, c, c12, ldc, wsOffs[2]),
+                sub(a, a22, lda, ws, t4, hn, c, c21, ldc, wsOffs[3]),
+                sub(ws, s1, hk, ws, t1, hn, c, c22, ldc, wsOffs[4]),
+                sub(ws, s2, hk, ws, t2, hn, ws, x2, hn, wsOffs[5]),
+                sub(ws, s3, hk, ws, t3, hn, ws, x3, hn, wsOffs[6])
+            };
+            if(parallel){
+                invokeAll(products);
+            }else{
+                for(StrassenTask product : products){
+                    product.compute();
+                }
+            }
+            
+            // C11 = M1 + M2,   U2 = M1 + M6,   U3 = U2 + M7,   U4 = U2 + M5,
+            // C12 = U4 + M3,   C21 = U3 - M4,  C22 = U3 + M5
+            for(int i = 0; i < hm; ++i){
+                int ci = i*ldc, wi = i*hn;
+                for(int j = 0; j < hn; ++j){
+                    double m1 = ws[x1+wi+j];
+                    double m5 = c[c22+ci+j];
+                    double u2 = m1 + ws[x2+wi+j];
+                    double u3 = u2 + ws[x3+wi+j];
+                    c[c11+ci+j] += m1;
+                    c[c12+ci+j] += u2 + m5;
+                    c[c21+ci+j] = u3 - c[c21+ci+j];
+                    c[c22+ci+j] = u3 + m5;
+                }
+            }
+        }
+        
+        private StrassenTask sub(double[] x, int xOff, int ldx,
+                double[] y, int yOff, int ldy,
+                double[] z, int zOff, int ldz, int wsOffset)
+        {
+            return new StrassenTask(x, xOff, ldx, y, yOff, ldy, z, zOff, ldz,
+                    m/2, k/2, n/2, levels-1, ws, wsOffset, depth+1);
+        }
+    }
+    
 }
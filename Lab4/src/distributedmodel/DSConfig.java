@@ -13,15 +13,37 @@ public class DSConfig {
     public static final long DEFAULT_CONNECT_DELAY = 20;
     public static final long DEFAULT_UNIT_TRANSMISSION_DELAY = 1;
     
+    /** Number of compute threads per node meaning: as many as possible -
+     * the cores of the host divided evenly among the nodes.
+     */
+    public static final int COMPUTE_THREADS_AUTO = -1;
+    
     private final int mNNodes; 
     private final long mDelay_connect_milis;
     private final long mDelay_unit_transmission_milis;
+    private final int mNComputeThreadsPerNode;
     
     public DSConfig(int nNodes, long delay_connect_milis,
             long delay_unit_transmission_milis){
+        this(nNodes, delay_connect_milis, delay_unit_transmission_milis, 0);
+    }
+    
+    /** Configuration of a hybrid system, in which every node has its own pool
+     * of nComputeThreadsPerNode threads for local computations (like an MPI
+     * process running a multithreaded library), see Node.getComputePool().
+     * 
+     * @param nNodes
+     * @param delay_connect_milis
+     * @param delay_unit_transmission_milis
+     * @param nComputeThreadsPerNode - 0 for no pools (the nodes compute in
+     * their own threads), COMPUTE_THREADS_AUTO to share the cores of the host
+     */
+    public DSConfig(int nNodes, long delay_connect_milis,
+            long delay_unit_transmission_milis, int nComputeThreadsPerNode){
         mNNodes = nNodes;
         mDelay_connect_milis = delay_connect_milis;
         mDelay_unit_transmission_milis = delay_unit_transmission_milis;
+        mNComputeThreadsPerNode = nComputeThreadsPerNode;
     }
     
     public DSConfig(int nNodes){
@@ -40,4 +62,27 @@ public class DSConfig {
     public long getUnitTransmissionDelay(){
         return mDelay_unit_transmission_milis;
     }
+    
+    public int getNComputeThreadsPerNode(){
+        return mNComputeThreadsPerNode;
+    }
+    
+    /** Size of the compute pool of each node (0 - no pools). The pools of all
+     * the nodes together never have more threads than the host has cores
+     * (but each pool has at least one thread), so the requested number may be
+     * reduced.
+     * 
+     * @return 
+     */
+    public int getComputePoolSize(){
+        if(mNComputeThreadsPerNode == 0){
+            return 0;
+        }
+        int fairShare = Math.max(1,
+                Runtime.getRuntime().availableProcessors() / mNNodes);
+        if(mNComputeThreadsPerNode == COMPUTE_THREADS_AUTO){
+            return fairShare;
+        }
+        return Math.min(mNComputeThreadsPerNode, fairShare);
+    }
 }
@@ -0,0 +1,375 @@
+/*
+ *  This code is for Parallel and Distributed Algorithms
+ *  laboratory at Gdansk University of Technology
+ */
+package distributedmodel;
+
+import datastructures.Matrix;
+
+/** Describes how a global nRows x nCols matrix is distributed over a
+ * meshRowCount x meshColCount mesh of nodes (node (r,c) of the mesh has id
+ * Topology.meshCoordsToId(r, c, meshColCount)). The local part of the matrix
+ * is stored in each node under the name of the distributed matrix (see
+ * Node.getMatrix(String)), so a node can hold any number of them.
+ *      The distribution is 2D block-cyclic (as in ScaLAPACK): the rows are
+ * cut into blocks of rowBlockSize rows, which are dealt to the mesh rows in a
+ * round-robin manner (block b goes to mesh row b mod meshRowCount), and the
+ * columns likewise. A node stores its blocks one after another, in the order
+ * of the global indices. Special cases:
+ * - block: one block per mesh row/column, i.e. a block size of
+ *   ceil(nRows/meshRowCount) - the layout used by Cannon's algorithm,
+ * - cyclic: block size 1,
+ * - 1D (row or column) distributions: a mesh with one column or one row.
+ * Block-cyclic layouts balance the load of algorithms whose active part of
+ * the matrix shrinks (like LU decomposition or triangular solves).
+ *      Objects of this class are immutable and only describe the layout -
+ * they can be shared by all the nodes.
+ *
+ * @author Karol Draszawka <kadr@eti.pg.gda.pl>
+ */
+public final class DistributedMatrix {
+
+    private final String mName;
+    private final int mNRows;
+    private final int mNCols;
+    private final int mMeshRowCount;
+    private final int mMeshColCount;
+    private final int mRowBlockSize;
+    private final int mColBlockSize;
+
+
+    /** 2D block-cyclic distribution.
+     *
+     * @param name          - name under which the local parts are stored
+     * @param nRows         - size of the global matrix
+     * @param nCols
+     * @param meshRowCount  - size of the mesh of nodes
+     * @param meshColCount
+     * @param rowBlockSize  - number of rows in a block
+     * @param colBlockSize  - number of columns in a block
+     */
+    public DistributedMatrix(String name, int nRows, int nCols,
+            int meshRowCount, int meshColCount,
+            int rowBlockSize, int colBlockSize)
+    {
+        if(nRows < 0 || nCols < 0 || meshRowCount < 1 || meshColCount < 1
+                || rowBlockSize < 1 || colBlockSize < 1){
+            throw new RuntimeException("Wrong parameters of a distributed matrix.");
+        }
+        mName = name;
+        mNRows = nRows;
+        mNCols = nCols;
+        mMeshRowCount = meshRowCount;
+        mMeshColCount = meshColCount;
+        mRowBlockSize = rowBlockSize;
+        mColBlockSize = colBlockSize;
+    }
+
+
+    /** 2D block distribution - each node of the mesh gets one block.
+     */
+    public static DistributedMatrix block(String name, int nRows, int nCols,
+            int meshRowCount, int meshColCount)
+    {
+        return new DistributedMatrix(name, nRows, nCols,
+                meshRowCount, meshColCount,
+                ceilDiv(nRows, meshRowCount), ceilDiv(nCols, meshColCount));
+    }
+
+
+    /** 2D block-cyclic distribution with square blocks.
+     */
+    public static DistributedMatrix blockCyclic(String name, int nRows, int nCols,
+            int meshRowCount, int meshColCount, int blockSize)
+    {
+        return new DistributedMatrix(name, nRows, nCols,
+                meshRowCount, meshColCount, blockSize, blockSize);
+    }
+
+
+    /** 1D distribution of blocks of whole rows over nNodes nodes (a mesh with
+     * one column). Block size ceil(nRows/nNodes) gives the block distribution,
+     * a smaller one - the block-cyclic.
+     */
+    public static DistributedMatrix rows(String name, int nRows, int nCols,
+            int nNodes, int rowBlockSize)
+    {
+        return new DistributedMatrix(name, nRows, nCols, nNodes, 1,
+                rowBlockSize, Math.max(nCols, 1));
+    }
+
+
+    /** 1D distribution of blocks of whole columns over nNodes nodes (a mesh
+     * with one row).
+     */
+    public static DistributedMatrix cols(String name, int nRows, int nCols,
+            int nNodes, int colBlockSize)
+    {
+        return new DistributedMatrix(name, nRows, nCols, 1, nNodes,
+                Math.max(nRows, 1), colBlockSize);
+    }
+
+
+    public String getName(){
+        return mName;
+    }
+
+    public int getNRows(){
+        return mNRows;
+    }
+
+    public int getNCols(){
+        return mNCols;
+    }
+
+    public int getMeshRowCount(){
+        return mMeshRowCount;
+    }
+
+    public int getMeshColCount(){
+        return mMeshColCount;
+    }
+
+    public int getRowBlockSize(){
+        return mRowBlockSize;
+    }
+
+    public int getColBlockSize(){
+        return mColBlockSize;
+    }
+
+    public int getNumberOfMeshNodes(){
+        return mMeshRowCount * mMeshColCount;
+    }
+
+
+    // global -> local index mapping
+
+    /** Mesh row of the nodes that store global row globalRow.
+     */
+    public int meshRowOfRow(int globalRow){
+        return (globalRow / mRowBlockSize) % mMeshRowCount;
+    }
+
+    /** Mesh column of the nodes that store global column globalCol.
+     */
+    public int meshColOfCol(int globalCol){
+        return (globalCol / mColBlockSize) % mMeshColCount;
+    }
+
+    /** Index of global row globalRow in the local matrix of its owner.
+     */
+    public int localRowOf(int globalRow){
+        return localIndexOf(globalRow, mRowBlockSize, mMeshRowCount);
+    }
+
+    /** Index of global column globalCol in the local matrix of its owner.
+     */
+    public int localColOf(int globalCol){
+        return localIndexOf(globalCol, mColBlockSize, mMeshColCount);
+    }
+
+    /** Id of the node that stores element (globalRow, globalCol).
+     */
+    public int ownerOf(int globalRow, int globalCol){
+        return Topology.meshCoordsToId(meshRowOfRow(globalRow),
+                meshColOfCol(globalCol), mMeshColCount);
+    }
+
+
+    // local -> global index mapping
+
+    public int globalRowOf(int meshRow, int localRow){
+        return globalIndexOf(meshRow, localRow, mRowBlockSize, mMeshRowCount);
+    }
+
+    public int globalColOf(int meshCol, int localCol){
+        return globalIndexOf(meshCol, localCol, mColBlockSize, mMeshColCount);
+    }
+
+    /** Number of rows stored by the nodes of a given mesh row.
+     */
+    public int getLocalNRows(int meshRow){
+        return localCount(mNRows, meshRow, mRowBlockSize, mMeshRowCount);
+    }
+
+    /** Number of columns stored by the nodes of a given mesh column.
+     */
+    public int getLocalNCols(int meshCol){
+        return localCount(mNCols, meshCol, mColBlockSize, mMeshColCount);
+    }
+
+
+    // access to the local parts
+
+    /** The local part of this matrix stored in the node.
+     */
+    public Matrix getLocal(Node node){
+        return node.getMatrix(mName);
+    }
+
+    public void setLocal(Node node, Matrix local){
+        node.setMatrix(mName, local);
+    }
+
+
+    /** Number of elements of the local part of the node with a given id (0
+     * for nodes outside of the mesh).
+     */
+    public int getLocalLength(int nodeId){
+        if(nodeId >= getNumberOfMeshNodes()){
+            return 0;
+        }
+        return getLocalNRows(Topology.meshRowOfId(nodeId, mMeshColCount))
+                * getLocalNCols(Topology.meshColOfId(nodeId, mMeshColCount));
+    }
+
+
+    /** Cuts out the local part of the node with a given id from the global
+     * matrix.
+     *
+     * @param global
+     * @param nodeId
+     * @return
+     */
+    public Matrix extractLocal(Matrix global, int nodeId)
+    {
+        checkGlobalSize(global);
+        return new Matrix(
+                getLocalNRows(Topology.meshRowOfId(nodeId, mMeshColCount)),
+                getLocalNCols(Topology.meshColOfId(nodeId, mMeshColCount)),
+                extractLocalRowwise(global.getMatrixRowwise(), nodeId));
+    }
+
+
+    /** Same as extractLocal, on matrices stored rowwise in arrays. Copies
+     * whole blocks of rows with System.arraycopy.
+     *
+     * @param global    - the global matrix, rowwise
+     * @param nodeId
+     * @return          - the local part, rowwise
+     */
+    public double[] extractLocalRowwise(double[] global, int nodeId)
+    {
+        int meshRow = Topology.meshRowOfId(nodeId, mMeshColCount);
+        int meshCol = Topology.meshColOfId(nodeId, mMeshColCount);
+        int nLocalRows = getLocalNRows(meshRow);
+        int nLocalCols = getLocalNCols(meshCol);
+        double[] local = new double[nLocalRows * nLocalCols];
+        for(int lr = 0; lr < nLocalRows; ++lr){
+            int globalRowStart = globalRowOf(meshRow, lr) * mNCols;
+            for(int lc = 0; lc < nLocalCols; lc += mColBlockSize){
+                int length = Math.min(mColBlockSize, nLocalCols - lc);
+                System.arraycopy(global, globalRowStart + globalColOf(meshCol, lc),
+                        local, lr*nLocalCols + lc, length);
+            }
+        }
+        return local;
+    }
+
+
+    /** Copies the local part of the node with a given id into its place in
+     * the global matrix.
+     *
+     * @param global
+     * @param nodeId
+     * @param local
+     */
+    public void insertLocal(Matrix global, int nodeId, Matrix local)
+    {
+        checkGlobalSize(global);
+        checkLocalSize(nodeId, local.getNRows(), local.getNCols());
+        int meshRow = Topology.meshRowOfId(nodeId, mMeshColCount);
+        int meshCol = Topology.meshColOfId(nodeId, mMeshColCount);
+        for(int lr = 0; lr < local.getNRows(); ++lr){
+            int gr = globalRowOf(meshRow, lr);
+            for(int lc = 0; lc < local.getNCols(); ++lc){
+                global.setElem(gr, globalColOf(meshCol, lc), local.getElem(lr, lc));
+            }
+        }
+    }
+
+
+    /** Same as insertLocal, on matrices stored rowwise in arrays. Only the
+     * elements of the node are written, so the local parts of different
+     * nodes can be inserted into the same array in parallel.
+     *
+     * @param global    - the global matrix, rowwise
+     * @param nodeId
+     * @param local     - the local part, rowwise
+     */
+    public void insertLocalRowwise(double[] global, int nodeId, double[] local)
+    {
+        int meshRow = Topology.meshRowOfId(nodeId, mMeshColCount);
+        int meshCol = Topology.meshColOfId(nodeId, mMeshColCount);
+        int nLocalRows = getLocalNRows(meshRow);
+        int nLocalCols = getLocalNCols(meshCol);
+        if(local.length != nLocalRows * nLocalCols){
+            throw new RuntimeException(String.format(
+                    "Local part of %s in node %d should have %d elements, but has %d.",
+                    mName, nodeId, nLocalRows * nLocalCols, local.length));
+        }
+        for(int lr = 0; lr < nLocalRows; ++lr){
+            int globalRowStart = globalRowOf(meshRow, lr) * mNCols;
+            for(int lc = 0; lc < nLocalCols; lc += mColBlockSize){
+                int length = Math.min(mColBlockSize, nLocalCols - lc);
+                System.arraycopy(local, lr*nLocalCols + lc,
+                        global, globalRowStart + globalColOf(meshCol, lc), length);
+            }
+        }
+    }
+
+
+    @Override
+    public String toString(){
+        return String.format("%s [%d x %d] on %d x %d mesh, blocks %d x %d",
+                mName, mNRows, mNCols, mMeshRowCount, mMeshColCount,
+                mRowBlockSize, mColBlockSize);
+    }
+
+
+    private void checkGlobalSize(Matrix global){
+        if(global.getNRows() != mNRows || global.getNCols() != mNCols){
+            throw new RuntimeException(String.format(
+                    "Matrix %d x %d does not match %s.",
+                    global.getNRows(), global.getNCols(), toString()));
+        }
+    }
+
+    private void checkLocalSize(int nodeId, int nRows, int nCols){
+        int nLocalRows = getLocalNRows(Topology.meshRowOfId(nodeId, mMeshColCount));
+        int nLocalCols = getLocalNCols(Topology.meshColOfId(nodeId, mMeshColCount));
+        if(nRows != nLocalRows || nCols != nLocalCols){
+            throw new RuntimeException(String.format(
+                    "Local part of %s in node %d should be %d x %d, but is %d x %d.",
+                    mName, nodeId, nLocalRows, nLocalCols, nRows, nCols));
+        }
+    }
+
+    private static int localIndexOf(int global, int blockSize, int meshSize){
+        return (global / (blockSize * meshSize)) * blockSize + global % blockSize;
+    }
+
+    private static int globalIndexOf(int meshIdx, int local, int blockSize,
+            int meshSize){
+        return ((local / blockSize) * meshSize + meshIdx) * blockSize
+                + local % blockSize;
+    }
+
+    private static int localCount(int n, int meshIdx, int blockSize,
+            int meshSize){
+        int nFullBlocks = n / blockSize;
+        int count = (nFullBlocks / meshSize) * blockSize;
+        int rest = nFullBlocks % meshSize;
+        if(meshIdx < rest){
+            count += blockSize;
+        }else if(meshIdx == rest){
+            count += n % blockSize;
+        }
+        return count;
+    }
+
+    private static int ceilDiv(int a, int b){
+        return Math.max(1, (a + b - 1) / b);
+    }
+}
@@ -5,8 +5,8 @@
 package distributedmodel;
 
 import datastructures.Matrix;
-import java.lang.reflect.Field;
 import java.util.concurrent.CyclicBarrier;
+import java.util.stream.IntStream;
 import software.SoftwareDS;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -42,6 +42,7 @@ public class DistributedSystem {
         mNodes = new Node[mNet.getNetworkSize()];
         for(int i = 0; i<mNet.getNetworkSize(); ++i){
             mNodes[i] = new Node(mNet.getEndpoint(i), mBarrier);
+            mNodes[i].setComputePoolSize(config.getComputePoolSize());
         }
         
         
@@ -64,6 +65,7 @@ public class DistributedSystem {
         mNodes = new Node[mNet.getNetworkSize()];
         for(int i = 0; i<mNet.getNetworkSize(); ++i){
             mNodes[i] = new Node(mNet.getEndpoint(i), mBarrier, initial_data_states[i]);
+            mNodes[i].setComputePoolSize(config.getComputePoolSize());
         }
         
         
@@ -123,24 +125,30 @@ public class DistributedSystem {
     }
     
     public void printDistributedMatrix(Node.MatrixInNode whichMtx, int meshRowCount, int meshColCount)
+    {
+        printDistributedMatrix(whichMtx.name(), meshRowCount, meshColCount);
+    }
+    
+    /** Prints the local parts of the matrix, placed as the nodes in the mesh.
+     * 
+     * @param dm 
+     */
+    public void printDistributedMatrix(DistributedMatrix dm)
+    {
+        printDistributedMatrix(dm.getName(), dm.getMeshRowCount(), dm.getMeshColCount());
+    }
+    
+    private void printDistributedMatrix(String name, int meshRowCount, int meshColCount)
     {
         
         StringBuilder sb = new StringBuilder(
-                String.format("Distributed matrix %s:\n", whichMtx.toString()));
+                String.format("Distributed matrix %s:\n", name));
         for(int mR = 0; mR < meshRowCount; ++mR){
             String[][] lines = new String[meshColCount][];
             for(int mC = 0; mC < meshColCount; ++mC){
                 int id = Topology.meshCoordsToId(mR, mC, meshColCount);
-                try {
-                    Field f = getNode(id).getClass().getField(whichMtx.toString());
-                    Matrix mtx = (Matrix) f.get(getNode(id));
-                    String mtxString = mtx.toString();
-                    lines[mC] = mtxString.split("[\\r\\n]+");
-                } catch (NoSuchFieldException | SecurityException | 
-                        IllegalArgumentException | IllegalAccessException ex) {
-                    Logger.getLogger(DistributedSystem.class.getName()).log(Level.SEVERE, null, ex);
-                }
-                
+                String mtxString = getNode(id).getMatrix(name).toString();
+                lines[mC] = mtxString.split("[\\r\\n]+");
             }
             int submtxRows = lines[0].length;
             for(int sR = 0; sR < submtxRows; ++sR){
@@ -159,36 +167,48 @@ public class DistributedSystem {
         return collectDistributedMatrix(whichMtx, meshSideSize, meshSideSize);
     }
     
+    /** Collects a matrix distributed in blocks - the size of the matrix is
+     * determined by the sizes of the local parts (all but the last in each
+     * mesh row/column must be equal).
+     * 
+     * @param whichMtx
+     * @param meshRowCount
+     * @param meshColCount
+     * @return 
+     */
     public Matrix collectDistributedMatrix(Node.MatrixInNode whichMtx, 
             int meshRowCount, int meshColCount){
         
-        try {
-            Field f = getNode(0).getClass().getField(whichMtx.toString());
-            Matrix mtx = (Matrix) f.get(getNode(0));
-            int submatrixNRows = mtx.getNRows();
-            int submatrixNCols = mtx.getNCols();
-            
-            Matrix res = new Matrix(meshRowCount*submatrixNRows,
-                                meshColCount*submatrixNCols);
-        
-            for(int mR = 0; mR < meshRowCount; ++mR){
-                for(int r = 0; r < submatrixNRows; ++r){
-                    double[] row = new double[res.getNCols()];
-                    for(int mC = 0; mC < meshColCount; ++mC){
-                        int nodeId = Topology.meshCoordsToId(mR, mC, meshColCount);
-                        mtx = (Matrix) f.get(getNode(nodeId));
-                        System.arraycopy(mtx.getRow(r), 0,
-                            row, mC*submatrixNCols, submatrixNCols);
-                    }
-                    res.setRow(mR*submatrixNRows+r, row);
-                }
-            }
-            return res;
-        } catch (NoSuchFieldException | SecurityException | 
-                IllegalArgumentException | IllegalAccessException ex) {
-            Logger.getLogger(DistributedSystem.class.getName()).log(Level.SEVERE, null, ex);
+        int nRows = 0;
+        for(int mR = 0; mR < meshRowCount; ++mR){
+            int id = Topology.meshCoordsToId(mR, 0, meshColCount);
+            nRows += getNode(id).getMatrix(whichMtx).getNRows();
+        }
+        int nCols = 0;
+        for(int mC = 0; mC < meshColCount; ++mC){
+            nCols += getNode(mC).getMatrix(whichMtx).getNCols();
         }
-        return null;
+        Matrix first = getNode(0).getMatrix(whichMtx);
+        return collectDistributedMatrix(new DistributedMatrix(whichMtx.name(),
+                nRows, nCols, meshRowCount, meshColCount,
+                Math.max(first.getNRows(), 1), Math.max(first.getNCols(), 1)));
+    }
+    
+    /** Gathers the local parts of a distributed matrix into a global matrix.
+     * This is a setup/inspection tool that takes no simulated time (the local
+     * parts are copied in parallel); see MatrixOperations.collectMatrix for a
+     * version that goes through the network.
+     * 
+     * @param dm
+     * @return 
+     */
+    public Matrix collectDistributedMatrix(DistributedMatrix dm)
+    {
+        double[] data = new double[dm.getNRows() * dm.getNCols()];
+        IntStream.range(0, dm.getNumberOfMeshNodes()).parallel().forEach(
+                (int n) -> dm.insertLocalRowwise(data, n,
+                        dm.getLocal(getNode(n)).getMatrixRowwise()));
+        return new Matrix(dm.getNRows(), dm.getNCols(), data);
     }
     
     
@@ -198,29 +218,42 @@ public class DistributedSystem {
         scatterDistributedMatrix(m, whichMtx, meshSideSize, meshSideSize);
     }
     
+    /** Distributes blocks of m to the nodes of a meshRowCount x meshColCount
+     * mesh. If the system has more nodes than the mesh (e.g. the mesh is one
+     * layer of a 3D grid), the other nodes are left unchanged.
+     * 
+     * @param m
+     * @param whichMtx
+     * @param meshRowCount
+     * @param meshColCount 
+     */
     public void scatterDistributedMatrix(Matrix m, Node.MatrixInNode whichMtx, 
             int meshRowCount, int meshColCount)
     {
-        try {
-            Field f = getNode(0).getClass().getField(whichMtx.toString());
-            
-            int submatrixNRows = m.getNRows() / meshRowCount;
-            int submatrixNCols = m.getNCols() / meshColCount;
-        
-            for (int n = 0; n < getConfiguration().getNumberOfNodes(); ++n)
-            {
-                int nodeR = Topology.meshRowOfId(n, meshColCount);
-                int nodeC = Topology.meshColOfId(n, meshColCount);
-                
-                Matrix subMtx = m.getSubmatrix(nodeR*submatrixNRows,
-                        nodeC*submatrixNCols, submatrixNRows, submatrixNCols);
-                
-                f.set(getNode(n), subMtx);
-            }
-            
-        } catch (NoSuchFieldException | SecurityException | 
-                IllegalArgumentException | IllegalAccessException ex) {
-            Logger.getLogger(DistributedSystem.class.getName()).log(Level.SEVERE, null, ex);
+        scatterDistributedMatrix(m, DistributedMatrix.block(whichMtx.name(),
+                m.getNRows(), m.getNCols(), meshRowCount, meshColCount));
+    }
+    
+    /** Stores the local parts of m (distributed as described by dm) in the
+     * nodes of the mesh of dm. Nodes outside of the mesh are left unchanged.
+     * This is a setup tool that takes no simulated time (the local parts are
+     * cut out in parallel); see MatrixOperations.scatterMatrix for a version
+     * that goes through the network.
+     * 
+     * @param m
+     * @param dm 
+     */
+    public void scatterDistributedMatrix(Matrix m, DistributedMatrix dm)
+    {
+        if(dm.getNumberOfMeshNodes() > getConfiguration().getNumberOfNodes()){
+            throw new RuntimeException(String.format(
+                    "The system has too few nodes for %s.", dm.toString()));
         }
-    }    
+        double[] data = m.getMatrixRowwise();
+        IntStream.range(0, dm.getNumberOfMeshNodes()).parallel().forEach(
+                (int n) -> dm.setLocal(getNode(n), new Matrix(
+                        dm.getLocalNRows(Topology.meshRowOfId(n, dm.getMeshColCount())),
+                        dm.getLocalNCols(Topology.meshColOfId(n, dm.getMeshColCount())),
+                        dm.extractLocalRowwise(data, n))));
+    }
 }
@@ -6,8 +6,10 @@ package distributedmodel;
 
 import datastructures.Matrix;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.concurrent.BrokenBarrierException;
 import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ForkJoinPool;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import software.SoftwareDS;
@@ -25,6 +27,8 @@ public class Node implements Runnable{
     private double[] mData;                    //data of the node
     private SoftwareDS mSoftware;                //software in the node
     private boolean mLogCommunication = false;                 //if communication should be logged to console
+    private int mComputePoolSize = 0;           //0 - no local compute pool
+    private ForkJoinPool mComputePool;          //exists while the software runs
     
     public Matrix A;        // for lab04 - part of a distributed matrix A
     public Matrix B;        // for lab04 - part of a distributed matrix B
@@ -32,6 +36,8 @@ public class Node implements Runnable{
     
     public static enum MatrixInNode{ A, B, C }     // for lab04
     
+    private final HashMap<String, Matrix> mMatrices = new HashMap<>(); //other named (distributed) matrices
+    
     Node(NetworkEndpoint netEndpoint, double[] initialData){
         this(netEndpoint);
         if (initialData != null){
@@ -69,6 +75,39 @@ public class Node implements Runnable{
         mData = data;
     }
     
+    /** Returns the local part of a distributed matrix stored in this node
+     * under a given name (null if there is none). The names "A", "B" and "C"
+     * refer to the fields A, B and C.
+     * 
+     * @param name
+     * @return 
+     */
+    public Matrix getMatrix(String name){
+        switch(name){
+            case "A": return A;
+            case "B": return B;
+            case "C": return C;
+            default: return mMatrices.get(name);
+        }
+    }
+    
+    public void setMatrix(String name, Matrix m){
+        switch(name){
+            case "A": A = m; break;
+            case "B": B = m; break;
+            case "C": C = m; break;
+            default: mMatrices.put(name, m);
+        }
+    }
+    
+    public Matrix getMatrix(MatrixInNode whichMtx){
+        return getMatrix(whichMtx.name());
+    }
+    
+    public void setMatrix(MatrixInNode whichMtx, Matrix m){
+        setMatrix(whichMtx.name(), m);
+    }
+    
     public boolean getLogCommunication(){
         return mLogCommunication;
     }
@@ -149,16 +188,38 @@ public class Node implements Runnable{
     
     
     
+    /** The pool of threads for local computations of this node (e.g. for
+     * MatrixOperationsSM.multiplyMtx), or null if the node computes only in
+     * its own thread (see DSConfig.getComputePoolSize()). Communication can go
+     * on in the node thread (or its helper threads) while the pool computes.
+     * 
+     * @return 
+     */
+    public ForkJoinPool getComputePool(){
+        return mComputePool;
+    }
+    
+    void setComputePoolSize(int size){
+        mComputePoolSize = size;
+    }
+    
     void loadSoftware(SoftwareDS s){
         mSoftware = s;
     }
     
     void startSoftware(){
+        if(mComputePoolSize > 0){
+            mComputePool = new ForkJoinPool(mComputePoolSize);
+        }
         mThread.start();
     }
     
     void exitSoftware() throws InterruptedException{
         mThread.join();
+        if(mComputePool != null){
+            mComputePool.shutdown();
+            mComputePool = null;
+        }
     }
     
     @Override
@@ -5,10 +5,12 @@
 
 package labs;
 
+import algorithms.distributed.LinearSolvers;
 import algorithms.distributed.MatrixOperations;
 import algorithms.shared.MatrixOperationsSM;
 import datastructures.Matrix;
 import distributedmodel.DSConfig;
+import distributedmodel.DistributedMatrix;
 import distributedmodel.DistributedSystem;
 import distributedmodel.Node;
 
@@ -41,26 +43,56 @@ public class Lab04 extends BaseLabMixed {
         // Test 2
         testScalabilitySMMatrixMultiplication();
 
+        // Test 2b
+        testStrassenSMMatrixMultiplication();
+
 
         // Distributed Memory
 
         // Test 3 - simple example
-//        singleTestRun(new DSConfig(4),
-//            (Node node) -> {
-//                node.setLogCommunication(verboseCommunication);
-//                MatrixOperations.multiplySquareMtxSimple(node);} ,
-//            (DistributedSystem ds) -> initNodesWithDataToy(ds),
-//            (DistributedSystem ds) -> { if (printStatusBeforeAndAfter){printDSStateBefore(ds);}},
-//            (DistributedSystem ds) -> { if (printStatusBeforeAndAfter){printDSStateAfter(ds);}},
-//            (DistributedSystem ds) -> {if(validateResults){validateDSState(ds);}},
-//            printProcessingTime);
+        singleTestRun(new DSConfig(4),
+            (Node node) -> {
+                node.setLogCommunication(verboseCommunication);
+                MatrixOperations.multiplySquareMtxSimple(node);} ,
+            (DistributedSystem ds) -> initNodesWithDataToy(ds),
+            (DistributedSystem ds) -> { if (printStatusBeforeAndAfter){printDSStateBefore(ds);}},
+            (DistributedSystem ds) -> { if (printStatusBeforeAndAfter){printDSStateAfter(ds);}},
+            (DistributedSystem ds) -> {if(validateResults){validateDSState(ds);}},
+            printProcessingTime);
 
         //Test 4 - bigger matrices, random elements, more nodes
-//        singleTestRun(16,
-//                (Node node) -> { node.setLogCommunication(verboseCommunication);
-//                            MatrixOperations.multiplySquareMtxSimple(node);} ,
-//                validateResults, printProcessingTime, printStatusBeforeAndAfter);
+        singleTestRun(16,
+                (Node node) -> { node.setLogCommunication(verboseCommunication);
+                            MatrixOperations.multiplySquareMtxSimple(node);} ,
+                validateResults, printProcessingTime, printStatusBeforeAndAfter);
+
+
+        // Test 4b - SUMMA on square and non-square meshes
+        testSUMMA(4, 4, MatrixOperations.DEFAULT_SUMMA_PANEL_WIDTH);
+        testSUMMA(2, 8, 3);
+
+        // Test 4c - 2.5D multiplication (2 layers of 2x2 and 4 layers of 4x4 meshes)
+        test25D(2, 2);
+        test25D(4, 4);
+
+        // Test 4d - Cannon with the matrices scattered from and collected in node 0 over the network
+        testCannonWithNetworkDistribution(16);
+
+        // Test 4e - hybrid: local block products computed by per-node thread pools
+        singleTestRun(new DSConfig(16, DSConfig.DEFAULT_CONNECT_DELAY,
+                    DSConfig.DEFAULT_UNIT_TRANSMISSION_DELAY, DSConfig.COMPUTE_THREADS_AUTO),
+                (Node node) -> { node.setLogCommunication(verboseCommunication);
+                            MatrixOperations.multiplySquareMtxSimple(node);} ,
+                (DistributedSystem ds) -> initNodesWithData(ds),
+                validateResults, printProcessingTime, printStatusBeforeAndAfter);
+
+        // Test 4f - stencil matrix-vector product, Jacobi and CG with halo exchange
+        testStencilSolvers(2, 3, 12);
+        testStencilSolvers(4, 4, 16);
 
+        // Test 4g - LU factorization with partial pivoting and a solve (row-cyclic layout)
+        testLU(4, 4, 24, 4);
+        testLU(4, 3, 19, 3);
 
         // Test 5 - scalability tests
 //        testDSAlgorithms();
@@ -79,6 +111,14 @@ public class Lab04 extends BaseLabMixed {
                 validateResults, printProcessingTime, printStatusBeforeAndAfter);
         seriesCollection.addSeries(exp1);
 
+        XYSeries exp2 = seriesOfRuns("SUMMA A*B",
+                (Node node) -> {
+                    node.setLogCommunication(verboseCommunication);
+                    MatrixOperations.multiplyMtxSUMMA(node);
+                },
+                validateResults, printProcessingTime, printStatusBeforeAndAfter);
+        seriesCollection.addSeries(exp2);
+
         JFreeChart chart = makeChart(seriesCollection,
                 "Matrix multiplication scalability (constant matrix size)",
                 "Number of nodes", "Execution time [s]");
@@ -87,6 +127,225 @@ public class Lab04 extends BaseLabMixed {
     }
 
 
+    private void testSUMMA(int meshRowCount, int meshColCount, int panelWidth) {
+        singleTestRun(new DSConfig(meshRowCount * meshColCount),
+            (Node node) -> {
+                node.setLogCommunication(verboseCommunication);
+                MatrixOperations.multiplyMtxSUMMA(node, meshRowCount, meshColCount, panelWidth);} ,
+            (DistributedSystem ds) -> {
+                initNodesWithData(ds, meshRowCount, meshColCount);},
+            (DistributedSystem ds) -> { if (printStatusBeforeAndAfter){
+                System.out.println("BEFORE :");
+                ds.printDistributedMatrix(Node.MatrixInNode.A, meshRowCount, meshColCount);
+                ds.printDistributedMatrix(Node.MatrixInNode.B, meshRowCount, meshColCount);}},
+            (DistributedSystem ds) -> { if (printStatusBeforeAndAfter){
+                System.out.println("AFTER :");
+                ds.printDistributedMatrix(Node.MatrixInNode.C, meshRowCount, meshColCount);}},
+            (DistributedSystem ds) -> {if(validateResults){
+                validateDSState(ds, meshRowCount, meshColCount);}},
+            printProcessingTime);
+    }
+
+
+    private void test25D(int nLayers, int meshSideSize) {
+        singleTestRun(new DSConfig(nLayers * meshSideSize * meshSideSize),
+            (Node node) -> {
+                node.setLogCommunication(verboseCommunication);
+                MatrixOperations.multiplyMtx25D(node, nLayers);} ,
+            (DistributedSystem ds) -> {
+                initNodesWithData(ds, meshSideSize, meshSideSize);},
+            (DistributedSystem ds) -> { if (printStatusBeforeAndAfter){
+                System.out.println("BEFORE :");
+                ds.printDistributedMatrix(Node.MatrixInNode.A, meshSideSize, meshSideSize);
+                ds.printDistributedMatrix(Node.MatrixInNode.B, meshSideSize, meshSideSize);}},
+            (DistributedSystem ds) -> { if (printStatusBeforeAndAfter){
+                System.out.println("AFTER :");
+                ds.printDistributedMatrix(Node.MatrixInNode.C, meshSideSize, meshSideSize);}},
+            (DistributedSystem ds) -> {if(validateResults){
+                validateDSState(ds, meshSideSize, meshSideSize);}},
+            printProcessingTime);
+    }
+
+
+    private void testStencilSolvers(int meshRowCount, int meshColCount, int gridSize) {
+        double tolerance = 1e-6;
+        Matrix v = new Matrix(gridSize, gridSize, generateRandomData(gridSize * gridSize));
+        Matrix b = new Matrix(gridSize, gridSize, generateRandomData(gridSize * gridSize));
+        DistributedMatrix dmV = DistributedMatrix.block("v", gridSize, gridSize,
+                meshRowCount, meshColCount);
+        DistributedMatrix dmY = DistributedMatrix.block("y", gridSize, gridSize,
+                meshRowCount, meshColCount);
+        DistributedMatrix dmB = DistributedMatrix.block("b", gridSize, gridSize,
+                meshRowCount, meshColCount);
+        DistributedMatrix dmXJacobi = DistributedMatrix.block("xJacobi", gridSize, gridSize,
+                meshRowCount, meshColCount);
+        DistributedMatrix dmXCG = DistributedMatrix.block("xCG", gridSize, gridSize,
+                meshRowCount, meshColCount);
+        LinearSolvers.IterationInfo[] infos = new LinearSolvers.IterationInfo[2];
+
+        singleTestRun(new DSConfig(meshRowCount * meshColCount),
+            (Node node) -> {
+                node.setLogCommunication(verboseCommunication);
+                LinearSolvers.multiplyStencil(node, dmV, dmY, 4, -1);
+                node.synchronizeDS();
+                //diagonally dominant, so that Jacobi converges fast
+                LinearSolvers.IterationInfo infoJacobi = LinearSolvers.solveJacobi(
+                        node, dmXJacobi, dmB, 6, -1, tolerance, 1000);
+                node.synchronizeDS();
+                //the Laplacian
+                LinearSolvers.IterationInfo infoCG = LinearSolvers.solveCG(
+                        node, dmXCG, dmB, 4, -1, tolerance, 1000);
+                if (node.getMyId() == 0) {
+                    infos[0] = infoJacobi;
+                    infos[1] = infoCG;
+                }} ,
+            (DistributedSystem ds) -> {
+                ds.scatterDistributedMatrix(v, dmV);
+                ds.scatterDistributedMatrix(b, dmB);
+                ds.scatterDistributedMatrix(new Matrix(gridSize, gridSize), dmXJacobi);
+                ds.scatterDistributedMatrix(new Matrix(gridSize, gridSize), dmXCG);},
+            (DistributedSystem ds) -> {},
+            (DistributedSystem ds) -> { if (printStatusBeforeAndAfter){
+                System.out.println("Jacobi: " + infos[0]);
+                System.out.println("CG: " + infos[1]);}},
+            (DistributedSystem ds) -> {if(validateResults){
+                Matrix y = ds.collectDistributedMatrix(dmY);
+                Matrix rJacobi = multiplyStencilSerial(
+                        ds.collectDistributedMatrix(dmXJacobi), 6, -1).subtract(b);
+                Matrix rCG = multiplyStencilSerial(
+                        ds.collectDistributedMatrix(dmXCG), 4, -1).subtract(b);
+                double bNorm = frobeniusNorm(b);
+                if (y.isEqual(multiplyStencilSerial(v, 4, -1))
+                        && infos[0].converged && infos[1].converged
+                        && frobeniusNorm(rJacobi) <= 10 * tolerance * bNorm
+                        && frobeniusNorm(rCG) <= 10 * tolerance * bNorm) {
+                    successfulValidationInfo();
+                } else {
+                    failedValidationInfo();
+                }}},
+            printProcessingTime);
+    }
+
+
+    private void testLU(int nNodes, int meshRowCount, int n, int blockSize) {
+        int nRhs = 2;
+        Matrix a = new Matrix(n, n, generateRandomData(n * n));
+        Matrix b = new Matrix(n, nRhs, generateRandomData(n * nRhs));
+        DistributedMatrix dmLU = new DistributedMatrix("LU", n, n,
+                meshRowCount, 1, blockSize, n);
+        DistributedMatrix dmX = new DistributedMatrix("x", n, nRhs,
+                meshRowCount, 1, blockSize, nRhs);
+        int[][] pivots = new int[1][];
+
+        singleTestRun(new DSConfig(nNodes),
+            (Node node) -> {
+                node.setLogCommunication(verboseCommunication);
+                int[] myPivots = LinearSolvers.factorizeLU(node, dmLU);
+                node.synchronizeDS();
+                LinearSolvers.solveLU(node, dmLU, myPivots, dmX);
+                if (node.getMyId() == 0) {
+                    pivots[0] = myPivots;
+                }} ,
+            (DistributedSystem ds) -> {
+                ds.scatterDistributedMatrix(a, dmLU);
+                ds.scatterDistributedMatrix(b, dmX);},
+            (DistributedSystem ds) -> {},
+            (DistributedSystem ds) -> { if (printStatusBeforeAndAfter){
+                System.out.println("LU :");
+                ds.printDistributedMatrix(dmLU);
+                System.out.println("x :");
+                ds.printDistributedMatrix(dmX);}},
+            (DistributedSystem ds) -> {if(validateResults){
+                Matrix lu = ds.collectDistributedMatrix(dmLU);
+                Matrix l = new Matrix(n, n);
+                Matrix u = new Matrix(n, n);
+                for (int i = 0; i < n; ++i) {
+                    for (int j = 0; j < n; ++j) {
+                        if (i > j) {
+                            l.setElem(i, j, lu.getElem(i, j));
+                        } else {
+                            u.setElem(i, j, lu.getElem(i, j));
+                        }
+                    }
+                    l.setElem(i, i, 1);
+                }
+                Matrix pa = new Matrix(a);
+                for (int j = 0; j < n; ++j) {
+                    double[] rowJ = pa.getRow(j);
+                    pa.setRow(j, pa.getRow(pivots[0][j]));
+                    pa.setRow(pivots[0][j], rowJ);
+                }
+                Matrix x = ds.collectDistributedMatrix(dmX);
+                if (l.times(u).isEqualApproximately(pa, 1e-9)
+                        && a.times(x).isEqualApproximately(b, 1e-8)) {
+                    successfulValidationInfo();
+                } else {
+                    failedValidationInfo();
+                }}},
+            printProcessingTime);
+    }
+
+
+    /** Reference for LinearSolvers.multiplyStencil.
+     */
+    private static Matrix multiplyStencilSerial(Matrix x, double diag, double offDiag) {
+        int nRows = x.getNRows();
+        int nCols = x.getNCols();
+        Matrix y = new Matrix(nRows, nCols);
+        for (int i = 0; i < nRows; ++i) {
+            for (int j = 0; j < nCols; ++j) {
+                double north = (i > 0) ? x.getElem(i - 1, j) : 0;
+                double south = (i < nRows - 1) ? x.getElem(i + 1, j) : 0;
+                double west = (j > 0) ? x.getElem(i, j - 1) : 0;
+                double east = (j < nCols - 1) ? x.getElem(i, j + 1) : 0;
+                y.setElem(i, j, diag * x.getElem(i, j) + offDiag * (north + south + west + east));
+            }
+        }
+        return y;
+    }
+
+
+    private static double frobeniusNorm(Matrix m) {
+        double sum = 0;
+        for (double e : m.getMatrixRowwise()) {
+            sum += e * e;
+        }
+        return Math.sqrt(sum);
+    }
+
+
+    private void testCannonWithNetworkDistribution(int nNodes) {
+        int meshSideSize = (int) Math.sqrt(nNodes);
+        Matrix[] collectedC = new Matrix[1];
+        singleTestRun(new DSConfig(nNodes),
+            (Node node) -> {
+                node.setLogCommunication(verboseCommunication);
+                MatrixOperations.scatterMatrix(node, distrA, DistributedMatrix.block("A",
+                        distrA.getNRows(), distrA.getNCols(), meshSideSize, meshSideSize), 0);
+                MatrixOperations.scatterMatrix(node, distrB, DistributedMatrix.block("B",
+                        distrB.getNRows(), distrB.getNCols(), meshSideSize, meshSideSize), 0);
+                node.synchronizeDS();
+                MatrixOperations.multiplySquareMtxSimple(node);
+                Matrix c = MatrixOperations.collectMatrix(node, DistributedMatrix.block("C",
+                        distrA.getNRows(), distrB.getNCols(), meshSideSize, meshSideSize), 0);
+                if (c != null) {
+                    collectedC[0] = c;
+                }} ,
+            (DistributedSystem ds) -> generateMatrices(),
+            (DistributedSystem ds) -> {},
+            (DistributedSystem ds) -> { if (printStatusBeforeAndAfter){
+                System.out.println("Collected C :");
+                System.out.println(collectedC[0].toString());}},
+            (DistributedSystem ds) -> {if(validateResults){
+                if (collectedC[0].isEqualApproximately(distrA.times(distrB), 0.001)) {
+                    successfulValidationInfo();
+                } else {
+                    failedValidationInfo();
+                }}},
+            printProcessingTime);
+    }
+
+
     private void testValiditySMMatrixMultiplication() {
         int nRows = 12;
         int nCols = 12;
@@ -95,7 +354,7 @@ public class Lab04 extends BaseLabMixed {
         final Matrix b = new Matrix(nRows, nCols, generateRandomData(nRows * nCols));
 
         Matrix res1 = a.times(b);
-        Matrix res2 = MatrixOperationsSM.multiplyMtx(a, b, 4, 4);
+        Matrix res2 = MatrixOperationsSM.multiplyMtx(a, b);
 
         if (printStatusBeforeAndAfter) {
             System.out.println("Should be:\n" + res1.toString());
@@ -125,27 +384,73 @@ public class Lab04 extends BaseLabMixed {
                     Matrix res = a.times(b);
                 });
 
+        MatrixOperationsSM.multiplyMtx(a, b);    //autotunes on the first use
+
 
         double time2 = singleMeasurement(null,
                 (double[] d) -> {
-                    Matrix res = MatrixOperationsSM.multiplyMtx(a, b, 4, 4);
+                    Matrix res = MatrixOperationsSM.multiplyMtx(a, b);
                 });
 
         System.out.format("Serial time = %f, Parallel time = %f\n", time1, time2);
     }
 
 
+    private void testStrassenSMMatrixMultiplication() {
+        int size = 1000;    //deliberately not a power of two
+
+        final Matrix a = new Matrix(size, size, generateRandomData(size * size));
+        final Matrix b = new Matrix(size, size, generateRandomData(size * size));
+
+        MatrixOperationsSM.multiplyMtxStrassen(a, b);  //autotunes the crossover on the first use
+
+        Matrix[] res = new Matrix[2];
+        double time1 = singleMeasurement(null,
+                (double[] d) -> {
+                    res[0] = MatrixOperationsSM.multiplyMtxBlocked(a, b);
+                });
+
+        double time2 = singleMeasurement(null,
+                (double[] d) -> {
+                    res[1] = MatrixOperationsSM.multiplyMtxStrassen(a, b);
+                });
+
+        System.out.format("Blocked time = %f, Strassen time = %f\n", time1, time2);
+
+        //rectangular operands are padded in each dimension separately
+        final Matrix c = new Matrix(300, 700, generateRandomData(300 * 700));
+        final Matrix d = new Matrix(700, 500, generateRandomData(700 * 500));
+        boolean rectOk = MatrixOperationsSM.multiplyMtxBlocked(c, d).isEqualApproximately(
+                MatrixOperationsSM.multiplyMtxStrassen(c, d, 64), 0.0001);
+
+        if (rectOk && res[0].isEqualApproximately(res[1], 0.0001)) {
+            successfulValidationInfo();
+        } else {
+            failedValidationInfo();
+        }
+    }
+
+
     @Override
     protected void initNodesWithData(DistributedSystem ds) {
-        //int nNodes = ds.getConfiguration().getNumberOfNodes();
+        int meshSideSize = (int) Math.sqrt(ds.getConfiguration().getNumberOfNodes());
+        initNodesWithData(ds, meshSideSize, meshSideSize);
+    }
+
+
+    private void initNodesWithData(DistributedSystem ds, int meshRowCount, int meshColCount) {
+        generateMatrices();
+        ds.scatterDistributedMatrix(distrA, Node.MatrixInNode.A, meshRowCount, meshColCount);
+        ds.scatterDistributedMatrix(distrB, Node.MatrixInNode.B, meshRowCount, meshColCount);
+    }
+
+
+    private void generateMatrices() {
         int baseSize = 16;
         distrA = new Matrix(generateRandomDataForNodes(
                 baseSize * 2, baseSize * 4), false);
         distrB = new Matrix(generateRandomDataForNodes(
                 baseSize * 4, baseSize * 2), false);
-
-        ds.scatterDistributedMatrix(distrA, Node.MatrixInNode.A);
-        ds.scatterDistributedMatrix(distrB, Node.MatrixInNode.B);
     }
 
 
@@ -168,9 +473,16 @@ public class Lab04 extends BaseLabMixed {
 
     @Override
     protected void validateDSState(DistributedSystem ds) {
+        int meshSideSize = (int) Math.sqrt(ds.getConfiguration().getNumberOfNodes());
+        validateDSState(ds, meshSideSize, meshSideSize);
+    }
+
+
+    private void validateDSState(DistributedSystem ds, int meshRowCount, int meshColCount) {
 
         Matrix expectedC = distrA.times(distrB);
-        Matrix actualC = ds.collectDistributedMatrix(Node.MatrixInNode.C);
+        Matrix actualC = ds.collectDistributedMatrix(Node.MatrixInNode.C,
+                meshRowCount, meshColCount);
         if (actualC.isEqualApproximately(expectedC, 0.001)) {
             successfulValidationInfo();
         } else {
@@ -7,12 +7,15 @@ package algorithms.distributed;
 
 import algorithms.Utils;
 import datastructures.Edge;
+import datastructures.SparseMatrix;
 import distributedmodel.DataPacket;
 import distributedmodel.Node;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.function.BinaryOperator;
 import java.util.function.DoubleBinaryOperator;
 import java.util.logging.Level;
@@ -165,6 +168,158 @@ public class GraphAlgorithms {
         }  
     }
     
+    /** Sparse version of findMSTPrimSerial. Assumes that node 0 contains the
+     * whole graph adjacency matrix in its field S (missing elements are
+     * non-edges). Only the existing edges are visited - the candidate edges
+     * are kept in a priority queue, which gives O(E log(E)) time instead of
+     * O(V^2).
+     * 
+     * @param node
+     * @param printResult 
+     */
+    public static void findMSTPrimSerialSparse(Node node, boolean printResult)
+    {
+        if (node.getMyId() == 0){
+            
+            SparseMatrix adj = node.S;
+            int nVertices = adj.getNCols();
+            
+            List<Edge> mst = new ArrayList<>(nVertices-1);
+            double mstTotalWeight = 0;
+            boolean[] inMST = new boolean[nVertices];
+            PriorityQueue<Edge> candidates = new PriorityQueue<>(
+                    (Edge e1, Edge e2) -> Double.compare(e1.weight, e2.weight));
+            
+            int r = 0;      // root of the MST; begin from vertex 0
+            inMST[r] = true;
+            addCandidateEdges(adj, r, inMST, candidates);
+            
+            while (!candidates.isEmpty() && mst.size() < nVertices-1){
+                
+                //determine the next vertex to add
+                Edge bestEdge = candidates.poll();
+                simulationWait();
+                if (inMST[bestEdge.to]){
+                    continue;   //outdated candidate
+                }
+                
+                //add to mst and update candidates with edges of the new vertex
+                inMST[bestEdge.to] = true;
+                mstTotalWeight += bestEdge.weight;
+                mst.add(bestEdge);
+                addCandidateEdges(adj, bestEdge.to, inMST, candidates);
+            }
+            
+            //for validation purposes:
+            node.setMyData(new double[] {mstTotalWeight});
+            
+            
+            if(printResult){
+                System.out.println("Resulting MST:");
+                mst.stream().forEach((e) -> {
+                    System.out.println("\t"+e.toString());
+                });
+                System.out.format("Total MST weight = %4.2f\n", mstTotalWeight);
+            }
+            
+        }
+    }
+    
+    private static void addCandidateEdges(SparseMatrix adj, int from,
+            boolean[] inMST, PriorityQueue<Edge> candidates)
+    {
+        for(int k = adj.rowStart(from); k < adj.rowEnd(from); ++k){
+            int to = adj.colIndexAt(k);
+            if (!inMST[to]){
+                candidates.add(new Edge(from, to, adj.valueAt(k)));
+            }
+            simulationWait();
+        }
+    }
+    
+    
+    /** Sparse version of findMSTPrim. Assumes the sparse adjacency matrix is
+     * distributed columnwise among nodes in their field S: node i holds
+     * columns (i*nVertices)/nNodes .. ((i+1)*nVertices)/nNodes - 1.
+     *      Each node keeps the distance of each of its vertices to the MST
+     * and, after a new vertex is selected, updates only these distances for
+     * which an edge from the new vertex exists (that is the nonzeros of the
+     * new vertex's row in the local block).
+     * 
+     * @param node
+     * @param printResult 
+     */
+    public static void findMSTPrimSparse(Node node, boolean printResult){
+        
+        int myId = node.getMyId();
+        int nNodes = node.getNumberOfAllNodes();
+        SparseMatrix adj = node.S;
+        int nVertices = adj.getNRows();
+        int nMyVertices = adj.getNCols();
+        int myColStart = (myId*nVertices)/nNodes;
+        
+        double[] minDistToMST = new double[nMyVertices];
+        int[] closestInMST = new int[nMyVertices];
+        boolean[] inMST = new boolean[nMyVertices];
+        Arrays.fill(minDistToMST, Double.POSITIVE_INFINITY);
+        Arrays.fill(closestInMST, -1);
+        
+        double mstTotalWeight = 0;
+        int newVertex = 0;      // root of the MST; begin from vertex 0
+        
+        for(int nInMST = 1; ; ++nInMST){
+            
+            //mark the new vertex and update distances of my vertices
+            int local = newVertex - myColStart;
+            if (local >= 0 && local < nMyVertices){
+                inMST[local] = true;
+            }
+            for(int k = adj.rowStart(newVertex); k < adj.rowEnd(newVertex); ++k){
+                int c = adj.colIndexAt(k);
+                if (!inMST[c] && adj.valueAt(k) < minDistToMST[c]){
+                    minDistToMST[c] = adj.valueAt(k);
+                    closestInMST[c] = newVertex;
+                }
+            }
+            if (nInMST == nVertices){
+                break;
+            }
+            
+            //my best candidate
+            Edge toSend = new Edge(-1, -1, Double.POSITIVE_INFINITY);
+            for(int c = 0; c < nMyVertices; ++c){
+                if (!inMST[c] && minDistToMST[c] < toSend.weight){
+                    toSend = new Edge(closestInMST[c], myColStart + c,
+                            minDistToMST[c]);
+                }
+            }
+            
+            //global best candidate
+            double[] serializedEdge = BasicCommunication.reduce(node,
+                    toSend.serialize(), (double[] a, double[] b) -> {
+                if(a[2] <= b[2])
+                    return a;
+                else
+                    return b;
+            });
+            serializedEdge = BasicCommunication.broadcast(node, serializedEdge);
+            Edge e = Edge.deserialize(serializedEdge);
+            if (e.to < 0){
+                break;      //the graph is not connected
+            }
+            newVertex = e.to;
+            mstTotalWeight += e.weight;
+        }
+        
+        //for validation purposes:
+        node.setMyData(new double[] {mstTotalWeight});
+        
+        if(printResult && myId == 0){
+            System.out.format("Total MST weight = %4.2f\n", mstTotalWeight);
+        }
+    }
+    
+    
     private static int getMyColStart(Node n)
     {
         for(int i = 0 ; i < n.A.getNRows() ; i++)
@@ -0,0 +1,412 @@
+/*
+ *  This code is for Parallel and Distributed Algorithms
+ *  laboratory at Gdansk University of Technology
+ */
+package datastructures;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.IntStream;
+
+/** Immutable sparse matrix keeping only its nonzero elements. The data is
+ * stored twice: rowwise (CSR - compressed sparse rows) and columnwise
+ * (CSC - compressed sparse columns), so that both rows and columns can be
+ * iterated in time proportional to the number of their nonzero elements.
+ *      Row r occupies positions rowStart(r) .. rowEnd(r)-1 of the CSR arrays
+ * (see colIndexAt(k) and valueAt(k)), and column c occupies positions
+ * colStart(c) .. colEnd(c)-1 of the CSC arrays (see rowIndexAt(k) and
+ * colValueAt(k)). Indices inside a row (column) are sorted ascending.
+ *
+ * @author Karol Draszawka <kadr@eti.pg.gda.pl>
+ */
+public final class SparseMatrix {
+    final private int mNRows;
+    final private int mNCols;
+
+    //CSR
+    final private int[] mRowPtr;
+    final private int[] mColIdx;
+    final private double[] mRowValues;
+
+    //CSC
+    final private int[] mColPtr;
+    final private int[] mRowIdx;
+    final private double[] mColValues;
+
+
+    /** Wraps the CSR arrays into a sparse matrix and builds the CSC part.
+     * The arrays are not copied.
+     *
+     * @param nRows
+     * @param nCols
+     * @param rowPtr    - nRows+1 row offsets into colIdx and values
+     * @param colIdx    - column index of each nonzero, sorted within a row
+     * @param values    - value of each nonzero
+     */
+    public SparseMatrix(int nRows, int nCols, int[] rowPtr, int[] colIdx,
+            double[] values)
+    {
+        if(rowPtr.length != nRows + 1 || colIdx.length < rowPtr[nRows] ||
+                values.length < rowPtr[nRows]){
+            throw new RuntimeException("Inconsistent CSR arrays");
+        }
+        mNRows = nRows;
+        mNCols = nCols;
+        mRowPtr = rowPtr;
+        mColIdx = colIdx;
+        mRowValues = values;
+
+        int nnz = rowPtr[nRows];
+        mColPtr = new int[nCols + 1];
+        mRowIdx = new int[nnz];
+        mColValues = new double[nnz];
+        compress(nRows, nCols, rowPtr, colIdx, values,
+                mColPtr, mRowIdx, mColValues);
+    }
+
+
+    private SparseMatrix(int nRows, int nCols,
+            int[] rowPtr, int[] colIdx, double[] rowValues,
+            int[] colPtr, int[] rowIdx, double[] colValues)
+    {
+        mNRows = nRows;
+        mNCols = nCols;
+        mRowPtr = rowPtr;
+        mColIdx = colIdx;
+        mRowValues = rowValues;
+        mColPtr = colPtr;
+        mRowIdx = rowIdx;
+        mColValues = colValues;
+    }
+
+
+    /** Converts compressed (by major index) data to the compression by minor
+     * index, i.e. CSR to CSC or CSC to CSR. Counting sort, O(nnz + nMinor).
+     */
+    private static void compress(int nMajor, int nMinor,
+            int[] majorPtr, int[] minorIdx, double[] values,
+            int[] outPtr, int[] outIdx, double[] outValues)
+    {
+        int nnz = majorPtr[nMajor];
+        for(int k = 0; k < nnz; ++k){
+            ++outPtr[minorIdx[k] + 1];
+        }
+        for(int i = 0; i < nMinor; ++i){
+            outPtr[i + 1] += outPtr[i];
+        }
+        int[] next = Arrays.copyOf(outPtr, nMinor);
+        for(int major = 0; major < nMajor; ++major){
+            for(int k = majorPtr[major]; k < majorPtr[major + 1]; ++k){
+                int pos = next[minorIdx[k]]++;
+                outIdx[pos] = major;
+                outValues[pos] = values[k];
+            }
+        }
+    }
+
+
+    /** Builds a sparse matrix out of the dense one skipping all zero elements.
+     *
+     * @param m
+     * @return
+     */
+    public static SparseMatrix fromDense(Matrix m){
+        int nRows = m.getNRows();
+        int nCols = m.getNCols();
+        int[] rowPtr = new int[nRows + 1];
+        for(int r = 0; r < nRows; ++r){
+            int cnt = 0;
+            for(int c = 0; c < nCols; ++c){
+                if(m.getElem(r, c) != 0){
+                    ++cnt;
+                }
+            }
+            rowPtr[r + 1] = rowPtr[r] + cnt;
+        }
+        int[] colIdx = new int[rowPtr[nRows]];
+        double[] values = new double[rowPtr[nRows]];
+        int k = 0;
+        for(int r = 0; r < nRows; ++r){
+            for(int c = 0; c < nCols; ++c){
+                double v = m.getElem(r, c);
+                if(v != 0){
+                    colIdx[k] = c;
+                    values[k++] = v;
+                }
+            }
+        }
+        return new SparseMatrix(nRows, nCols, rowPtr, colIdx, values);
+    }
+
+
+    /** Dense copy of the matrix with zeros in place of missing elements.
+     *
+     * @return
+     */
+    public Matrix toDense(){
+        return toDense(0);
+    }
+
+    /** Dense copy of the matrix with missingValue in place of missing
+     * elements (for example +Inf for graph adjacency matrices). Diagonal
+     * elements that are missing are set to 0.
+     *
+     * @param missingValue
+     * @return
+     */
+    public Matrix toDense(double missingValue){
+        double[][] data = new double[mNRows][mNCols];
+        for(int r = 0; r < mNRows; ++r){
+            if(missingValue != 0){
+                Arrays.fill(data[r], missingValue);
+                if(r < mNCols){
+                    data[r][r] = 0;
+                }
+            }
+            for(int k = mRowPtr[r]; k < mRowPtr[r + 1]; ++k){
+                data[r][mColIdx[k]] = mRowValues[k];
+            }
+        }
+        return new Matrix(data, false);
+    }
+
+
+    public int getNRows(){
+        return mNRows;
+    }
+
+    public int getNCols(){
+        return mNCols;
+    }
+
+    /** Number of stored (nonzero) elements
+     *
+     * @return
+     */
+    public int getNNZ(){
+        return mRowPtr[mNRows];
+    }
+
+    public int rowStart(int iRow){
+        return mRowPtr[iRow];
+    }
+
+    public int rowEnd(int iRow){
+        return mRowPtr[iRow + 1];
+    }
+
+    public int colIndexAt(int k){
+        return mColIdx[k];
+    }
+
+    public double valueAt(int k){
+        return mRowValues[k];
+    }
+
+    public int colStart(int iCol){
+        return mColPtr[iCol];
+    }
+
+    public int colEnd(int iCol){
+        return mColPtr[iCol + 1];
+    }
+
+    public int rowIndexAt(int k){
+        return mRowIdx[k];
+    }
+
+    public double colValueAt(int k){
+        return mColValues[k];
+    }
+
+
+    /** Returns the element at (row, col) or 0 if it is not stored.
+     * O(log(nnz in row)).
+     *
+     * @param row
+     * @param col
+     * @return
+     */
+    public double getElem(int row, int col){
+        int k = Arrays.binarySearch(mColIdx, mRowPtr[row], mRowPtr[row + 1], col);
+        return (k >= 0) ? mRowValues[k] : 0;
+    }
+
+
+    /** Returned matrix is the transpose of this matrix. As both CSR and CSC
+     * forms are kept, this is O(1) and the (immutable) arrays are shared.
+     *
+     * @return
+     */
+    public SparseMatrix transpose(){
+        return new SparseMatrix(mNCols, mNRows,
+                mColPtr, mRowIdx, mColValues,
+                mRowPtr, mColIdx, mRowValues);
+    }
+
+
+    /** Returns (copy of) the nRows x nCols block of columns starting at
+     * column colStart. Useful for columnwise distribution among nodes.
+     *
+     * @param colStart
+     * @param nCols
+     * @return
+     */
+    public SparseMatrix getColumns(int colStart, int nCols){
+        if (colStart < 0 || nCols < 0 || colStart + nCols > mNCols){
+            throw new RuntimeException("Out-of-bounds column range.");
+        }
+        int base = mColPtr[colStart];
+        int nnz = mColPtr[colStart + nCols] - base;
+        int[] colPtr = new int[nCols + 1];
+        for(int c = 0; c <= nCols; ++c){
+            colPtr[c] = mColPtr[colStart + c] - base;
+        }
+        int[] rowIdx = Arrays.copyOfRange(mRowIdx, base, base + nnz);
+        double[] colValues = Arrays.copyOfRange(mColValues, base, base + nnz);
+
+        int[] rowPtr = new int[mNRows + 1];
+        int[] colIdx = new int[nnz];
+        double[] rowValues = new double[nnz];
+        compress(nCols, mNRows, colPtr, rowIdx, colValues,
+                rowPtr, colIdx, rowValues);
+        return new SparseMatrix(mNRows, nCols, rowPtr, colIdx, rowValues,
+                colPtr, rowIdx, colValues);
+    }
+
+
+    /** Sparse matrix - dense vector product (serial).
+     *
+     * @param x - vector of length nCols
+     * @return  - vector of length nRows
+     */
+    public double[] times(double[] x){
+        if(x.length != mNCols){
+            throw new RuntimeException("Matrix and vector sizes mismatch");
+        }
+        double[] y = new double[mNRows];
+        timesRows(x, y, 0, mNRows);
+        return y;
+    }
+
+
+    /** Sparse matrix - dense vector product computed in parallel. The rows are
+     * split into chunks of (approximately) equal number of nonzeros, so that
+     * the work is balanced even for graphs with very uneven vertex degrees.
+     *
+     * @param x         - vector of length nCols
+     * @param nChunks   - number of chunks processed by the common ForkJoin pool
+     *                    (at least 1)
+     * @return          - vector of length nRows
+     */
+    public double[] timesParallel(double[] x, int nChunks){
+        if(x.length != mNCols){
+            throw new RuntimeException("Matrix and vector sizes mismatch");
+        }
+        if(nChunks < 1){
+            throw new RuntimeException("Number of chunks has to be positive.");
+        }
+        double[] y = new double[mNRows];
+        int nnz = getNNZ();
+        int[] bounds = new int[nChunks + 1];
+        bounds[nChunks] = mNRows;
+        for(int i = 1; i < nChunks; ++i){
+            int k = Arrays.binarySearch(mRowPtr, 0, mNRows + 1,
+                    (int) ((long) i * nnz / nChunks));
+            bounds[i] = Math.max(bounds[i - 1], (k >= 0) ? k : -k - 2);
+        }
+        IntStream.range(0, nChunks).parallel().forEach((int i) -> {
+            timesRows(x, y, bounds[i], bounds[i + 1]);
+        });
+        return y;
+    }
+
+    public double[] timesParallel(double[] x){
+        return timesParallel(x, 4 * Runtime.getRuntime().availableProcessors());
+    }
+
+    private void timesRows(double[] x, double[] y, int rowFrom, int rowTo){
+        for(int r = rowFrom; r < rowTo; ++r){
+            double tmp = 0;
+            for(int k = mRowPtr[r]; k < mRowPtr[r + 1]; ++k){
+                tmp += mRowValues[k] * x[mColIdx[k]];
+            }
+            y[r] = tmp;
+        }
+    }
+
+
+    /** Reads a matrix from csv file straight into the sparse format, i.e.
+     * without building a dense matrix. Zero elements are not stored.
+     *
+     * @param csvFileName
+     * @return
+     */
+    public static SparseMatrix readFromCSVFile(String csvFileName)
+    {
+        int[] rowPtr = new int[17];
+        int[] colIdx = new int[64];
+        double[] values = new double[64];
+        int nRows = 0;
+        int nCols = 0;
+        int nnz = 0;
+
+        try (BufferedReader stream = new BufferedReader(new FileReader(csvFileName))) {
+            String line;
+            while ((line = stream.readLine()) != null){
+                if(line.isEmpty()){
+                    continue;
+                }
+                int col = 0;
+                int start = 0;
+                while(start <= line.length()){
+                    int end = line.indexOf(',', start);
+                    if(end < 0){
+                        end = line.length();
+                    }
+                    double v = Double.parseDouble(line.substring(start, end));
+                    if(v != 0){
+                        if(nnz == colIdx.length){
+                            colIdx = Arrays.copyOf(colIdx, 2*nnz);
+                            values = Arrays.copyOf(values, 2*nnz);
+                        }
+                        colIdx[nnz] = col;
+                        values[nnz++] = v;
+                    }
+                    ++col;
+                    start = end + 1;
+                }
+                nCols = Math.max(nCols, col);
+                if(nRows + 2 > rowPtr.length){
+                    rowPtr = Arrays.copyOf(rowPtr, 2*rowPtr.length);
+                }
+                rowPtr[++nRows] = nnz;
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(SparseMatrix.class.getName()).log(Level.SEVERE, null, ex);
+            return null;
+        }
+
+        return new SparseMatrix(nRows, nCols, Arrays.copyOf(rowPtr, nRows + 1),
+                colIdx, values);
+    }
+
+
+    /** Prints the dense form only for small matrices.
+     *
+     * @return
+     */
+    @Override
+    public String toString(){
+        String header = String.format("SparseMatrix [%d x %d], nnz = %d%n",
+                mNRows, mNCols, getNNZ());
+        if(mNRows > 32 || mNCols > 32){
+            return header;
+        }
+        return header + toDense().toString();
+    }
+}
@@ -5,6 +5,7 @@
 package distributedmodel;
 
 import datastructures.Matrix;
+import datastructures.SparseMatrix;
 import java.util.Arrays;
 import java.util.concurrent.BrokenBarrierException;
 import java.util.concurrent.CyclicBarrier;
@@ -29,6 +30,7 @@ public class Node implements Runnable{
     public Matrix A;        // for lab04 - part of a distributed matrix A
     public Matrix B;        // for lab04 - part of a distributed matrix B
     public Matrix C;        // for lab04 - part of A*B
+    public SparseMatrix S;  // for lab05 - (part of) a sparse adjacency matrix
     
     public static enum MatrixInNode{ A, B, C }     // for lab04
     
@@ -10,10 +10,12 @@ import algorithms.distributed.BasicCommunication;
 import algorithms.distributed.GraphAlgorithms;
 import datastructures.Edge;
 import datastructures.Matrix;
+import datastructures.SparseMatrix;
 import distributedmodel.DSConfig;
 import distributedmodel.DistributedSystem;
 import distributedmodel.Node;
 import java.io.File;
+import java.util.Arrays;
 import org.jfree.chart.JFreeChart;
 import org.jfree.data.xy.XYSeries;
 import org.jfree.data.xy.XYSeriesCollection;
@@ -36,6 +38,11 @@ public class Lab05 extends BaseLabDS{
         testSerialPrim(verboseCommunication, printStatus, printProcessingTime);
         testParallelPrim(verboseCommunication, printStatus, printProcessingTime);
         
+        testSerialPrimSparse(verboseCommunication, printStatus, printProcessingTime);
+        testParallelPrimSparse(verboseCommunication, printStatus, printProcessingTime);
+        
+        testSparseMatrixOperations();
+        
            testScalability();      //takes ca. 7 minutes (!)
         
     }
@@ -79,6 +86,101 @@ public class Lab05 extends BaseLabDS{
     }
     
     
+    private void testSerialPrimSparse(boolean verboseCommunication,
+            boolean printStatus, boolean printProcessingTime)
+    {
+        
+        int nNodes = 4;
+        SparseMatrix adj = loadSparseAdjMtx("mat6.txt");
+        
+        singleTestRun(new DSConfig(nNodes), (Node node) -> {
+            node.setLogCommunication(verboseCommunication);
+            GraphAlgorithms.findMSTPrimSerialSparse(node, printStatus);},
+                (DistributedSystem ds) -> {ds.getNode(0).S = adj;},
+                (DistributedSystem ds) -> { System.out.print(
+                    "Sparse adjacency mtx in node 0:\n"+ds.getNode(0).S.toString()); },
+                (DistributedSystem ds) -> {},
+                (DistributedSystem ds) -> {inDSValidateResult(ds, 8); },
+                printProcessingTime);
+        
+    }
+    
+    
+    private void testParallelPrimSparse(boolean verboseCommunication,
+            boolean printStatus, boolean printProcessingTime)
+    {
+        
+        int nNodes = 4;
+        SparseMatrix adj = loadSparseAdjMtx("mat6.txt");
+        
+        singleTestRun(new DSConfig(nNodes), (Node node) -> {
+            node.setLogCommunication(verboseCommunication);
+            GraphAlgorithms.findMSTPrimSparse(node, printStatus);},
+                (DistributedSystem ds) -> { inDSDistributeSparseAdjMtx(ds, adj); },
+                (DistributedSystem ds) -> {},
+                (DistributedSystem ds) -> {},
+                (DistributedSystem ds) -> {inDSValidateResult(ds, 8); },
+                printProcessingTime);
+    }
+    
+    
+    /** Dense <-> sparse round trip, transposition and sparse matrix - vector
+     * products (serial and parallel, also with more chunks than rows)
+     * compared with the dense product, on a random matrix with ca. 5% of
+     * nonzeros and some empty rows.
+     */
+    private void testSparseMatrixOperations(){
+        
+        int nRows = 300, nCols = 200;
+        double[][] data = new double[nRows][nCols];
+        for(int r = 0; r < nRows; r += (r % 7 == 0) ? 2 : 1){  //some rows left empty
+            for(int c = 0; c < nCols; ++c){
+                if(Math.random() < 0.05){
+                    data[r][c] = Math.random() - 0.5;
+                }
+            }
+        }
+        Matrix dense = new Matrix(data);
+        SparseMatrix sparse = SparseMatrix.fromDense(dense);
+        
+        double[] x = generateRandomData(nCols);
+        double[] xT = generateRandomData(nRows);
+        Matrix xCol = new Matrix(nCols, 1, x);
+        Matrix xTCol = new Matrix(nRows, 1, xT);
+        double[] y = dense.times(xCol).getMatrixRowwise();
+        double[] yT = dense.transpose().times(xTCol).getMatrixRowwise();
+        
+        boolean ok = Arrays.equals(sparse.toDense().getMatrixRowwise(),
+                                   dense.getMatrixRowwise())
+                && Arrays.equals(sparse.transpose().toDense().getMatrixRowwise(),
+                                 dense.transpose().getMatrixRowwise())
+                && vectorsAlmostEqual(sparse.times(x), y)
+                && vectorsAlmostEqual(sparse.timesParallel(x), y)
+                && vectorsAlmostEqual(sparse.timesParallel(x, 1), y)
+                && vectorsAlmostEqual(sparse.timesParallel(x, 7), y)
+                && vectorsAlmostEqual(sparse.timesParallel(x, 2*nRows), y)
+                && vectorsAlmostEqual(sparse.transpose().timesParallel(xT, 5), yT);
+        if(ok){
+            successfulValidationInfo();
+        }else{
+            failedValidationInfo();
+        }
+    }
+    
+    
+    private static boolean vectorsAlmostEqual(double[] a, double[] b){
+        if(a.length != b.length){
+            return false;
+        }
+        for(int i = 0; i < a.length; ++i){
+            if(!Utils.almostEqual(a[i], b[i], 1e-12)){
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    
     private void testScalability(){
         
         XYSeriesCollection seriesCollection = new XYSeriesCollection();
@@ -199,6 +301,26 @@ public class Lab05 extends BaseLabDS{
     }
     
     
+    private static SparseMatrix loadSparseAdjMtx(String filename){
+        String wdPath = System.getProperty("user.dir");
+        return SparseMatrix.readFromCSVFile(
+            wdPath+File.separator+"data"+File.separator+filename);
+    }
+    
+    
+    private static void inDSDistributeSparseAdjMtx(DistributedSystem ds,
+            SparseMatrix adj)
+    {
+        int nVertices = adj.getNCols();
+        int nNodes = ds.getNodes().length;
+        for(int n = 0; n < nNodes; ++n){
+            ds.getNode(n).S = adj.getColumns(
+                (n*nVertices)/nNodes,                               //first column
+                ((n+1)*nVertices)/nNodes - (n*nVertices)/nNodes);   //number of columns
+        }
+    }
+    
+    
     private static void inDSDistributeAdjMtx(DistributedSystem ds, Matrix adj){
         int nVertices = adj.getNCols();
         int nNodes = ds.getNodes().length;
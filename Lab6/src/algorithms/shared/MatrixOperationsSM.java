@@ -6,96 +6,341 @@
 package algorithms.shared;
 
 import datastructures.Matrix;
-import java.util.concurrent.BrokenBarrierException;
-import java.util.concurrent.CyclicBarrier;
-import java.util.logging.Level;
-import java.util.logging.Logger;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
  *
  * @author Karol Draszawka <kadr@eti.pg.gda.pl>
  */
 public class MatrixOperationsSM {
-    
-    
+
+    /** Products with fewer multiply-adds than this are computed in the calling
+     * thread - handing them over to the pool costs more than it saves.
+     */
+    static final long MIN_PARALLEL_WORK = 1 << 15;
+
+    /** Parts of the result are split into tiles until a tile needs at most
+     * this many multiply-adds (or is a single element).
+     */
+    static final long TILE_WORK = 1 << 16;
+
+    static final int GEMM_BLOCK = 64;
+
+
+    /** Parallel multiplication of two matrices.
+     *      The result is divided into a grid of nRowParts x nColParts parts
+     * (the parts at the edges may be smaller - the sizes do not need to be
+     * divisible by the grid), and every part is further split into tiles that
+     * fit in cache. The tiles are computed by the common ForkJoin pool, whose
+     * threads persist between calls and steal work from each other, so no
+     * threads are created per call. The grid only sets how the work is cut -
+     * the number of threads is the parallelism of the pool.
+     *      The elements of the result are summed in the same order as in
+     * Matrix.times(), so the results are equal.
+     *
+     * @param a
+     * @param b
+     * @param nRowParts   - number of parts along the rows
+     * @param nColParts   - number of parts along the columns
+     * @return
+     */
     public static Matrix multiplyMtx(Matrix a, Matrix b,
-                            int nThreadsPerRowDimension, int nThreadsPerColDimension)
+                            int nRowParts, int nColParts)
+    {
+        return multiplyMtx(a, b, nRowParts, nColParts,
+                ForkJoinPool.commonPool(), GEMM_BLOCK, TILE_WORK);
+    }
+
+
+    /** Parallel multiplication with the grid of parts, the tile size and the
+     * cache block chosen automatically - by MatmulAutotuner, which benchmarks
+     * the candidates on the first product of a given shape class and keeps
+     * the winners in an on-disk profile (see MatmulAutotuner).
+     *
+     * @param a
+     * @param b
+     * @return
+     */
+    public static Matrix multiplyMtx(Matrix a, Matrix b)
     {
         if(a.getNCols() != b.getNRows()){
             throw new RuntimeException("Matrices inner sizes mismatch");
         }
-        if (a.getNRows()%nThreadsPerRowDimension != 0){
-            throw new RuntimeException("nThreadsPerRow has to divide "
-                    + "the number of rows of matrix a.");
+        MatmulAutotuner.Config cfg = MatmulAutotuner.getConfig(
+                a.getNRows(), b.getNCols(), a.getNCols());
+        return multiplyMtx(a, b, cfg.gridRows, cfg.gridCols,
+                ForkJoinPool.commonPool(), cfg.block, cfg.tileWork);
+    }
+
+
+    /** The implementation of the above - computed by a given pool, with
+     * block x block cache blocks and tiles of at most tileWork multiply-adds.
+     */
+    static Matrix multiplyMtx(Matrix a, Matrix b,
+            int nRowParts, int nColParts,
+            ForkJoinPool pool, int block, long tileWork)
+    {
+        if(a.getNCols() != b.getNRows()){
+            throw new RuntimeException("Matrices inner sizes mismatch");
         }
-        if (b.getNCols()%nThreadsPerColDimension != 0){
-            throw new RuntimeException("nThreadsPerCol has to divide "
-                    + "the number of columns of matrix b.");
+        if(nRowParts < 1 || nColParts < 1){
+            throw new RuntimeException("The grid of parts must not be empty.");
         }
-        
-        Thread[][] workers = new Thread[nThreadsPerRowDimension][nThreadsPerColDimension];
-        
-        final CyclicBarrier barrier = new CyclicBarrier(nThreadsPerRowDimension*nThreadsPerColDimension);
-        final Matrix result = new Matrix(a.getNRows(), b.getNCols());
-        
-        class MtxMultiplier implements Runnable{
-            final int myRowStart;
-            final int myRowEnd;
-            final int myColStart;
-            final int myColEnd;
-
-            public MtxMultiplier(int myRidx, int myCidx)
-            {
-                myRowStart = (result.getNRows()/nThreadsPerRowDimension)*myRidx;
-                myRowEnd = (result.getNRows()/nThreadsPerRowDimension)*(myRidx+1);
-                myColStart = (result.getNCols()/nThreadsPerColDimension)*myCidx;
-                myColEnd = (result.getNCols()/nThreadsPerColDimension)*(myCidx+1);
+        int m = a.getNRows(), k = a.getNCols(), n = b.getNCols();
+        double[] aData = a.getMatrixRowwise();
+        double[] bData = b.getMatrixRowwise();
+        double[] cData = new double[m*n];
+
+        if((long) m * n * k < MIN_PARALLEL_WORK){
+            gemmBlocked(m, n, k, aData, 0, k, bData, 0, n, cData, 0, n, block);
+        }else{
+            int nGridRows = Math.min(nRowParts, Math.max(m, 1));
+            int nGridCols = Math.min(nColParts, Math.max(n, 1));
+            TileTask[] parts = new TileTask[nGridRows * nGridCols];
+            for(int i = 0; i < nGridRows; ++i){
+                for(int j = 0; j < nGridCols; ++j){
+                    parts[i*nGridCols + j] = new TileTask(aData, k, false,
+                            bData, cData, k, n,
+                            (m*i)/nGridRows, (m*(i+1))/nGridRows,
+                            (n*j)/nGridCols, (n*(j+1))/nGridCols,
+                            block, tileWork);
+                }
             }
+            invokeParts(pool, parts);
+        }
+        return new Matrix(m, n, cData);
+    }
+
+
+    /** Parallel A^T*B (A is [k x m], B is [k x n]) computed without building
+     * the transpose of A - e.g. the backward pass of a net.
+     *      The result is divided into a grid of nRowParts x nColParts parts
+     * split into tiles, as in multiplyMtx. A tile accumulates the outer
+     * products of the rows of A and B (restricted to its rows and columns),
+     * so both operands are read rowwise. The elements of the result are summed
+     * in the same order as in Matrix.transposeTimes(), so the results are equal.
+     *
+     * @param a
+     * @param b
+     * @param nRowParts     - number of parts along the rows of the result
+     * @param nColParts     - number of parts along the columns of the result
+     * @return
+     */
+    public static Matrix multiplyTransposedMtx(Matrix a, Matrix b,
+            int nRowParts, int nColParts)
+    {
+        return multiplyTransposedMtx(a, b, nRowParts, nColParts,
+                ForkJoinPool.commonPool(), TILE_WORK);
+    }
+
+
+    /** Parallel A^T*B with the grid of parts and the tile size chosen by
+     * MatmulAutotuner (for the shape of the result and the inner size).
+     *
+     * @param a
+     * @param b
+     * @return
+     */
+    public static Matrix multiplyTransposedMtx(Matrix a, Matrix b)
+    {
+        if(a.getNRows() != b.getNRows()){
+            throw new RuntimeException("Both matrices must have the same number of rows");
+        }
+        MatmulAutotuner.Config cfg = MatmulAutotuner.getConfig(
+                a.getNCols(), b.getNCols(), a.getNRows());
+        return multiplyTransposedMtx(a, b, cfg.gridRows, cfg.gridCols,
+                ForkJoinPool.commonPool(), cfg.tileWork);
+    }
+
 
+    static Matrix multiplyTransposedMtx(Matrix a, Matrix b,
+            int nRowParts, int nColParts, ForkJoinPool pool, long tileWork)
+    {
+        if(a.getNRows() != b.getNRows()){
+            throw new RuntimeException("Both matrices must have the same number of rows");
+        }
+        if(nRowParts < 1 || nColParts < 1){
+            throw new RuntimeException("The grid of parts must not be empty.");
+        }
+        int k = a.getNRows(), m = a.getNCols(), n = b.getNCols();
+        double[] aData = a.getMatrixRowwise();
+        double[] bData = b.getMatrixRowwise();
+        double[] cData = new double[m*n];
+
+        if((long) m * n * k < MIN_PARALLEL_WORK){
+            gemmTransposedA(m, n, k, aData, 0, m, bData, 0, n, cData, 0, n);
+        }else{
+            int nGridRows = Math.min(nRowParts, Math.max(m, 1));
+            int nGridCols = Math.min(nColParts, Math.max(n, 1));
+            TileTask[] parts = new TileTask[nGridRows * nGridCols];
+            for(int i = 0; i < nGridRows; ++i){
+                for(int j = 0; j < nGridCols; ++j){
+                    parts[i*nGridCols + j] = new TileTask(aData, m, true,
+                            bData, cData, k, n,
+                            (m*i)/nGridRows, (m*(i+1))/nGridRows,
+                            (n*j)/nGridCols, (n*(j+1))/nGridCols,
+                            GEMM_BLOCK, tileWork);
+                }
+            }
+            invokeParts(pool, parts);
+        }
+        return new Matrix(m, n, cData);
+    }
+
+
+    private static void invokeParts(ForkJoinPool pool, TileTask[] parts)
+    {
+        pool.invoke(new RecursiveAction() {
             @Override
-            public void run() {
-//                System.out.format("myRowStart=%d, myRowEnd=%d, myColStart=%d, myColEnd=%d\n", myRowStart, myRowEnd, myColStart, myColEnd);
-                for(int row = myRowStart; row < myRowEnd; ++row){
-                    for(int col = myColStart; col < myColEnd; ++col){
-                        double tmp = 0;
-                        for(int k = 0; k < a.getNCols(); ++k){
-                            tmp += a.getElem(row, k) * b.getElem(k, col);
-                        }
-                        result.setElem(row, col, tmp);
-                    }
+            protected void compute() {
+                invokeAll(parts);
+            }
+        });
+    }
+
+
+    /** Computes rows [rowFrom, rowTo) x columns [colFrom, colTo) of C = A*B
+     * (or of C = A^T*B if transposeA is set), halving the longer side until
+     * the tile is small enough.
+     */
+    @SuppressWarnings("serial")
+    private static class TileTask extends RecursiveAction {
+        private final double[] mA, mB, mC;
+        private final int mLda;
+        private final boolean mTransposeA;
+        private final int mK, mN;
+        private final int mRowFrom, mRowTo, mColFrom, mColTo;
+        private final int mBlock;
+        private final long mTileWork;
+
+        TileTask(double[] a, int lda, boolean transposeA,
+                double[] b, double[] c, int k, int n,
+                int rowFrom, int rowTo, int colFrom, int colTo,
+                int block, long tileWork)
+        {
+            mA = a; mB = b; mC = c;
+            mLda = lda; mTransposeA = transposeA;
+            mK = k; mN = n;
+            mRowFrom = rowFrom; mRowTo = rowTo;
+            mColFrom = colFrom; mColTo = colTo;
+            mBlock = block; mTileWork = tileWork;
+        }
+
+        @Override
+        protected void compute() {
+            int nRows = mRowTo - mRowFrom;
+            int nCols = mColTo - mColFrom;
+            if(nRows == 0 || nCols == 0){
+                return;
+            }
+            if((long) nRows * nCols * mK <= mTileWork || (nRows == 1 && nCols == 1)){
+                if(mTransposeA){
+                    gemmTransposedA(nRows, nCols, mK,
+                            mA, mRowFrom, mLda,
+                            mB, mColFrom, mN,
+                            mC, mRowFrom*mN + mColFrom, mN);
+                }else{
+                    gemmBlocked(nRows, nCols, mK,
+                            mA, mRowFrom*mLda, mLda,
+                            mB, mColFrom, mN,
+                            mC, mRowFrom*mN + mColFrom, mN, mBlock);
                 }
-                try {
-                    barrier.await();
-                } catch (InterruptedException | BrokenBarrierException ex) {
-                    Logger.getLogger(MatrixOperationsSM.class.getName())
-                            .log(Level.SEVERE, null, ex);
+            }else if(nRows >= nCols){
+                int rowMid = mRowFrom + nRows/2;
+                invokeAll(sub(mRowFrom, rowMid, mColFrom, mColTo),
+                          sub(rowMid, mRowTo, mColFrom, mColTo));
+            }else{
+                int colMid = mColFrom + nCols/2;
+                invokeAll(sub(mRowFrom, mRowTo, mColFrom, colMid),
+                          sub(mRowFrom, mRowTo, colMid, mColTo));
+            }
+        }
+
+        private TileTask sub(int rowFrom, int rowTo, int colFrom, int colTo)
+        {
+            return new TileTask(mA, mLda, mTransposeA, mB, mC, mK, mN,
+                    rowFrom, rowTo, colFrom, colTo, mBlock, mTileWork);
+        }
+    }
+
+
+    /** Classical multiplication, blocked so that the tiles of all three
+     * matrices stay in cache. Operates directly on row-major arrays - element
+     * (i,j) of a matrix is at data[off + i*ld + j].
+     *      Computes C = A*B where A is [m x k], B is [k x n]; C is overwritten.
+     */
+    static void gemmBlocked(int m, int n, int k,
+            double[] a, int aOff, int lda,
+            double[] b, int bOff, int ldb,
+            double[] c, int cOff, int ldc)
+    {
+        gemmBlocked(m, n, k, a, aOff, lda, b, bOff, ldb, c, cOff, ldc, GEMM_BLOCK);
+    }
+
+
+    /** Computes C = A^T*B where A is [k x m], B is [k x n]; C [m x n] is
+     * overwritten. Accumulates the outer products of the rows of A and B one
+     * after another (row-major arrays as in gemmBlocked).
+     */
+    static void gemmTransposedA(int m, int n, int k,
+            double[] a, int aOff, int lda,
+            double[] b, int bOff, int ldb,
+            double[] c, int cOff, int ldc)
+    {
+        for(int i = 0; i < m; ++i){
+            int cRow = cOff + i*ldc;
+            for(int j = 0; j < n; ++j){
+                c[cRow + j] = 0;
+            }
+        }
+        for(int p = 0; p < k; ++p){
+            int aRow = aOff + p*lda;
+            int bRow = bOff + p*ldb;
+            for(int i = 0; i < m; ++i){
+                double aPI = a[aRow + i];
+                int cRow = cOff + i*ldc;
+                for(int j = 0; j < n; ++j){
+                    c[cRow + j] += aPI * b[bRow + j];
                 }
             }
         }
-        
-        
-        //start all the threads
-        for(int row = 0; row<nThreadsPerRowDimension; ++row){
-            for(int col = 0; col < nThreadsPerColDimension; ++col){
-                workers[row][col] = new Thread(new MtxMultiplier(row, col));
-                workers[row][col].start();
+    }
+
+
+    /** Same as gemmBlocked above, with block x block tiles.
+     */
+    static void gemmBlocked(int m, int n, int k,
+            double[] a, int aOff, int lda,
+            double[] b, int bOff, int ldb,
+            double[] c, int cOff, int ldc, int block)
+    {
+        for(int i = 0; i < m; ++i){
+            int cRow = cOff + i*ldc;
+            for(int j = 0; j < n; ++j){
+                c[cRow + j] = 0;
             }
         }
-        
-        //wait for all the threads to finish
-        for(int row = 0; row<nThreadsPerRowDimension; ++row){
-            for(int col = 0; col < nThreadsPerColDimension; ++col){
-                try {
-                workers[row][col].join();
-                } catch (InterruptedException ex) {
-                    Logger.getLogger(BasicCommunicationSharedMem.class.getName())
-                            .log(Level.SEVERE, null, ex);
+        for(int i0 = 0; i0 < m; i0 += block){
+            int i1 = Math.min(i0 + block, m);
+            for(int p0 = 0; p0 < k; p0 += block){
+                int p1 = Math.min(p0 + block, k);
+                for(int j0 = 0; j0 < n; j0 += block){
+                    int j1 = Math.min(j0 + block, n);
+                    for(int i = i0; i < i1; ++i){
+                        int cRow = cOff + i*ldc;
+                        int aRow = aOff + i*lda;
+                        for(int p = p0; p < p1; ++p){
+                            double aIP = a[aRow + p];
+                            int bRow = bOff + p*ldb;
+                            for(int j = j0; j < j1; ++j){
+                                c[cRow + j] += aIP * b[bRow + j];
+                            }
+                        }
+                    }
                 }
             }
         }
-        
-        return result;
     }
-    
-    
+
 }
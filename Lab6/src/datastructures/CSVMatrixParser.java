@@ -0,0 +1,433 @@
+/*
+ *  This code is for Parallel and Distributed Algorithms
+ *  laboratory at Gdansk University of Technology
+ */
+package datastructures;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/** Parallel parser of matrices stored as CSV (one row per line, elements
+ * separated by commas; blank lines are skipped, and so are empty cells at the
+ * end of a row - "1,2," is the row [1, 2], as with the former reader based on
+ * String.split).
+ *      The file is split into byte ranges (chunks) ending at line boundaries;
+ * each chunk is memory mapped and processed by a separate task in two
+ * passes. The first pass counts the rows of every chunk, which gives the
+ * index of the first row of each chunk in the destination. The second pass
+ * parses the numbers straight from the mapped bytes into the rows of the
+ * destination array - no String or list is created per cell.
+ *      Numbers with at most 18 significant digits and a small decimal
+ * exponent (i.e. practically everything in our data files) are converted
+ * exactly by a single multiplication or division by a power of ten; the rest
+ * (and NaN, Infinity, hexadecimal notation) fall back to Double.parseDouble,
+ * so the results are always the same as of Double.parseDouble.
+ *
+ * @author Karol Draszawka <kadr@eti.pg.gda.pl>
+ */
+final class CSVMatrixParser {
+
+    private static final int TARGET_CHUNK_BYTES = 4 << 20;
+
+    /** Powers of ten exactly representable as doubles.
+     */
+    private static final double[] POW10 = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+    private static final int MAX_MANTISSA_DIGITS = 18;
+
+    private final String mFileName;
+    private final FileChannel mChannel;
+    private long[] mChunkStart;     //nChunks+1 entries; last = file size
+    private int[] mChunkFirstRow;   //nChunks+1 entries; last = number of rows
+
+
+    private CSVMatrixParser(String fileName, FileChannel channel){
+        mFileName = fileName;
+        mChannel = channel;
+    }
+
+
+    /** Reads the matrix.
+     *
+     * @param csvFileName
+     * @return      - the rows of the matrix
+     * @throws IOException - also if the rows have different numbers of
+     *                       elements or an element is not a number
+     */
+    static double[][] parse(String csvFileName) throws IOException
+    {
+        try (RandomAccessFile file = new RandomAccessFile(csvFileName, "r");
+                FileChannel channel = file.getChannel()){
+            CSVMatrixParser parser = new CSVMatrixParser(csvFileName, channel);
+            try {
+                return parser.parse();
+            } catch (UncheckedIOException ex){
+                throw ex.getCause();
+            }
+        }
+    }
+
+
+    private double[][] parse() throws IOException
+    {
+        splitIntoChunks();
+        int nChunks = mChunkStart.length - 1;
+
+        int[] rowsInChunk = new int[nChunks];
+        IntStream.range(0, nChunks).parallel().forEach((int c) -> {
+            rowsInChunk[c] = countRows(mapChunk(c));
+        });
+        mChunkFirstRow = new int[nChunks + 1];
+        for(int c = 0; c < nChunks; ++c){
+            mChunkFirstRow[c+1] = mChunkFirstRow[c] + rowsInChunk[c];
+        }
+        int nRows = mChunkFirstRow[nChunks];
+        if(nRows == 0){
+            throw new IOException("No data in: " + mFileName);
+        }
+
+        int nCols = countColumnsOfFirstRow();
+        double[][] data = new double[nRows][nCols];
+        IntStream.range(0, nChunks).parallel().forEach((int c) -> {
+            new ChunkReader(mapChunk(c), mChunkFirstRow[c]).readRows(data);
+        });
+        return data;
+    }
+
+
+    /** Sets chunk boundaries - every boundary is moved forward to the
+     * beginning of the next line.
+     */
+    private void splitIntoChunks() throws IOException
+    {
+        long size = mChannel.size();
+        int nChunks = (int) Math.max(1, Math.min(
+                (size + TARGET_CHUNK_BYTES - 1) / TARGET_CHUNK_BYTES,
+                Integer.MAX_VALUE / 2));
+        nChunks = Math.max(nChunks, Math.min(
+                ForkJoinPool.getCommonPoolParallelism(), (int) (size / 1024) + 1));
+        mChunkStart = new long[nChunks + 1];
+        mChunkStart[nChunks] = size;
+        ByteBuffer window = ByteBuffer.allocate(4096);
+        for(int c = 1; c < nChunks; ++c){
+            long pos = Math.max(size * c / nChunks, mChunkStart[c-1]);
+            mChunkStart[c] = nextLineStart(pos, size, window);
+        }
+    }
+
+
+    private long nextLineStart(long pos, long size, ByteBuffer window)
+            throws IOException
+    {
+        if(pos == 0){
+            return 0;
+        }
+        pos -= 1;   //pos itself may be the start of a line
+        while(pos < size){
+            window.clear();
+            int n = mChannel.read(window, pos);
+            if(n <= 0){
+                break;
+            }
+            for(int i = 0; i < n; ++i){
+                if(window.get(i) == '\n'){
+                    return pos + i + 1;
+                }
+            }
+            pos += n;
+        }
+        return size;
+    }
+
+
+    private MappedByteBuffer mapChunk(int c)
+    {
+        long length = mChunkStart[c+1] - mChunkStart[c];
+        if(length > Integer.MAX_VALUE){
+            throw new UncheckedIOException(new IOException(
+                    "Line too long in: " + mFileName));
+        }
+        try {
+            return mChannel.map(FileChannel.MapMode.READ_ONLY,
+                    mChunkStart[c], length);
+        } catch (IOException ex){
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+
+    private static int countRows(ByteBuffer buf)
+    {
+        int nRows = 0;
+        boolean blank = true;
+        int end = buf.limit();
+        for(int i = 0; i < end; ++i){
+            byte b = buf.get(i);
+            if(b == '\n'){
+                if(!blank){
+                    ++nRows;
+                }
+                blank = true;
+            }else if(!isBlank(b)){
+                blank = false;
+            }
+        }
+        return blank ? nRows : nRows + 1;   //last line without '\n'
+    }
+
+
+    private int countColumnsOfFirstRow()
+    {
+        for(int c = 0; c < mChunkStart.length - 1; ++c){
+            if(mChunkFirstRow[c+1] > mChunkFirstRow[c]){
+                ByteBuffer buf = mapChunk(c);
+                int i = 0;
+                while(isBlankLineAt(buf, i)){
+                    while(buf.get(i) != '\n'){
+                        ++i;
+                    }
+                    ++i;
+                }
+                int nCols = 1;
+                int nCommas = 0;
+                for(; i < buf.limit() && buf.get(i) != '\n'; ++i){
+                    byte b = buf.get(i);
+                    if(b == ','){
+                        ++nCommas;
+                    }else if(!isBlank(b)){
+                        nCols = nCommas + 1;    //trailing commas do not count
+                    }
+                }
+                return nCols;
+            }
+        }
+        return 0;
+    }
+
+
+    private static boolean isBlankLineAt(ByteBuffer buf, int i)
+    {
+        for(; i < buf.limit(); ++i){
+            byte b = buf.get(i);
+            if(b == '\n'){
+                return true;
+            }
+            if(!isBlank(b)){
+                return false;
+            }
+        }
+        return true;    //the last line, without '\n'
+    }
+
+
+    /** Whether the rest of the line (from i) holds only empty cells.
+     */
+    private static boolean isTrailingEmptyCellsAt(ByteBuffer buf, int i)
+    {
+        for(; i < buf.limit(); ++i){
+            byte b = buf.get(i);
+            if(b == '\n'){
+                return true;
+            }
+            if(b != ',' && !isBlank(b)){
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    private static boolean isBlank(byte b){
+        return b == ' ' || b == '\t' || b == '\r';
+    }
+
+
+    /** Parses rows of one chunk (the position in the chunk is kept in a field
+     * so that the number parser can advance it).
+     */
+    private final class ChunkReader {
+        private final ByteBuffer mBuf;
+        private final int mEnd;
+        private final int mFirstRow;
+        private int mPos;
+
+        ChunkReader(ByteBuffer buf, int firstRow){
+            mBuf = buf;
+            mEnd = buf.limit();
+            mFirstRow = firstRow;
+            mPos = 0;
+        }
+
+        void readRows(double[][] data)
+        {
+            int row = mFirstRow;
+            while(mPos < mEnd){
+                if(isBlankLineAt(mBuf, mPos)){
+                    skipLine();
+                    continue;
+                }
+                double[] dst = data[row];
+                int col = 0;
+                while(true){
+                    double value = parseCell();
+                    if(col < dst.length){
+                        dst[col] = value;
+                    }
+                    ++col;
+                    if(mPos < mEnd && mBuf.get(mPos) == ','){
+                        ++mPos;
+                        if(isTrailingEmptyCellsAt(mBuf, mPos)){
+                            break;
+                        }
+                        continue;
+                    }
+                    break;
+                }
+                if(col != dst.length){
+                    throw error("Row " + row + " has " + col
+                            + " elements, expected " + dst.length);
+                }
+                skipLine();
+                ++row;
+            }
+        }
+
+        private void skipLine(){
+            while(mPos < mEnd && mBuf.get(mPos) != '\n'){
+                ++mPos;
+            }
+            ++mPos;
+        }
+
+        private void skipBlanks(){
+            while(mPos < mEnd && isBlank(mBuf.get(mPos))){
+                ++mPos;
+            }
+        }
+
+        /** Parses a number starting at mPos and leaves mPos at the following
+         * ',' or line end.
+         */
+        private double parseCell()
+        {
+            skipBlanks();
+            int start = mPos;
+            boolean negative = false;
+            if(mPos < mEnd && (mBuf.get(mPos) == '-' || mBuf.get(mPos) == '+')){
+                negative = mBuf.get(mPos) == '-';
+                ++mPos;
+            }
+            long mantissa = 0;
+            int nDigits = 0;        //significant digits in mantissa
+            int exp10 = 0;
+            boolean anyDigit = false;
+            boolean exact = true;
+            byte b = 0;
+            for(; mPos < mEnd; ++mPos){     //integer part
+                b = mBuf.get(mPos);
+                if(b < '0' || b > '9'){
+                    break;
+                }
+                anyDigit = true;
+                if(nDigits < MAX_MANTISSA_DIGITS){
+                    mantissa = mantissa*10 + (b - '0');
+                    if(mantissa != 0){
+                        ++nDigits;
+                    }
+                }else{
+                    exact = false;
+                }
+            }
+            if(mPos < mEnd && mBuf.get(mPos) == '.'){   //fraction
+                for(++mPos; mPos < mEnd; ++mPos){
+                    b = mBuf.get(mPos);
+                    if(b < '0' || b > '9'){
+                        break;
+                    }
+                    anyDigit = true;
+                    if(nDigits < MAX_MANTISSA_DIGITS){
+                        mantissa = mantissa*10 + (b - '0');
+                        --exp10;
+                        if(mantissa != 0){
+                            ++nDigits;
+                        }
+                    }else{
+                        exact = false;
+                    }
+                }
+            }
+            if(anyDigit && mPos < mEnd
+                    && (mBuf.get(mPos) == 'e' || mBuf.get(mPos) == 'E')){
+                ++mPos;
+                boolean negativeExp = false;
+                if(mPos < mEnd && (mBuf.get(mPos) == '-' || mBuf.get(mPos) == '+')){
+                    negativeExp = mBuf.get(mPos) == '-';
+                    ++mPos;
+                }
+                int exp = 0;
+                boolean anyExpDigit = false;
+                for(; mPos < mEnd; ++mPos){
+                    b = mBuf.get(mPos);
+                    if(b < '0' || b > '9'){
+                        break;
+                    }
+                    anyExpDigit = true;
+                    exp = Math.min(exp*10 + (b - '0'), 100000);
+                }
+                if(!anyExpDigit){
+                    anyDigit = false;
+                }
+                exp10 += negativeExp ? -exp : exp;
+            }
+            int end = mPos;
+            skipBlanks();
+            boolean atDelimiter = mPos >= mEnd
+                    || mBuf.get(mPos) == ',' || mBuf.get(mPos) == '\n';
+
+            if(anyDigit && atDelimiter && exact
+                    && mantissa <= MAX_EXACT_MANTISSA
+                    && exp10 >= -22 && exp10 <= 22){
+                double value = exp10 >= 0 ?
+                        mantissa * POW10[exp10] : mantissa / POW10[-exp10];
+                return negative ? -value : value;
+            }
+            return parseSlow(start);
+        }
+
+        /** Double.parseDouble of the whole cell - handles the numbers the
+         * fast path cannot convert exactly and reports malformed cells.
+         */
+        private double parseSlow(int start)
+        {
+            mPos = start;
+            while(mPos < mEnd && mBuf.get(mPos) != ',' && mBuf.get(mPos) != '\n'){
+                ++mPos;
+            }
+            byte[] bytes = new byte[mPos - start];
+            for(int i = 0; i < bytes.length; ++i){
+                bytes[i] = mBuf.get(start + i);
+            }
+            String cell = new String(bytes, StandardCharsets.US_ASCII).trim();
+            try {
+                return Double.parseDouble(cell);
+            } catch (NumberFormatException ex){
+                throw error("Not a number: \"" + cell + "\"");
+            }
+        }
+
+        private UncheckedIOException error(String message){
+            return new UncheckedIOException(new IOException(
+                    message + " in: " + mFileName));
+        }
+    }
+}
@@ -0,0 +1,714 @@
+/*
+ *  This code is for Parallel and Distributed Algorithms
+ *  laboratory at Gdansk University of Technology
+ */
+package datastructures;
+
+import java.util.Arrays;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.DoubleUnaryOperator;
+
+/** Single precision version of Matrix, with (almost) the same interface.
+ *      The data is stored as floats, but all the reductions (inner products in
+ * times(), reduceRows(), reduceColumns()...) are accumulated in doubles and
+ * rounded to float only once, when the result is stored (mixed precision).
+ *
+ * @author Karol Draszawka <kadr@eti.pg.gda.pl>
+ */
+public final class FloatMatrix {
+    final private float[][] mData;
+    final private int mNRows;
+    final private int mNCols;
+
+
+
+    public FloatMatrix(int nRows, int nCols, float[] dataRowwise){
+        this(nRows, nCols, dataRowwise, 0);
+    }
+
+    public FloatMatrix(int nRows, int nCols, float[] dataRowwise, int offset)
+    {
+        if(dataRowwise.length - offset < nRows*nCols){
+            throw new RuntimeException(
+                    "Matrix of the specified size requires more data");
+        }
+        mNRows = nRows;
+        mNCols = nCols;
+        mData = new float[nRows][nCols];
+        int i = offset;
+        for(int row = 0; row < nRows; ++row){
+            System.arraycopy(dataRowwise, i, mData[row], 0, nCols);
+            i += nCols;
+        }
+    }
+
+    /** Rounds the double data (given rowwise) to floats.
+     *
+     * @param nRows
+     * @param nCols
+     * @param dataRowwise
+     */
+    public FloatMatrix(int nRows, int nCols, double[] dataRowwise)
+    {
+        if(dataRowwise.length < nRows*nCols){
+            throw new RuntimeException(
+                    "Matrix of the specified size requires more data");
+        }
+        mNRows = nRows;
+        mNCols = nCols;
+        mData = new float[nRows][nCols];
+        int i = 0;
+        for(int row = 0; row < nRows; ++row){
+            for(int col = 0; col < nCols; ++col){
+                mData[row][col] = (float) dataRowwise[i++];
+            }
+        }
+    }
+
+
+    /** Creates nRows by nCols zero matrix
+     *
+     * @param nRows
+     * @param nCols
+     */
+    public FloatMatrix(int nRows, int nCols)
+    {
+        mNRows = nRows;
+        mNCols = nCols;
+        mData = new float[nRows][nCols];
+    }
+
+    /** Copies the 2d array of floats and wraps it into a matrix object.
+     *
+     * @param data
+     */
+    public FloatMatrix(float[][] data){
+        this(data, true);
+    }
+
+    /** Wraps the 2d-array of floats into a matrix object, optionally copying
+     * them.
+     *
+     * @param data
+     * @param copyFlag - if true the data is copied
+     */
+    public FloatMatrix(float[][] data, boolean copyFlag){
+        mNRows = data.length;
+        mNCols = data[0].length;
+        if(!copyFlag){
+            mData = data;
+        }else{
+            mData = new float[mNRows][mNCols];
+            for(int i = 0; i < mNRows; ++i){
+                System.arraycopy(data[i], 0, mData[i], 0, mNCols);
+            }
+        }
+    }
+
+
+    /** Copy constructor
+     *
+     * @param other
+     */
+    public FloatMatrix(FloatMatrix other){
+        this(other.mData);
+    }
+
+
+    /** Converting constructor - rounds the elements of a double matrix
+     *
+     * @param other
+     */
+    public FloatMatrix(Matrix other){
+        mNRows = other.getNRows();
+        mNCols = other.getNCols();
+        mData = new float[mNRows][mNCols];
+        for(int row = 0; row < mNRows; ++row){
+            for(int col = 0; col < mNCols; ++col){
+                mData[row][col] = (float) other.getElem(row, col);
+            }
+        }
+    }
+
+
+    /** Returns a double precision copy of the matrix
+     *
+     * @return
+     */
+    public Matrix toMatrix(){
+        double[][] data = new double[mNRows][mNCols];
+        for(int row = 0; row < mNRows; ++row){
+            for(int col = 0; col < mNCols; ++col){
+                data[row][col] = mData[row][col];
+            }
+        }
+        return new Matrix(data, false);
+    }
+
+
+    public int getNRows(){
+        return mNRows;
+    }
+
+    public int getNCols(){
+        return mNCols;
+    }
+
+    /** 'Serializes' the matrix data in a rowwise order
+     *
+     * @return
+     */
+    public float[] getMatrixRowwise()
+    {
+        float[] res = new float[mNRows*mNCols];
+        for(int row = 0; row < mNRows; ++row){
+            System.arraycopy(mData[row], 0, res, row*mNCols, mNCols);
+        }
+        return res;
+    }
+
+    /** Returns (copy of) submatrix of the matrix (this object), indicated by the position
+     * of the upper left element and size of the submatrix.
+     *
+     * @param upLeftRow - can be between 0 and mNRows-1
+     * @param upLeftCol - can be between 0 and mNCols-1
+     * @param nRows
+     * @param nCols
+     * @return
+     */
+    public FloatMatrix getSubmatrix(int upLeftRow, int upLeftCol,
+            int nRows, int nCols)
+    {
+        if (upLeftRow < 0 || upLeftRow >= mNRows ||
+                upLeftCol < 0 || upLeftCol >= mNCols){
+            throw new RuntimeException("Out-of-bounds upper-left corner of a submatrix.");
+        }
+        int bottomRightRow = upLeftRow + nRows - 1;
+        int bottomRightCol = upLeftCol + nCols - 1;
+        if (bottomRightRow < upLeftRow || bottomRightRow >= mNRows ||
+                bottomRightCol < upLeftCol || bottomRightCol >= mNCols) {
+            throw new RuntimeException("Out-of-bounds bottom-right corner of a submatrix.");
+        }
+        float[][] data = new float[nRows][nCols];
+        for (int i = 0; i<nRows; ++i){
+            System.arraycopy(mData[upLeftRow+i], upLeftCol, data[i], 0, nCols);
+        }
+        return new FloatMatrix(data, false);
+    }
+
+
+    /** Sets a submatrix data into this matrix in the place defined by upper
+     * left corner placement
+     *
+     * @param submatrix
+     * @param upLeftRow - can be between 0 and this.mNRows-1
+     * @param upLeftCol  - can be between 0 and this.mNCols-1
+     */
+    public void setSubmatrix(FloatMatrix submatrix, int upLeftRow, int upLeftCol)
+    {
+        int nRows = submatrix.getNRows();
+        int nCols = submatrix.getNCols();
+
+        if (upLeftRow < 0 || upLeftRow >= mNRows ||
+                upLeftCol < 0 || upLeftCol >= mNCols){
+            throw new RuntimeException("Out-of-bounds upper-left corner of a submatrix.");
+        }
+        int bottomRightRow = upLeftRow + nRows - 1;
+        int bottomRightCol = upLeftCol + nCols - 1;
+        if (bottomRightRow < upLeftRow || bottomRightRow >= mNRows ||
+                bottomRightCol < upLeftCol || bottomRightCol >= mNCols) {
+            throw new RuntimeException("Out-of-bounds bottom-right corner of a submatrix.");
+        }
+
+        for (int i = 0; i<nRows; ++i){
+            System.arraycopy(submatrix.mData[i], 0, mData[upLeftRow+i], upLeftCol, nCols);
+        }
+    }
+
+
+    /** Returns a copy of the specified row
+     *
+     * @param iRow - the row number
+     * @return
+     */
+    public float[] getRow(int iRow){
+        if (iRow < 0 || iRow>=mNRows){
+            return null;
+        }
+        float[] res = new float[mNCols];
+        System.arraycopy(mData[iRow], 0, res, 0, mNCols);
+        return res;
+    }
+
+    /** Sets the row iRow of the matrix to a copy of values
+     *
+     * @param iRow
+     * @param values
+     */
+    public void setRow(int iRow, float[] values){
+        if (iRow < 0 || iRow>=mNRows || values.length != mNCols){
+            return;
+        }
+        System.arraycopy(values, 0, mData[iRow], 0, mNCols);
+    }
+
+    /** Returns a copy of iCol column
+     *
+     * @param iCol
+     * @return
+     */
+    public float[] getCol(int iCol){
+        if (iCol < 0 || iCol>=mNCols){
+            return null;
+        }
+        float[] res = new float[mNRows];
+        for(int row = 0; row < mNRows; ++row){
+            res[row] = mData[row][iCol];
+        }
+        return res;
+    }
+
+    /** Sets the iCol column values to copies of values.
+     *
+     * @param iCol
+     * @param values
+     */
+    public void setCol(int iCol, float[] values){
+        if (iCol < 0 || iCol>=mNCols || values.length != mNRows){
+            return;
+        }
+        for(int row = 0; row < mNRows; ++row){
+            mData[row][iCol] = values[row];
+        }
+    }
+
+    public float getElem(int row, int col){
+        return mData[row][col];
+    }
+
+    public void setElem(int iRow, int iCol, float value){
+        if (iRow < 0 || iRow >= mNRows || iCol < 0 || iCol >= mNCols){
+            return;
+        }
+        mData[iRow][iCol] = value;
+    }
+
+
+    public FloatMatrix times(FloatMatrix other){
+        if(this.mNCols != other.mNRows){
+            throw new RuntimeException("Matrices inner sizes mismatch");
+        }
+        FloatMatrix res = new FloatMatrix(mNRows, other.mNCols);
+        for(int row = 0; row < res.mNRows; ++row){
+            for(int col = 0; col < res.mNCols; ++col){
+                double tmp = 0;
+                for(int k = 0; k < this.mNCols; ++k){
+                    tmp += (double) mData[row][k] * other.mData[k][col];
+                }
+                res.mData[row][col] = (float) tmp;
+            }
+        }
+        return res;
+    }
+
+
+    public FloatMatrix times(double scalar)
+    {
+        return this.applyFunctionElementwise((double e) -> {return e*scalar;});
+    }
+
+    public FloatMatrix timesInPlace(double scalar)
+    {
+        return this.applyFunctionElementwiseInPlace((double e) -> {return e*scalar;});
+    }
+
+    public FloatMatrix divide(double scalar)
+    {
+        return this.applyFunctionElementwise((double e) -> {return e/scalar;});
+    }
+
+    public FloatMatrix divideInPlace(double scalar)
+    {
+        return this.applyFunctionElementwiseInPlace((double e) -> {return e/scalar;});
+    }
+
+    public FloatMatrix add(double scalar)
+    {
+        return this.applyFunctionElementwise((double e) -> {return e+scalar;});
+    }
+
+    public FloatMatrix addInPlace(double scalar)
+    {
+        return this.applyFunctionElementwiseInPlace((double e) -> {return e+scalar;});
+    }
+
+    public FloatMatrix subtract(double scalar)
+    {
+        return this.applyFunctionElementwise((double e) -> {return e-scalar;});
+    }
+
+    public FloatMatrix subtractInPlace(double scalar)
+    {
+        return this.applyFunctionElementwiseInPlace((double e) -> {return e-scalar;});
+    }
+
+
+    /** This is equivalent to this.times(other.transpose()) but avoids
+     * unnecessary alocations.
+     *
+     * @param other
+     * @return
+     */
+    public FloatMatrix timesByTranspose(FloatMatrix other){
+        if(this.mNCols != other.mNCols){
+            throw new RuntimeException(
+                "Both matrices must have the same number of columns");
+        }
+        FloatMatrix res = new FloatMatrix(mNRows, other.mNRows);
+        for(int row = 0; row < res.mNRows; ++row){
+            for(int col = 0; col < res.mNCols; ++col){
+                double tmp = 0;
+                for(int k = 0; k < this.mNCols; ++k){
+                    tmp += (double) mData[row][k] * other.mData[col][k];
+                }
+                res.mData[row][col] = (float) tmp;
+            }
+        }
+        return res;
+    }
+
+
+    /** This is equivalent to this.transpose().times(other) without
+     * allocating the transpose. Each result row is accumulated in a double
+     * buffer reading the rows of other in their natural layout.
+     * 
+     * @param other
+     * @return 
+     */
+    public FloatMatrix transposeTimes(FloatMatrix other){
+        if(this.mNRows != other.mNRows){
+            throw new RuntimeException(
+                "Both matrices must have the same number of rows");
+        }
+        FloatMatrix res = new FloatMatrix(mNCols, other.mNCols);
+        double[] accu = new double[other.mNCols];
+        for(int i = 0; i < mNCols; ++i){
+            Arrays.fill(accu, 0);
+            for(int r = 0; r < mNRows; ++r){
+                double a = mData[r][i];
+                float[] bRow = other.mData[r];
+                for(int j = 0; j < accu.length; ++j){
+                    accu[j] += a * bRow[j];
+                }
+            }
+            float[] resRow = res.mData[i];
+            for(int j = 0; j < accu.length; ++j){
+                resRow[j] = (float) accu[j];
+            }
+        }
+        return res;
+    }
+
+
+    public FloatMatrix timesElementByElement(FloatMatrix other){
+        if(this.mNRows != other.mNRows || this.mNCols != other.mNCols){
+            throw new RuntimeException("Matrices sizes mismatch");
+        }
+        FloatMatrix res = new FloatMatrix(mNRows, mNCols);
+        for(int row = 0; row < res.mNRows; ++row){
+            for(int col = 0; col < res.mNCols; ++col){
+                res.mData[row][col] = mData[row][col] * other.mData[row][col];
+            }
+        }
+        return res;
+    }
+
+    public FloatMatrix timesElementByElementInPlace(FloatMatrix other){
+        if(this.mNRows != other.mNRows || this.mNCols != other.mNCols){
+            throw new RuntimeException("Matrices sizes mismatch");
+        }
+        for(int row = 0; row < mNRows; ++row){
+            for(int col = 0; col < mNCols; ++col){
+                mData[row][col] *= other.mData[row][col];
+            }
+        }
+        return this;
+    }
+
+
+    public FloatMatrix add(FloatMatrix other){
+        if(this.mNRows != other.mNRows || this.mNCols != other.mNCols){
+            throw new RuntimeException("Matrices sizes mismatch");
+        }
+        FloatMatrix res = new FloatMatrix(mNRows, mNCols);
+        for(int row = 0; row < res.mNRows; ++row){
+            for(int col = 0; col < res.mNCols; ++col){
+                res.mData[row][col] = mData[row][col] + other.mData[row][col];
+            }
+        }
+        return res;
+    }
+
+
+    public FloatMatrix subtract(FloatMatrix other){
+        if(this.mNRows != other.mNRows || this.mNCols != other.mNCols){
+            throw new RuntimeException("Matrices sizes mismatch");
+        }
+        FloatMatrix res = new FloatMatrix(mNRows, mNCols);
+        for(int row = 0; row < res.mNRows; ++row){
+            for(int col = 0; col < res.mNCols; ++col){
+                res.mData[row][col] = mData[row][col] - other.mData[row][col];
+            }
+        }
+        return res;
+    }
+
+    public FloatMatrix subtractInPlace(FloatMatrix other){
+        if(this.mNRows != other.mNRows || this.mNCols != other.mNCols){
+            throw new RuntimeException("Matrices sizes mismatch");
+        }
+        for(int row = 0; row < mNRows; ++row){
+            for(int col = 0; col < mNCols; ++col){
+                mData[row][col] -= other.mData[row][col];
+            }
+        }
+        return this;
+    }
+
+    public FloatMatrix addInPlace(FloatMatrix other){
+        if(this.mNRows != other.mNRows || this.mNCols != other.mNCols){
+            throw new RuntimeException(
+                String.format("Matrices sizes mismatch: [%d, %d] vs [%d, %d]",
+                        this.mNRows, this.mNCols, other.mNRows, other.mNCols));
+        }
+        for(int row = 0; row < mNRows; ++row){
+            for(int col = 0; col < mNCols; ++col){
+                mData[row][col] += other.mData[row][col];
+            }
+        }
+        return this;
+    }
+
+    /** Returned matrix is a copy of original matrix - transposed.
+     *
+     * @return
+     */
+    public FloatMatrix transpose(){
+        float[][] data = new float[this.mNCols][this.mNRows];
+        for(int r = 0; r < mNRows; ++r){
+            for(int c=0; c < mNCols; ++c){
+                data[c][r] = this.mData[r][c];
+            }
+        }
+        return new FloatMatrix(data, false);
+    }
+
+
+    /** The function is evaluated in double precision, the result is rounded
+     * to float.
+     *
+     * @param func
+     * @return
+     */
+    public FloatMatrix applyFunctionElementwiseInPlace(DoubleUnaryOperator func)
+    {
+        for(int r = 0; r < mNRows; ++r){
+            for(int c=0; c < mNCols; ++c){
+                this.mData[r][c] = (float) func.applyAsDouble(this.mData[r][c]);
+            }
+        }
+        return this;
+    }
+
+    public FloatMatrix applyFunctionElementwise(DoubleUnaryOperator func)
+    {
+        float[][] data = new float[this.mNRows][this.mNCols];
+        for(int r = 0; r < mNRows; ++r){
+            for(int c=0; c < mNCols; ++c){
+                data[r][c] = (float) func.applyAsDouble(this.mData[r][c]);
+            }
+        }
+        return new FloatMatrix(data, false);
+    }
+
+
+    /** Reduces columns of the matrix using reduction function (for ex. sum, min
+     * etc.) to produce a [1, nColumns] output matrix. The accumulator is
+     * a double.
+     *
+     * @param reductionFunction     - DoubleBinaryOperator
+     * @return                      - [1, nColumns] output matrix
+     */
+    public FloatMatrix reduceColumns(DoubleBinaryOperator reductionFunction){
+        float[][] resData = new float[1][mNCols];
+
+        for(int col = 0; col < mNCols; ++col){
+            double accu = mData[0][col];
+            for(int r = 1; r < mNRows; ++r){
+                accu = reductionFunction.applyAsDouble(accu, mData[r][col]);
+            }
+            resData[0][col] = (float) accu;
+        }
+        return new FloatMatrix(resData, false);
+    }
+
+
+    /** Reduces rows of the matrix to a [nRows, 1] output matrix. The
+     * accumulator is a double.
+     *
+     * @param reductionFunction
+     * @return
+     */
+    public FloatMatrix reduceRows(DoubleBinaryOperator reductionFunction){
+        float[][] resData = new float[mNRows][1];
+
+        for(int r = 0; r < mNRows; ++r){
+            float[] row = mData[r];
+            double accu = row[0];
+            for(int i = 1; i < row.length; ++i){
+                accu = reductionFunction.applyAsDouble(accu, row[i]);
+            }
+            resData[r][0] = (float) accu;
+        }
+        return new FloatMatrix(resData, false);
+    }
+
+
+    public FloatMatrix addInPlaceRepeatedRow(FloatMatrix row){
+        if(row.mNRows != 1 || this.mNCols != row.mNCols){
+            throw new RuntimeException("Input is not a row matrix of an appropiate size");
+        }
+        for(int r = 0; r < mNRows; ++r){
+            for(int col = 0; col < mNCols; ++col){
+                mData[r][col] += row.mData[0][col];
+            }
+        }
+        return this;
+    }
+
+
+    public FloatMatrix addInPlaceRepeatedColumn(FloatMatrix column){
+        if(column.mNCols != 1 || this.mNRows != column.mNRows){
+            throw new RuntimeException("Input is not a column matrix of an appropiate size");
+        }
+        for(int r = 0; r < mNRows; ++r){
+            for(int col = 0; col < mNCols; ++col){
+                mData[r][col] += column.mData[r][0];
+            }
+        }
+        return this;
+    }
+
+
+    /** Serializes the object into an array of doubles, so that it can be sent
+     * between nodes in a distributed system and reconstructed at the receiving
+     * node using static deserialize method.
+     *      The first two elements of the returned array are the numbers of rows
+     * and columns, the rest is the data packed row-wise, two floats per double
+     * element (so the message is about half the size of Matrix.serialize()).
+     * The bits are packed with Double.longBitsToDouble, which keeps them
+     * intact for everything but NaN weights.
+     *
+     * @return
+     */
+    public double[] serialize(){
+        int n = mNRows*mNCols;
+        double[] res = new double[2 + (n + 1)/2];
+        res[0] = mNRows;
+        res[1] = mNCols;
+        int i = 0;
+        long hi = 0;
+        for(int row = 0; row < mNRows; ++row){
+            for(int col = 0; col < mNCols; ++col){
+                long bits = Float.floatToRawIntBits(mData[row][col]) & 0xFFFFFFFFL;
+                if((i & 1) == 0){
+                    hi = bits << 32;
+                }else{
+                    res[2 + i/2] = Double.longBitsToDouble(hi | bits);
+                }
+                ++i;
+            }
+        }
+        if((i & 1) != 0){
+            res[2 + i/2] = Double.longBitsToDouble(hi);
+        }
+        return res;
+    }
+
+    /** The reverse of serialize().
+     *
+     * @param array
+     * @return
+     */
+    public static FloatMatrix deserialize(double[] array){
+        int nRows = (int) array[0];
+        int nCols = (int) array[1];
+        float[][] data = new float[nRows][nCols];
+        int i = 0;
+        for(int row = 0; row < nRows; ++row){
+            for(int col = 0; col < nCols; ++col){
+                long packed = Double.doubleToRawLongBits(array[2 + i/2]);
+                int bits = ((i & 1) == 0) ? (int) (packed >>> 32) : (int) packed;
+                data[row][col] = Float.intBitsToFloat(bits);
+                ++i;
+            }
+        }
+        return new FloatMatrix(data, false);
+    }
+
+
+    @Override
+    public String toString(){
+        return toMatrix().toString();
+    }
+
+
+    public boolean isEqual(FloatMatrix other){
+        if(this.mNRows != other.mNRows || this.mNCols != other.mNCols){
+            return false;
+        }
+        for(int row = 0; row < mNRows; ++row){
+            for(int col = 0; col < mNCols; ++col){
+                if(mData[row][col] != other.mData[row][col]){
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    public boolean isEqualApproximately(FloatMatrix other, double eps){
+        if(this.mNRows != other.mNRows || this.mNCols != other.mNCols){
+            return false;
+        }
+        for(int row = 0; row < mNRows; ++row){
+            for(int col = 0; col < mNCols; ++col){
+                if( Math.abs(mData[row][col] - other.mData[row][col]) > eps){
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /** Compares with a double precision matrix
+     *
+     * @param other
+     * @param eps
+     * @return
+     */
+    public boolean isEqualApproximately(Matrix other, double eps){
+        if(this.mNRows != other.getNRows() || this.mNCols != other.getNCols()){
+            return false;
+        }
+        for(int row = 0; row < mNRows; ++row){
+            for(int col = 0; col < mNCols; ++col){
+                if( Math.abs(mData[row][col] - other.getElem(row, col)) > eps){
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+}
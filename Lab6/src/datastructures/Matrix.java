@@ -4,12 +4,10 @@
  */
 package datastructures;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import java.util.function.DoubleBinaryOperator;
 import java.util.function.DoubleUnaryOperator;
 import java.util.logging.Level;
@@ -269,27 +267,82 @@ public final class Matrix {
         }
         int i = offset;
         for(int row = 0; row < mNRows; ++row){
-            for(int col = 0; col < mNCols; ++col){
-                memory[i++] = mData[row][col];
-            }
+            System.arraycopy(mData[row], 0, memory, i, mNCols);
+            i += mNCols;
+        }
+    }
+    
+    /** The reverse of saveMatrixRowwise() - overwrites the elements of this
+     * matrix with mNRows*mNCols values from memory starting at offset.
+     * 
+     * @param memory
+     * @param offset 
+     */
+    public void loadMatrixRowwise(double[] memory, int offset){
+        if(memory.length - offset < mNRows*mNCols){
+            throw new RuntimeException(
+                    "The memory at the specified location is smaller"
+                            + " than the matrix.");
+        }
+        int i = offset;
+        for(int row = 0; row < mNRows; ++row){
+            System.arraycopy(memory, i, mData[row], 0, mNCols);
+            i += mNCols;
         }
     }
     
     public Matrix times(Matrix other){
+        return timesInto(other, new Matrix(mNRows, other.mNCols));
+    }
+    
+    
+    /* The ...Into(..., dst) versions of the operations write the result to an
+     * existing matrix of the proper size (e.g. acquired from MatrixWorkspace)
+     * instead of allocating a new one, and return dst. For the products dst
+     * must not be any of the operands.
+     */
+    
+    public Matrix timesInto(Matrix other, Matrix dst){
         if(this.mNCols != other.mNRows){
             throw new RuntimeException("Matrices inner sizes mismatch");
         }
-        Matrix res = new Matrix(mNRows, other.mNCols);
-        for(int row = 0; row < res.mNRows; ++row){
-            for(int col = 0; col < res.mNCols; ++col){
+        checkDestination(dst, mNRows, other.mNCols, other);
+        for(int row = 0; row < dst.mNRows; ++row){
+            for(int col = 0; col < dst.mNCols; ++col){
                 double tmp = 0;
                 for(int k = 0; k < this.mNCols; ++k){
                     tmp += mData[row][k] * other.mData[k][col];
                 }
-                res.mData[row][col] = tmp;
+                dst.mData[row][col] = tmp;
             }
         }
-        return res;
+        return dst;
+    }
+    
+    
+    private void checkDestination(Matrix dst, int nRows, int nCols, Matrix other){
+        if(dst.mNRows != nRows || dst.mNCols != nCols){
+            throw new RuntimeException("Destination matrix size mismatch");
+        }
+        if(dst == this || dst == other){
+            throw new RuntimeException("Destination matrix cannot be an operand");
+        }
+    }
+    
+    
+    /** Copies all the elements of this matrix to dst (of the same size).
+     * 
+     * @param dst
+     * @return          - dst
+     */
+    public Matrix copyInto(Matrix dst){
+        if(this.mNRows != dst.mNRows || this.mNCols != dst.mNCols){
+            throw new RuntimeException("Matrices sizes mismatch");
+        }
+        for(int row = 0; row < mNRows; ++row){
+            System.arraycopy(mData[row], 0, dst.mData[row], 0, mNCols);
+        }
+        return dst;
     }
     
     
@@ -365,18 +418,61 @@ public final class Matrix {
      * @return 
      */
     public Matrix timesByTranspose(Matrix other){
+        return timesByTransposeInto(other, new Matrix(mNRows, other.mNRows));
+    }
+    
+    public Matrix timesByTransposeInto(Matrix other, Matrix res){
         if(this.mNCols != other.mNCols){
             throw new RuntimeException(
                 "Both matrices must have the same number of columns");
         }
-        Matrix res = new Matrix(mNRows, other.mNRows);
+        checkDestination(res, mNRows, other.mNRows, other);
         for(int row = 0; row < res.mNRows; ++row){
+            double[] aRow = mData[row];
+            double[] resRow = res.mData[row];
             for(int col = 0; col < res.mNCols; ++col){
+                double[] bRow = other.mData[col];
                 double tmp = 0;
                 for(int k = 0; k < this.mNCols; ++k){
-                    tmp += mData[row][k] * other.mData[col][k];
+                    tmp += aRow[k] * bRow[k];
+                }
+                resRow[col] = tmp;
+            }
+        }
+        return res;
+    }
+    
+    
+    /** This is equivalent to this.transpose().times(other) but neither
+     * allocates the transpose nor reads any of the matrices columnwise: each
+     * row r of both operands contributes the outer product
+     * this[r]^T * other[r] to the result.
+     * 
+     * @param other
+     * @return 
+     */
+    public Matrix transposeTimes(Matrix other){
+        return transposeTimesInto(other, new Matrix(mNCols, other.mNCols));
+    }
+    
+    public Matrix transposeTimesInto(Matrix other, Matrix res){
+        if(this.mNRows != other.mNRows){
+            throw new RuntimeException(
+                "Both matrices must have the same number of rows");
+        }
+        checkDestination(res, mNCols, other.mNCols, other);
+        for(int i = 0; i < res.mNRows; ++i){
+            Arrays.fill(res.mData[i], 0);
+        }
+        for(int r = 0; r < mNRows; ++r){
+            double[] aRow = mData[r];
+            double[] bRow = other.mData[r];
+            for(int i = 0; i < mNCols; ++i){
+                double a = aRow[i];
+                double[] resRow = res.mData[i];
+                for(int j = 0; j < other.mNCols; ++j){
+                    resRow[j] += a * bRow[j];
                 }
-                res.mData[row][col] = tmp;
             }
         }
         return res;
@@ -384,10 +480,14 @@ public final class Matrix {
     
     
     public Matrix timesElementByElement(Matrix other){
-        if(this.mNRows != other.mNRows || this.mNCols != other.mNCols){
+        return timesElementByElementInto(other, new Matrix(mNRows, mNCols));
+    }
+    
+    public Matrix timesElementByElementInto(Matrix other, Matrix res){
+        if(this.mNRows != other.mNRows || this.mNCols != other.mNCols
+                || this.mNRows != res.mNRows || this.mNCols != res.mNCols){
             throw new RuntimeException("Matrices sizes mismatch");
         }
-        Matrix res = new Matrix(mNRows, mNCols);
         for(int row = 0; row < res.mNRows; ++row){
             for(int col = 0; col < res.mNCols; ++col){
                 res.mData[row][col] = mData[row][col] * other.mData[row][col];
@@ -424,10 +524,14 @@ public final class Matrix {
     
     
     public Matrix subtract(Matrix other){
-        if(this.mNRows != other.mNRows || this.mNCols != other.mNCols){
+        return subtractInto(other, new Matrix(mNRows, mNCols));
+    }
+    
+    public Matrix subtractInto(Matrix other, Matrix res){
+        if(this.mNRows != other.mNRows || this.mNCols != other.mNCols
+                || this.mNRows != res.mNRows || this.mNCols != res.mNCols){
             throw new RuntimeException("Matrices sizes mismatch");
         }
-        Matrix res = new Matrix(mNRows, mNCols);
         for(int row = 0; row < res.mNRows; ++row){
             for(int col = 0; col < res.mNCols; ++col){
                 res.mData[row][col] = mData[row][col] - other.mData[row][col];
@@ -463,19 +567,85 @@ public final class Matrix {
     }
     
     /** Returned matrix is a copy of original matrix - transposed.
+     * The copying is done recursively (cache-oblivious): the larger dimension
+     * is halved until a block fits TRANSPOSE_BLOCK x TRANSPOSE_BLOCK, so that
+     * both the source rows and the destination rows of a block stay in cache.
+     * Big matrices are transposed in parallel by the common ForkJoin pool.
      * 
      * @return 
      */
     public Matrix transpose(){
         double[][] data = new double[this.mNCols][this.mNRows];
-        for(int r = 0; r < mNRows; ++r){
-            for(int c=0; c < mNCols; ++c){
-                data[c][r] = this.mData[r][c];
-            }
+        if((long) mNRows * mNCols >= PARALLEL_TRANSPOSE_MIN_SIZE){
+            ForkJoinPool.commonPool().invoke(
+                    new TransposeTask(mData, data, 0, mNRows, 0, mNCols));
+        }else{
+            transposeRecursive(mData, data, 0, mNRows, 0, mNCols);
         }
         return new Matrix(data, false);
     }
     
+    private static final int TRANSPOSE_BLOCK = 32;
+    private static final int PARALLEL_TRANSPOSE_MIN_SIZE = 256*256;
+    
+    private static void transposeRecursive(double[][] src, double[][] dst,
+            int rowFrom, int rowTo, int colFrom, int colTo)
+    {
+        int nRows = rowTo - rowFrom;
+        int nCols = colTo - colFrom;
+        if(nRows <= TRANSPOSE_BLOCK && nCols <= TRANSPOSE_BLOCK){
+            for(int r = rowFrom; r < rowTo; ++r){
+                double[] srcRow = src[r];
+                for(int c = colFrom; c < colTo; ++c){
+                    dst[c][r] = srcRow[c];
+                }
+            }
+        }else if(nRows >= nCols){
+            int rowMid = rowFrom + nRows/2;
+            transposeRecursive(src, dst, rowFrom, rowMid, colFrom, colTo);
+            transposeRecursive(src, dst, rowMid, rowTo, colFrom, colTo);
+        }else{
+            int colMid = colFrom + nCols/2;
+            transposeRecursive(src, dst, rowFrom, rowTo, colFrom, colMid);
+            transposeRecursive(src, dst, rowFrom, rowTo, colMid, colTo);
+        }
+    }
+    
+    /** Parallel version of transposeRecursive - the halves are transposed by
+     * separate tasks (they write to disjoint parts of dst).
+     */
+    @SuppressWarnings("serial")
+    private static class TransposeTask extends RecursiveAction {
+        private final double[][] mSrc;
+        private final double[][] mDst;
+        private final int mRowFrom, mRowTo, mColFrom, mColTo;
+        
+        TransposeTask(double[][] src, double[][] dst,
+                int rowFrom, int rowTo, int colFrom, int colTo)
+        {
+            mSrc = src; mDst = dst;
+            mRowFrom = rowFrom; mRowTo = rowTo;
+            mColFrom = colFrom; mColTo = colTo;
+        }
+        
+        @Override
+        protected void compute() {
+            int nRows = mRowTo - mRowFrom;
+            int nCols = mColTo - mColFrom;
+            if((long) nRows * nCols < PARALLEL_TRANSPOSE_MIN_SIZE / 4){
+                transposeRecursive(mSrc, mDst, mRowFrom, mRowTo, mColFrom, mColTo);
+            }else if(nRows >= nCols){
+                int rowMid = mRowFrom + nRows/2;
+                invokeAll(new TransposeTask(mSrc, mDst, mRowFrom, rowMid, mColFrom, mColTo),
+                          new TransposeTask(mSrc, mDst, rowMid, mRowTo, mColFrom, mColTo));
+            }else{
+                int colMid = mColFrom + nCols/2;
+                invokeAll(new TransposeTask(mSrc, mDst, mRowFrom, mRowTo, mColFrom, colMid),
+                          new TransposeTask(mSrc, mDst, mRowFrom, mRowTo, colMid, mColTo));
+            }
+        }
+    }
+    
     
     
     public Matrix applyFunctionElementwiseInPlace(DoubleUnaryOperator func)
@@ -490,13 +660,20 @@ public final class Matrix {
     
     public Matrix applyFunctionElementwise(DoubleUnaryOperator func)
     {
-        double[][] data = new double[this.mNRows][this.mNCols];
+        return applyFunctionElementwiseInto(func, new Matrix(mNRows, mNCols));
+    }
+    
+    public Matrix applyFunctionElementwiseInto(DoubleUnaryOperator func, Matrix dst)
+    {
+        if(this.mNRows != dst.mNRows || this.mNCols != dst.mNCols){
+            throw new RuntimeException("Matrices sizes mismatch");
+        }
         for(int r = 0; r < mNRows; ++r){
             for(int c=0; c < mNCols; ++c){
-                data[r][c] = func.applyAsDouble(this.mData[r][c]);
+                dst.mData[r][c] = func.applyAsDouble(this.mData[r][c]);
             }
         }
-        return new Matrix(data, false);
+        return dst;
     }
     
     
@@ -523,17 +700,28 @@ public final class Matrix {
     
     
     public Matrix reduceRows(DoubleBinaryOperator reductionFunction){
-        double[][] resData = new double[this.getNRows()][1];
-        
-        for(int r = 0; r < resData.length; ++r){
-            double[] row = getRow(r);
+        return reduceRowsInto(reductionFunction, new Matrix(mNRows, 1));
+    }
+    
+    /** Version of reduceRows() writing to an existing [nRows, 1] matrix.
+     * 
+     * @param reductionFunction
+     * @param dst
+     * @return                      - dst
+     */
+    public Matrix reduceRowsInto(DoubleBinaryOperator reductionFunction, Matrix dst){
+        if(dst.mNRows != mNRows || dst.mNCols != 1){
+            throw new RuntimeException("Destination matrix size mismatch");
+        }
+        for(int r = 0; r < mNRows; ++r){
+            double[] row = mData[r];
             double accu = row[0];
             for(int i = 1; i < row.length; ++i){
                 accu = reductionFunction.applyAsDouble(accu, row[i]);
             }
-            resData[r][0] = accu;
+            dst.mData[r][0] = accu;
         }
-        return new Matrix(resData, false);
+        return dst;
     }
     
     
@@ -594,6 +782,48 @@ public final class Matrix {
         return new Matrix(nRows, nCols, array, 1);
     }
     
+    /** Number of doubles written by serialize() and serializeInto().
+     * 
+     * @return 
+     */
+    public int getSerializedLength(){
+        return 1 + mNRows*mNCols;
+    }
+    
+    /** Version of serialize() that writes to a buffer given by the caller
+     * (starting at offset) instead of allocating a new array.
+     * 
+     * @param buf
+     * @param offset
+     * @return          - offset just after the written data
+     */
+    public int serializeInto(double[] buf, int offset){
+        if(buf.length - offset < getSerializedLength()){
+            throw new RuntimeException(
+                    "The serialized matrix does not fit into the buffer"
+                            + " at the specified location.");
+        }
+        buf[offset] = mNRows;
+        saveMatrixRowwise(buf, offset + 1);
+        return offset + getSerializedLength();
+    }
+    
+    /** The reverse of serializeInto() - copies serialized data into an
+     * existing matrix of the same size instead of creating a new one.
+     * 
+     * @param target
+     * @param buf
+     * @param offset
+     * @return          - offset just after the read data
+     */
+    public static int deserializeInto(Matrix target, double[] buf, int offset){
+        if((int) buf[offset] != target.mNRows){
+            throw new RuntimeException("Matrices sizes mismatch");
+        }
+        target.loadMatrixRowwise(buf, offset + 1);
+        return offset + target.getSerializedLength();
+    }
+    
     
     
     /** Reads a dense matrix from csv file.
@@ -603,51 +833,36 @@ public final class Matrix {
      */
     public static Matrix readFromCSVFile(String csvFileName)
     {
-        List<List<String>> strData;
         try {
-            strData = readTXTFile(csvFileName);
+            return new Matrix(CSVMatrixParser.parse(csvFileName), false);
         } catch (IOException ex) {
             Logger.getLogger(Matrix.class.getName()).log(Level.SEVERE, null, ex);
             return null;
         }
-        Matrix ret = new Matrix(strData.size(), strData.get(0).size());
-        for(int i = 0; i< ret.mNRows; ++i){
-            List<String> strRow = strData.get(i);
-            for(int j = 0; j< ret.mNCols; ++j){
-                ret.setElem(i, j, Double.parseDouble(strRow.get(j)));
-            }
-        }
-        return ret;
     }
     
     
     
-    /** Taken from: http://codereview.stackexchange.com/questions/10681/java-function-to-read-a-csv-file
+    /** Reads a matrix saved in the binary format (see MatrixFile). Much faster
+     * than readFromCSVFile - the file is memory mapped and copied row by row.
      * 
-     * @param csvFileName
-     * @return
-     * @throws IOException 
+     * @param binFileName
+     * @return 
      */
-    private static List<List<String>> readTXTFile(String csvFileName) throws IOException {
-
-        String line;
-        BufferedReader stream = null;
-        List<List<String>> csvData = new ArrayList<>();
-
+    public static Matrix readFromBinaryFile(String binFileName)
+    {
         try {
-            stream = new BufferedReader(new FileReader(csvFileName));
-            while ((line = stream.readLine()) != null)
-                csvData.add(Arrays.asList(line.split(",")));
-        } finally {
-            if (stream != null)
-                stream.close();
+            return MatrixFile.read(binFileName);
+        } catch (IOException ex) {
+            Logger.getLogger(Matrix.class.getName()).log(Level.SEVERE, null, ex);
+            return null;
         }
-
-        return csvData;
-
     }
     
     
+    
+    
+    
     @Override
     public String toString(){
         StringBuilder sb = new StringBuilder();
@@ -0,0 +1,352 @@
+/*
+ *  This code is for Parallel and Distributed Algorithms
+ *  laboratory at Gdansk University of Technology
+ */
+package datastructures;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/** Binary matrix file format, read and written through memory mapping.
+ *
+ * Layout (all numbers in OffHeapMatrix.FILE_BYTE_ORDER, i.e. little endian):
+ * <pre>
+ *  offset  size  content
+ *       0     4  magic "MTRX"
+ *       4     4  format version (1)
+ *       8     4  dtype - DTYPE_FLOAT64 or DTYPE_FLOAT32
+ *      12     4  number of rows
+ *      16     4  number of columns
+ *      20    12  reserved (zeros)
+ *      32     -  elements, rowwise
+ * </pre>
+ * The header is 32 bytes long so that the payload is aligned for doubles.
+ *      A float64 file can be mapped directly as an OffHeapMatrix (see map()),
+ * which does not read anything until the data is accessed; read() copies
+ * the data to the heap with bulk (row at a time) transfers.
+ *      Run as a program to convert CSV matrices (e.g. the data/mat*.txt files
+ * of the other labs) to this format.
+ *
+ * @author Karol Draszawka <kadr@eti.pg.gda.pl>
+ */
+public final class MatrixFile {
+
+    public static final int DTYPE_FLOAT64 = 1;
+    public static final int DTYPE_FLOAT32 = 2;
+
+    public static final int HEADER_BYTES = 32;
+    public static final String DEFAULT_EXTENSION = ".mtx";
+
+    private static final int MAGIC = 0x5854524D;    //"MTRX" read little endian
+    private static final int VERSION = 1;
+    private static final int MAX_BAND_BYTES = Integer.MAX_VALUE;
+
+
+    private MatrixFile(){
+    }
+
+
+    /** Contents of the header of a binary matrix file.
+     */
+    public static final class Header {
+        public final int dtype;
+        public final int nRows;
+        public final int nCols;
+
+        public Header(int dtype, int nRows, int nCols){
+            this.dtype = dtype;
+            this.nRows = nRows;
+            this.nCols = nCols;
+        }
+
+        public int getElementBytes(){
+            return dtype == DTYPE_FLOAT32 ? Float.BYTES : Double.BYTES;
+        }
+
+        public long getFileBytes(){
+            return HEADER_BYTES + (long) nRows * nCols * getElementBytes();
+        }
+    }
+
+
+    public static Header readHeader(String fileName) throws IOException
+    {
+        try (RandomAccessFile file = new RandomAccessFile(fileName, "r");
+                FileChannel channel = file.getChannel()){
+            return readHeader(channel, fileName);
+        }
+    }
+
+
+    private static Header readHeader(FileChannel channel, String fileName)
+            throws IOException
+    {
+        if(channel.size() < HEADER_BYTES){
+            throw new IOException("Not a binary matrix file: " + fileName);
+        }
+        ByteBuffer buf = channel
+                .map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES)
+                .order(OffHeapMatrix.FILE_BYTE_ORDER);
+        if(buf.getInt(0) != MAGIC){
+            throw new IOException("Not a binary matrix file: " + fileName);
+        }
+        if(buf.getInt(4) != VERSION){
+            throw new IOException("Unsupported version of binary matrix file: "
+                    + fileName);
+        }
+        Header header = new Header(buf.getInt(8), buf.getInt(12), buf.getInt(16));
+        if(header.dtype != DTYPE_FLOAT64 && header.dtype != DTYPE_FLOAT32){
+            throw new IOException("Unknown dtype " + header.dtype + " in: "
+                    + fileName);
+        }
+        if(channel.size() < header.getFileBytes()){
+            throw new IOException("Truncated binary matrix file: " + fileName);
+        }
+        return header;
+    }
+
+
+    private static void writeHeader(FileChannel channel, Header header)
+            throws IOException
+    {
+        ByteBuffer buf = channel
+                .map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES)
+                .order(OffHeapMatrix.FILE_BYTE_ORDER);
+        buf.putInt(0, MAGIC);
+        buf.putInt(4, VERSION);
+        buf.putInt(8, header.dtype);
+        buf.putInt(12, header.nRows);
+        buf.putInt(16, header.nCols);
+    }
+
+
+    /** Creates (or overwrites) a float64 file of a given size and maps its
+     * payload (initially zeros) as a writable matrix. The data gets to the
+     * file at the latest when the returned matrix is closed.
+     *
+     * @param fileName
+     * @param nRows
+     * @param nCols
+     * @return
+     * @throws IOException
+     */
+    public static OffHeapMatrix create(String fileName, int nRows, int nCols)
+            throws IOException
+    {
+        Header header = new Header(DTYPE_FLOAT64, nRows, nCols);
+        try (RandomAccessFile file = new RandomAccessFile(fileName, "rw");
+                FileChannel channel = file.getChannel()){
+            file.setLength(0);
+            file.setLength(header.getFileBytes());
+            writeHeader(channel, header);
+        }
+        return OffHeapMatrix.map(fileName, HEADER_BYTES, nRows, nCols, true);
+    }
+
+
+    /** Maps the payload of a float64 file as a matrix (no data is read).
+     *
+     * @param fileName
+     * @param writable      - whether changes are to be written to the file
+     * @return
+     * @throws IOException
+     */
+    public static OffHeapMatrix map(String fileName, boolean writable)
+            throws IOException
+    {
+        Header header = readHeader(fileName);
+        if(header.dtype != DTYPE_FLOAT64){
+            throw new IOException("Only float64 files can be mapped as "
+                    + "OffHeapMatrix: " + fileName);
+        }
+        return OffHeapMatrix.map(fileName, HEADER_BYTES,
+                header.nRows, header.nCols, writable);
+    }
+
+
+    /** Writes the matrix as float64.
+     *
+     * @param m
+     * @param fileName
+     * @throws IOException
+     */
+    public static void write(Matrix m, String fileName) throws IOException
+    {
+        try (OffHeapMatrix dst = create(fileName, m.getNRows(), m.getNCols())){
+            for(int r = 0; r < m.getNRows(); ++r){
+                dst.setRow(r, m.getRow(r), 0);
+            }
+        }
+    }
+
+
+    /** Writes the matrix as float32.
+     *
+     * @param m
+     * @param fileName
+     * @throws IOException
+     */
+    public static void write(FloatMatrix m, String fileName) throws IOException
+    {
+        Header header = new Header(DTYPE_FLOAT32, m.getNRows(), m.getNCols());
+        try (RandomAccessFile file = new RandomAccessFile(fileName, "rw");
+                FileChannel channel = file.getChannel()){
+            file.setLength(0);
+            file.setLength(header.getFileBytes());
+            writeHeader(channel, header);
+            FloatBuffer[] bands = mapFloatBands(channel, header,
+                    FileChannel.MapMode.READ_WRITE);
+            int rowsPerBand = rowsPerBand(header);
+            for(int r = 0; r < header.nRows; ++r){
+                FloatBuffer band = bands[r / rowsPerBand];
+                band.position((r % rowsPerBand) * header.nCols);
+                band.put(m.getRow(r));
+            }
+        }
+    }
+
+
+    /** Reads a float64 or float32 file into a (double precision) matrix.
+     *
+     * @param fileName
+     * @return
+     * @throws IOException
+     */
+    public static Matrix read(String fileName) throws IOException
+    {
+        Header header = readHeader(fileName);
+        if(header.dtype == DTYPE_FLOAT64){
+            try (OffHeapMatrix src = OffHeapMatrix.map(fileName, HEADER_BYTES,
+                    header.nRows, header.nCols, false)){
+                return src.toMatrix();
+            }
+        }
+        return readFloat(fileName).toMatrix();
+    }
+
+
+    /** Reads a float32 or float64 file into a single precision matrix.
+     *
+     * @param fileName
+     * @return
+     * @throws IOException
+     */
+    public static FloatMatrix readFloat(String fileName) throws IOException
+    {
+        Header header = readHeader(fileName);
+        if(header.dtype == DTYPE_FLOAT64){
+            return new FloatMatrix(read(fileName));
+        }
+        float[][] data = new float[header.nRows][header.nCols];
+        try (RandomAccessFile file = new RandomAccessFile(fileName, "r");
+                FileChannel channel = file.getChannel()){
+            FloatBuffer[] bands = mapFloatBands(channel, header,
+                    FileChannel.MapMode.READ_ONLY);
+            int rowsPerBand = rowsPerBand(header);
+            for(int r = 0; r < header.nRows; ++r){
+                FloatBuffer band = bands[r / rowsPerBand];
+                band.position((r % rowsPerBand) * header.nCols);
+                band.get(data[r]);
+            }
+        }
+        return new FloatMatrix(data, false);
+    }
+
+
+    private static int rowsPerBand(Header header){
+        long rowBytes = (long) header.nCols * header.getElementBytes();
+        return (int) Math.max(1, MAX_BAND_BYTES / Math.max(1, rowBytes));
+    }
+
+
+    private static FloatBuffer[] mapFloatBands(FileChannel channel,
+            Header header, FileChannel.MapMode mode) throws IOException
+    {
+        int rowsPerBand = rowsPerBand(header);
+        int nBands = (header.nRows + rowsPerBand - 1) / rowsPerBand;
+        FloatBuffer[] bands = new FloatBuffer[nBands];
+        long position = HEADER_BYTES;
+        for(int b = 0; b < nBands; ++b){
+            int bandRows = Math.min(rowsPerBand, header.nRows - b*rowsPerBand);
+            long bandBytes = (long) bandRows * header.nCols * Float.BYTES;
+            MappedByteBuffer mapped = channel.map(mode, position, bandBytes);
+            bands[b] = mapped.order(OffHeapMatrix.FILE_BYTE_ORDER).asFloatBuffer();
+            position += bandBytes;
+        }
+        return bands;
+    }
+
+
+    /** Converts a CSV matrix file to the binary (float64) format.
+     *
+     * @param csvFileName
+     * @param binFileName
+     * @throws IOException
+     */
+    public static void convertCSV(String csvFileName, String binFileName)
+            throws IOException
+    {
+        Matrix m = Matrix.readFromCSVFile(csvFileName);
+        if(m == null){
+            throw new IOException("Cannot read CSV file: " + csvFileName);
+        }
+        write(m, binFileName);
+    }
+
+
+    private static String binaryFileNameFor(String csvFileName){
+        int dot = csvFileName.lastIndexOf('.');
+        int sep = csvFileName.lastIndexOf(File.separatorChar);
+        String base = dot > sep ? csvFileName.substring(0, dot) : csvFileName;
+        return base + DEFAULT_EXTENSION;
+    }
+
+
+    /** CSV to binary converter. Each CSV file given as an argument is
+     * converted to a file with the same name and DEFAULT_EXTENSION; for a
+     * directory given as an argument all its mat*.txt files are converted
+     * (e.g. ../Lab4/data when run from the directory of this project).
+     *
+     * @param args
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException
+    {
+        if(args.length == 0){
+            System.out.println("Usage: MatrixFile <CSV file or directory>...");
+            return;
+        }
+        ArrayList<String> csvFileNames = new ArrayList<>();
+        for(String arg : args){
+            File dataDir = new File(arg);
+            if(!dataDir.isDirectory()){
+                csvFileNames.add(arg);
+                continue;
+            }
+            File[] files = dataDir.listFiles(
+                    (File dir, String name) -> name.startsWith("mat") && name.endsWith(".txt"));
+            if(files == null || files.length == 0){
+                System.out.println("No mat*.txt files in: " + dataDir);
+                continue;
+            }
+            Arrays.sort(files);
+            for(File file : files){
+                csvFileNames.add(file.getPath());
+            }
+        }
+        for(String csvFileName : csvFileNames){
+            String binFileName = binaryFileNameFor(csvFileName);
+            convertCSV(csvFileName, binFileName);
+            Header header = readHeader(binFileName);
+            System.out.format("%s -> %s [%d x %d]%n", csvFileName, binFileName,
+                    header.nRows, header.nCols);
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ *  This code is for Parallel and Distributed Algorithms
+ *  laboratory at Gdansk University of Technology
+ */
+package datastructures;
+
+/** Packs a fixed set of matrices into a single array of doubles, so that they
+ * can be sent between nodes in one message. The packing buffer is allocated
+ * once and reused.
+ *      Layout of the packed array:
+ * <pre>
+ *  [nMatrices, nRows_0, nCols_0, ..., nRows_k, nCols_k, data_0, ..., data_k]
+ * </pre>
+ * where data_i are the elements of the i-th matrix, rowwise. The shape table
+ * is verified when unpacking.
+ *
+ * @author Karol Draszawka <kadr@eti.pg.gda.pl>
+ */
+public final class MatrixPacker {
+
+    private final int[] mNRows;
+    private final int[] mNCols;
+    private final int[] mOffsets;       //of data_i in the packed array
+    private final double[] mBuffer;
+
+
+    /** Creates a packer for matrices of the same shapes (and order) as
+     * templates.
+     *
+     * @param templates
+     */
+    public MatrixPacker(Matrix... templates){
+        int nMatrices = templates.length;
+        mNRows = new int[nMatrices];
+        mNCols = new int[nMatrices];
+        mOffsets = new int[nMatrices];
+        int offset = 1 + 2*nMatrices;
+        for(int i = 0; i < nMatrices; ++i){
+            mNRows[i] = templates[i].getNRows();
+            mNCols[i] = templates[i].getNCols();
+            mOffsets[i] = offset;
+            offset += mNRows[i]*mNCols[i];
+        }
+        mBuffer = new double[offset];
+        mBuffer[0] = nMatrices;
+        for(int i = 0; i < nMatrices; ++i){
+            mBuffer[1 + 2*i] = mNRows[i];
+            mBuffer[2 + 2*i] = mNCols[i];
+        }
+    }
+
+
+    /** Checks whether matrices of these shapes can be packed by this packer.
+     *
+     * @param matrices
+     * @return
+     */
+    public boolean fits(Matrix... matrices){
+        if(matrices.length != mNRows.length){
+            return false;
+        }
+        for(int i = 0; i < matrices.length; ++i){
+            if(matrices[i].getNRows() != mNRows[i]
+                    || matrices[i].getNCols() != mNCols[i]){
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    /** Length of the packed array.
+     *
+     * @return
+     */
+    public int getLength(){
+        return mBuffer.length;
+    }
+
+
+    /** Packs the matrices into the internal buffer.
+     *
+     * @param matrices
+     * @return          - the internal buffer (overwritten by the next call)
+     */
+    public double[] pack(Matrix... matrices){
+        if(!fits(matrices)){
+            throw new RuntimeException("Matrices do not match the packer");
+        }
+        for(int i = 0; i < matrices.length; ++i){
+            matrices[i].saveMatrixRowwise(mBuffer, mOffsets[i]);
+        }
+        return mBuffer;
+    }
+
+
+    /** Copies the matrices from a packed array into existing matrices.
+     *
+     * @param packed
+     * @param targets
+     */
+    public void unpack(double[] packed, Matrix... targets){
+        checkShapeTable(packed);
+        if(!fits(targets)){
+            throw new RuntimeException("Matrices do not match the packer");
+        }
+        for(int i = 0; i < targets.length; ++i){
+            targets[i].loadMatrixRowwise(packed, mOffsets[i]);
+        }
+    }
+
+
+    /** Adds the matrices packed in other to the matrices packed in acc
+     * (elementwise, in place). Can be used as the reduce operation of
+     * BasicCommunication.reduce.
+     *
+     * @param acc
+     * @param other
+     * @return          - acc
+     */
+    public double[] addPacked(double[] acc, double[] other){
+        checkShapeTable(acc);
+        checkShapeTable(other);
+        for(int i = 1 + 2*mNRows.length; i < mBuffer.length; ++i){
+            acc[i] += other[i];
+        }
+        return acc;
+    }
+
+
+    private void checkShapeTable(double[] packed){
+        if(packed.length != mBuffer.length){
+            throw new RuntimeException("Packed matrices sizes mismatch");
+        }
+        for(int i = 0; i < 1 + 2*mNRows.length; ++i){
+            if(packed[i] != mBuffer[i]){
+                throw new RuntimeException("Packed matrices sizes mismatch");
+            }
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ *  This code is for Parallel and Distributed Algorithms
+ *  laboratory at Gdansk University of Technology
+ */
+package datastructures;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/** A pool of temporary matrices for iterative algorithms. Matrices are kept
+ * in free lists by shape, so after the first iteration all the temporaries of
+ * an iteration are recycled and the algorithm runs without allocations.
+ *      Matrices are acquired inside scopes:
+ * <pre>
+ *  try (MatrixWorkspace.Scope scope = ws.openScope()){
+ *      Matrix tmp = ws.acquire(nRows, nCols);
+ *      ...
+ *  }   //all the matrices acquired in the scope go back to the pool
+ * </pre>
+ * Scopes can be nested. A matrix acquired while no scope is open is an
+ * ordinary matrix - it is not tracked and never returns to the pool, so code
+ * using the workspace can also be called from outside of any scope (e.g. to
+ * produce a result for the user).
+ *      The contents of an acquired matrix are undefined. A matrix must not be
+ * used after its scope is closed. The workspace is not thread safe - use one
+ * per thread (e.g. one per net).
+ *
+ * @author Karol Draszawka <kadr@eti.pg.gda.pl>
+ */
+public final class MatrixWorkspace {
+
+    private final HashMap<Long, ArrayDeque<Matrix>> mFree = new HashMap<>();
+    private final ArrayList<Matrix> mInUse = new ArrayList<>();
+    private int mNOpenScopes = 0;
+    private int mNAllocated = 0;
+
+
+    /** Scope of acquired matrices (see class description).
+     */
+    public final class Scope implements AutoCloseable {
+        private final int mMark;
+        private boolean mClosed = false;
+
+        private Scope(int mark){
+            mMark = mark;
+        }
+
+        @Override
+        public void close(){
+            if(!mClosed){
+                mClosed = true;
+                releaseTo(mMark);
+                --mNOpenScopes;
+            }
+        }
+    }
+
+
+    public Scope openScope(){
+        ++mNOpenScopes;
+        return new Scope(mInUse.size());
+    }
+
+
+    /** Returns a matrix of a given size (with undefined contents) - from the
+     * pool if possible.
+     *
+     * @param nRows
+     * @param nCols
+     * @return
+     */
+    public Matrix acquire(int nRows, int nCols)
+    {
+        if(mNOpenScopes == 0){
+            return new Matrix(nRows, nCols);
+        }
+        ArrayDeque<Matrix> free = mFree.get(key(nRows, nCols));
+        Matrix m = (free == null) ? null : free.pollLast();
+        if(m == null){
+            m = new Matrix(nRows, nCols);
+            ++mNAllocated;
+        }
+        mInUse.add(m);
+        return m;
+    }
+
+
+    /** Same as acquire(nRows, nCols), but the matrix is filled with zeros.
+     *
+     * @param nRows
+     * @param nCols
+     * @return
+     */
+    public Matrix acquireZeros(int nRows, int nCols)
+    {
+        return acquire(nRows, nCols).applyFunctionElementwiseInPlace((double e) -> 0.0);
+    }
+
+
+    /** Number of matrices allocated by the pool so far. Stays constant in the
+     * steady state of an iterative algorithm.
+     *
+     * @return
+     */
+    public int getNAllocated(){
+        return mNAllocated;
+    }
+
+
+    private void releaseTo(int mark)
+    {
+        for(int i = mInUse.size() - 1; i >= mark; --i){
+            Matrix m = mInUse.remove(i);
+            mFree.computeIfAbsent(key(m.getNRows(), m.getNCols()),
+                    (Long k) -> new ArrayDeque<>()).addLast(m);
+        }
+    }
+
+
+    private static long key(int nRows, int nCols){
+        return ((long) nRows << 32) | (nCols & 0xFFFFFFFFL);
+    }
+}
@@ -0,0 +1,325 @@
+/*
+ *  This code is for Parallel and Distributed Algorithms
+ *  laboratory at Gdansk University of Technology
+ */
+package datastructures;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/** A dense matrix whose data lives outside of the Java heap, either in direct
+ * memory or in a memory-mapped file. The data is kept rowwise.
+ *      A single NIO buffer cannot be longer than 2^31-1 bytes, so the rows are
+ * split into bands, each of them being a separate buffer. This allows for
+ * matrices (mapped from files) larger than the heap.
+ *      The object has an explicit lifecycle: after close() any access throws
+ * IllegalStateException. Views (see view()) share the memory with the owner
+ * and can be handed over to other threads (e.g. node threads of a simulated
+ * distributed system, directly - the simulated network still transfers
+ * copies of double[]) without copying; closing a view does not affect the
+ * owner.
+ *
+ * @author Karol Draszawka <kadr@eti.pg.gda.pl>
+ */
+public final class OffHeapMatrix implements AutoCloseable {
+
+    /** Byte order of matrices mapped from files - fixed so that the files are
+     * portable between machines.
+     */
+    public static final ByteOrder FILE_BYTE_ORDER = ByteOrder.LITTLE_ENDIAN;
+
+    private static final int MAX_BAND_DOUBLES = Integer.MAX_VALUE / Double.BYTES;
+
+    final private int mNRows;
+    final private int mNCols;
+    final private int mRowsPerBand;
+    final private MappedByteBuffer[] mMappedBands;  //null if not mapped
+    final private boolean mOwner;
+    private DoubleBuffer[] mBands;      //null after close()
+
+
+    private OffHeapMatrix(int nRows, int nCols, DoubleBuffer[] bands,
+            MappedByteBuffer[] mappedBands, boolean owner)
+    {
+        mNRows = nRows;
+        mNCols = nCols;
+        mRowsPerBand = rowsPerBand(nCols);
+        mBands = bands;
+        mMappedBands = mappedBands;
+        mOwner = owner;
+    }
+
+    private static int rowsPerBand(int nCols){
+        return Math.max(1, MAX_BAND_DOUBLES / Math.max(1, nCols));
+    }
+
+
+    /** Allocates nRows by nCols zero matrix in direct (native) memory.
+     *
+     * @param nRows
+     * @param nCols
+     * @return
+     */
+    public static OffHeapMatrix allocate(int nRows, int nCols)
+    {
+        int rowsPerBand = rowsPerBand(nCols);
+        int nBands = (nRows + rowsPerBand - 1) / rowsPerBand;
+        DoubleBuffer[] bands = new DoubleBuffer[nBands];
+        for(int b = 0; b < nBands; ++b){
+            int bandRows = Math.min(rowsPerBand, nRows - b*rowsPerBand);
+            bands[b] = ByteBuffer
+                    .allocateDirect(bandRows * nCols * Double.BYTES)
+                    .order(ByteOrder.nativeOrder())
+                    .asDoubleBuffer();
+        }
+        return new OffHeapMatrix(nRows, nCols, bands, null, true);
+    }
+
+
+    /** Maps a region of a file holding nRows*nCols doubles (rowwise, in
+     * FILE_BYTE_ORDER) as a matrix. Nothing is read eagerly - pages are loaded
+     * by the OS on access, so the matrix may be larger than the heap.
+     * If writable, changes are written back to the file (at the latest on
+     * close()); the file is extended if needed.
+     *
+     * @param fileName
+     * @param offset        - position of the first element in the file (bytes)
+     * @param nRows
+     * @param nCols
+     * @param writable
+     * @return
+     * @throws IOException
+     */
+    public static OffHeapMatrix map(String fileName, long offset,
+            int nRows, int nCols, boolean writable) throws IOException
+    {
+        int rowsPerBand = rowsPerBand(nCols);
+        int nBands = (nRows + rowsPerBand - 1) / rowsPerBand;
+        DoubleBuffer[] bands = new DoubleBuffer[nBands];
+        MappedByteBuffer[] mappedBands = new MappedByteBuffer[nBands];
+
+        try (RandomAccessFile file = new RandomAccessFile(fileName, writable ? "rw" : "r");
+                FileChannel channel = file.getChannel()){
+            FileChannel.MapMode mode = writable ?
+                    FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY;
+            long position = offset;
+            for(int b = 0; b < nBands; ++b){
+                int bandRows = Math.min(rowsPerBand, nRows - b*rowsPerBand);
+                long bandBytes = (long) bandRows * nCols * Double.BYTES;
+                mappedBands[b] = channel.map(mode, position, bandBytes);
+                bands[b] = mappedBands[b].order(FILE_BYTE_ORDER).asDoubleBuffer();
+                position += bandBytes;
+            }
+        }
+        //the mapping stays valid after the channel is closed
+        return new OffHeapMatrix(nRows, nCols, bands, mappedBands, true);
+    }
+
+
+    /** Copies a heap matrix into direct memory.
+     *
+     * @param m
+     * @return
+     */
+    public static OffHeapMatrix fromMatrix(Matrix m)
+    {
+        OffHeapMatrix res = allocate(m.getNRows(), m.getNCols());
+        double[] row = new double[m.getNCols()];
+        for(int r = 0; r < m.getNRows(); ++r){
+            for(int c = 0; c < row.length; ++c){
+                row[c] = m.getElem(r, c);
+            }
+            res.setRow(r, row, 0);
+        }
+        return res;
+    }
+
+
+    /** Copies the data into a new heap matrix.
+     *
+     * @return
+     */
+    public Matrix toMatrix()
+    {
+        double[][] data = new double[mNRows][mNCols];
+        for(int r = 0; r < mNRows; ++r){
+            getRow(r, data[r], 0);
+        }
+        return new Matrix(data, false);
+    }
+
+
+    /** Copies the data into an existing heap matrix of the same size.
+     *
+     * @param dst
+     */
+    public void copyInto(Matrix dst)
+    {
+        if(dst.getNRows() != mNRows || dst.getNCols() != mNCols){
+            throw new RuntimeException("Matrices sizes mismatch");
+        }
+        double[] row = new double[mNCols];
+        for(int r = 0; r < mNRows; ++r){
+            getRow(r, row, 0);
+            dst.setRow(r, row);
+        }
+    }
+
+
+    /** Returns a view sharing the memory with this matrix. The view can be
+     * closed independently of this matrix, but must not be used after this
+     * matrix is closed.
+     *
+     * @return
+     */
+    public OffHeapMatrix view()
+    {
+        DoubleBuffer[] bands = bands();
+        DoubleBuffer[] viewBands = new DoubleBuffer[bands.length];
+        for(int b = 0; b < bands.length; ++b){
+            viewBands[b] = bands[b].duplicate();
+        }
+        return new OffHeapMatrix(mNRows, mNCols, viewBands, mMappedBands, false);
+    }
+
+
+    public int getNRows(){
+        return mNRows;
+    }
+
+    public int getNCols(){
+        return mNCols;
+    }
+
+    public boolean isMapped(){
+        return mMappedBands != null;
+    }
+
+    public boolean isOpen(){
+        return mBands != null;
+    }
+
+
+    public double getElem(int row, int col){
+        if (row < 0 || row >= mNRows || col < 0 || col >= mNCols){
+            throw new IndexOutOfBoundsException(String.format(
+                    "Element (%d, %d) is outside of the %d x %d matrix.",
+                    row, col, mNRows, mNCols));
+        }
+        return bands()[row / mRowsPerBand].get((row % mRowsPerBand)*mNCols + col);
+    }
+
+    public void setElem(int iRow, int iCol, double value){
+        if (iRow < 0 || iRow >= mNRows || iCol < 0 || iCol >= mNCols){
+            return;
+        }
+        bands()[iRow / mRowsPerBand].put((iRow % mRowsPerBand)*mNCols + iCol, value);
+    }
+
+
+    /** Copies row iRow into dst starting at dstOffset (bulk copy).
+     *
+     * @param iRow
+     * @param dst
+     * @param dstOffset
+     */
+    public void getRow(int iRow, double[] dst, int dstOffset){
+        DoubleBuffer band = bands()[iRow / mRowsPerBand].duplicate();
+        band.position((iRow % mRowsPerBand)*mNCols);
+        band.get(dst, dstOffset, mNCols);
+    }
+
+    /** Sets row iRow to mNCols values from src starting at srcOffset (bulk
+     * copy).
+     *
+     * @param iRow
+     * @param src
+     * @param srcOffset
+     */
+    public void setRow(int iRow, double[] src, int srcOffset){
+        DoubleBuffer band = bands()[iRow / mRowsPerBand].duplicate();
+        band.position((iRow % mRowsPerBand)*mNCols);
+        band.put(src, srcOffset, mNCols);
+    }
+
+
+    /** Product of this (off-heap) matrix and a heap matrix. The rows of this
+     * matrix are streamed one at a time, so only the result and one row
+     * live on the heap.
+     *
+     * @param other
+     * @return
+     */
+    public Matrix times(Matrix other){
+        if(mNCols != other.getNRows()){
+            throw new RuntimeException("Matrices inner sizes mismatch");
+        }
+        Matrix res = new Matrix(mNRows, other.getNCols());
+        double[] row = new double[mNCols];
+        double[] resRow = new double[other.getNCols()];
+        for(int r = 0; r < mNRows; ++r){
+            getRow(r, row, 0);
+            Arrays.fill(resRow, 0);
+            for(int k = 0; k < mNCols; ++k){
+                double aRK = row[k];
+                for(int c = 0; c < resRow.length; ++c){
+                    resRow[c] += aRK * other.getElem(k, c);
+                }
+            }
+            res.setRow(r, resRow);
+        }
+        return res;
+    }
+
+
+    /** Flushes changes of a writable mapped matrix to the file. No-op for
+     * direct memory.
+     */
+    public void force(){
+        bands();
+        if(mMappedBands != null){
+            for(MappedByteBuffer band : mMappedBands){
+                if(!band.isReadOnly()){
+                    band.force();
+                }
+            }
+        }
+    }
+
+
+    /** Releases the data. Direct and mapped memory is returned to the OS once
+     * the buffers are garbage collected, which is possible only after all the
+     * references (including views) are dropped.
+     */
+    @Override
+    public void close(){
+        if(mBands != null){
+            if(mOwner){
+                force();
+            }
+            mBands = null;
+        }
+    }
+
+
+    private DoubleBuffer[] bands(){
+        if(mBands == null){
+            throw new IllegalStateException("The off-heap matrix is closed.");
+        }
+        return mBands;
+    }
+
+
+    @Override
+    public String toString(){
+        return String.format("OffHeapMatrix [%d x %d]%s%n",
+                mNRows, mNCols, isMapped() ? " (mapped)" : "")
+                + (mNRows*(long)mNCols <= 1024 ? toMatrix().toString() : "");
+    }
+}
@@ -5,14 +5,27 @@
 
 package labs;
 
+import datastructures.FloatMatrix;
 import datastructures.Matrix;
+import datastructures.MatrixFile;
+import datastructures.OffHeapMatrix;
 import distributedmodel.DSConfig;
 import distributedmodel.DistributedSystem;
 import distributedmodel.Node;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import neuralnets.FFNet;
 import neuralnets.FFNetHeavy;
 import neuralnets.FFNetParallel;
 import neuralnets.FFNetParallelDouble;
+import neuralnets.FFNetParallelFloat;
 import neuralnets.FFNetSequential;
 import neuralnets.NNUtils;
 import org.jfree.chart.ChartFactory;
@@ -46,6 +59,13 @@ public class Lab06 extends BaseLabMixed{
          compareParallelToSequential();
         // TASK 2 - SHARED-MEM IN-NODE PARALLIZATION
         compareDoubleParallelToParallel();
+        // TASK 3 - SINGLE PRECISION TRAINING
+        compareFloatParallelToParallel();
+
+        // OFF-HEAP MATRICES AND MATRIX FILES
+        testOffHeapMatrix();
+        testBinaryMatrixFile();
+        testCSVMatrixParser();
     }
 
 
@@ -243,7 +263,7 @@ public class Lab06 extends BaseLabMixed{
         double perfGoal = 1e-5;
         long seed = 13210;
 
-        int nLocalThreads = 4;
+        int nLocalParts = 4;
 
 
         //---Distribute-data-between-nodes
@@ -262,7 +282,7 @@ public class Lab06 extends BaseLabMixed{
                 XYSeries hist = net.getPerformanceHistory();
 
                 FFNet net2 = new FFNetParallelDouble(node, wholeTrainDataSetSize,
-                        nLocalThreads, nInputs, nHiddenUnits, seed);
+                        nLocalParts, nInputs, nHiddenUnits, seed);
                 net2.getTrainParam().maxEpochs = maxEpochs;
                 net2.getTrainParam().showInterval = showInterval;
                 net2.getTrainParam().performanceGoal = perfGoal;
@@ -297,6 +317,358 @@ public class Lab06 extends BaseLabMixed{
     }
 
 
+    private void compareFloatParallelToParallel()
+    {
+        //-----Training-data-creation--------------------
+        double minRange = -1.0;
+        double maxRange = 1.0;
+        int trainExamples = 64;
+
+        Matrix trainDataIn = getRegressionDataIn(minRange, maxRange, trainExamples);
+        Matrix trainDataOut = getRegressionDataOut(trainDataIn);
+        int wholeTrainDataSetSize = trainDataIn.getNCols();
+
+        int nInputs = 1;
+        int nHiddenUnits = 20;
+        int maxEpochs = 20;
+        int showInterval = 1;
+        double perfGoal = 1e-5;
+        long seed = 13210;
+
+
+        //---Distribute-data-between-nodes
+        int nNodes = 8;
+        singleTestRun(new DSConfig(nNodes, 1, 1),
+            (Node node) -> {
+                Matrix myTrainDataIn = getMyColumnsOfMat(trainDataIn, node);
+                Matrix myTrainDataOut = getMyColumnsOfMat(trainDataOut, node);
+
+                GradRecordingNetParallel net = new GradRecordingNetParallel(node,
+                        wholeTrainDataSetSize, nInputs, nHiddenUnits, seed);
+                net.getTrainParam().maxEpochs = maxEpochs;
+                net.getTrainParam().showInterval = showInterval;
+                net.getTrainParam().performanceGoal = perfGoal;
+                net.train(myTrainDataIn, myTrainDataOut);
+                XYSeries hist = net.getPerformanceHistory();
+
+                GradRecordingNetParallelFloat netF = new GradRecordingNetParallelFloat(node,
+                        wholeTrainDataSetSize, nInputs, nHiddenUnits, seed);
+                netF.getTrainParam().maxEpochs = maxEpochs;
+                netF.getTrainParam().showInterval = showInterval;
+                netF.getTrainParam().performanceGoal = perfGoal;
+                netF.train(new FloatMatrix(myTrainDataIn),
+                        new FloatMatrix(myTrainDataOut));
+                XYSeries histF = netF.getPerformanceHistory();
+
+                if(node.getMyId() == 0){
+                    hist.setKey("netParallel");
+                    histF.setKey("netParallelFloat");
+                    XYSeriesCollection seriesCollection = new XYSeriesCollection();
+                    seriesCollection.addSeries(hist);
+                    seriesCollection.addSeries(histF);
+                    plotTrainHistory(seriesCollection, false, 0);
+
+                    if (netF.hasApproximatelyEqualWeights(net, 0.001)){
+                        System.out.println("Float and double nets have approximately equal weights - RESULT CORRECT.");
+                    }else{
+                        System.out.println("Float and double nets have different weights - RESULT WRONG.");
+                    }
+
+                    //RPROP uses only the signs of the gradients, so the weights
+                    //would not show e.g. wrongly scaled gradients
+                    if (haveApproximatelyEqualGradients(netF.mFirstGrads, net.mFirstGrads, 1e-5)){
+                        System.out.println("Float and double nets have approximately equal gradients - RESULT CORRECT.");
+                    }else{
+                        System.out.println("Float and double nets have different gradients - RESULT WRONG.");
+                    }
+                }
+
+
+            },
+            (DistributedSystem ds) -> { },
+            (DistributedSystem ds) -> { },
+            (DistributedSystem ds) -> {},
+            (DistributedSystem ds) -> {},
+            false);
+
+    }
+
+
+    /** Maps a file as a matrix, modifies it through a view, closes it and
+     * maps the file again.
+     */
+    private void testOffHeapMatrix()
+    {
+        int nRows = 300;
+        int nCols = 37;
+        double[] data = new double[nRows * nCols];
+        for (int i = 0; i < data.length; ++i) {
+            data[i] = Math.random() - 0.5;
+        }
+        Matrix expected = new Matrix(nRows, nCols, data);
+
+        boolean correct = true;
+        File file = null;
+        try {
+            file = File.createTempFile("lab06_offheap", ".bin");
+
+            OffHeapMatrix mapped = OffHeapMatrix.map(file.getPath(), 0, nRows, nCols, true);
+            for (int r = 0; r < nRows; ++r) {
+                mapped.setRow(r, data, r * nCols);
+            }
+            try (OffHeapMatrix view = mapped.view()) {
+                view.setElem(5, 7, 42.0);
+                view.setElem(nRows - 1, nCols - 1, -42.0);
+            }
+            expected.setElem(5, 7, 42.0);
+            expected.setElem(nRows - 1, nCols - 1, -42.0);
+            correct &= mapped.getElem(5, 7) == 42.0;
+            mapped.close();
+            try {
+                mapped.getElem(0, 0);
+                correct = false;
+            } catch (IllegalStateException ex) {
+                //expected - the matrix is closed
+            }
+
+            try (OffHeapMatrix reopened = OffHeapMatrix.map(file.getPath(), 0, nRows, nCols, false)) {
+                correct &= reopened.toMatrix().isEqual(expected);
+                try {
+                    reopened.getElem(0, nCols);
+                    correct = false;
+                } catch (IndexOutOfBoundsException ex) {
+                    //expected - the column is out of range
+                }
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(Lab06.class.getName()).log(Level.SEVERE, null, ex);
+            correct = false;
+        } finally {
+            if (file != null) {
+                file.delete();
+            }
+        }
+
+        if (correct) {
+            successfulValidationInfo();
+        } else {
+            failedValidationInfo();
+        }
+    }
+
+
+    /** Writes matrices to the binary format (float64 and float32) and reads
+     * them back.
+     */
+    private void testBinaryMatrixFile()
+    {
+        int nRows = 1500;
+        int nCols = 37;
+        double[] data = new double[nRows * nCols];
+        for (int i = 0; i < data.length; ++i) {
+            data[i] = (Math.random() - 0.5) * Math.pow(10, (int) (Math.random() * 20) - 10);
+        }
+        Matrix m = new Matrix(nRows, nCols, data);
+        FloatMatrix mF = new FloatMatrix(m);
+
+        boolean correct = true;
+        File file64 = null;
+        File file32 = null;
+        try {
+            file64 = File.createTempFile("lab06_float64", MatrixFile.DEFAULT_EXTENSION);
+            file32 = File.createTempFile("lab06_float32", MatrixFile.DEFAULT_EXTENSION);
+
+            MatrixFile.write(m, file64.getPath());
+            correct &= MatrixFile.read(file64.getPath()).isEqual(m);
+            correct &= Matrix.readFromBinaryFile(file64.getPath()).isEqual(m);
+            correct &= MatrixFile.readFloat(file64.getPath()).isEqual(mF);
+
+            MatrixFile.write(mF, file32.getPath());
+            correct &= MatrixFile.readFloat(file32.getPath()).isEqual(mF);
+            correct &= MatrixFile.read(file32.getPath()).isEqual(mF.toMatrix());
+            correct &= MatrixFile.readHeader(file32.getPath()).getFileBytes()
+                    == file32.length();
+        } catch (IOException ex) {
+            Logger.getLogger(Lab06.class.getName()).log(Level.SEVERE, null, ex);
+            correct = false;
+        } finally {
+            if (file64 != null) {
+                file64.delete();
+            }
+            if (file32 != null) {
+                file32.delete();
+            }
+        }
+
+        if (correct) {
+            successfulValidationInfo();
+        } else {
+            failedValidationInfo();
+        }
+    }
+
+
+    /** Compares the parallel CSV parser (Matrix.readFromCSVFile) with a
+     * plain reader based on String.split, on a file with numbers in various
+     * notations, CRLF line endings, a blank line and trailing commas; then
+     * converts the file to the binary format and reads it back.
+     */
+    private void testCSVMatrixParser()
+    {
+        int nRows = 1500;
+        int nCols = 37;
+        String[] special = {"0", "-0.0", "1e-300", "2.5E+10", "123456789012345678901234",
+                "0.1", "-7", "3.141592653589793238", "1e308", "4.9e-324"};
+
+        boolean correct = true;
+        File csvFile = null;
+        File binFile = null;
+        try {
+            csvFile = File.createTempFile("lab06_matrix", ".txt");
+            binFile = File.createTempFile("lab06_matrix", MatrixFile.DEFAULT_EXTENSION);
+            try (PrintWriter out = new PrintWriter(csvFile)) {
+                for (int r = 0; r < nRows; ++r) {
+                    StringBuilder line = new StringBuilder();
+                    for (int c = 0; c < nCols; ++c) {
+                        if (c > 0) {
+                            line.append(',');
+                        }
+                        if (Math.random() < 0.1) {
+                            line.append(special[(int) (Math.random() * special.length)]);
+                        } else {
+                            line.append((Math.random() - 0.5) * Math.pow(10, (int) (Math.random() * 20) - 10));
+                        }
+                    }
+                    if (r % 100 == 7) {
+                        line.append(',');
+                    }
+                    out.print(line.append("\r\n"));
+                    if (r == nRows / 2) {
+                        out.print("\r\n");
+                    }
+                }
+            }
+
+            Matrix expected = readCSVWithSplit(csvFile.getPath());
+            Matrix parsed = Matrix.readFromCSVFile(csvFile.getPath());
+            correct &= parsed != null && parsed.isEqual(expected);
+
+            MatrixFile.convertCSV(csvFile.getPath(), binFile.getPath());
+            correct &= MatrixFile.read(binFile.getPath()).isEqual(expected);
+        } catch (IOException ex) {
+            Logger.getLogger(Lab06.class.getName()).log(Level.SEVERE, null, ex);
+            correct = false;
+        } finally {
+            if (csvFile != null) {
+                csvFile.delete();
+            }
+            if (binFile != null) {
+                binFile.delete();
+            }
+        }
+
+        if (correct) {
+            successfulValidationInfo();
+        } else {
+            failedValidationInfo();
+        }
+    }
+
+
+    /** The reader Matrix.readFromCSVFile used before the parallel parser
+     * (blank lines skipped).
+     */
+    private Matrix readCSVWithSplit(String csvFileName) throws IOException
+    {
+        List<double[]> rows = new ArrayList<>();
+        try (BufferedReader in = new BufferedReader(new FileReader(csvFileName))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                String[] cells = line.split(",");
+                double[] row = new double[cells.length];
+                for (int c = 0; c < cells.length; ++c) {
+                    row[c] = Double.parseDouble(cells[c]);
+                }
+                rows.add(row);
+            }
+        }
+        return new Matrix(rows.toArray(new double[rows.size()][]));
+    }
+
+
+    /** FFNetParallel keeping a copy of the gradients accumulated in node 0
+     * in the first epoch (RPROP overwrites them with their signs).
+     */
+    private static class GradRecordingNetParallel extends FFNetParallel {
+        Matrix[] mFirstGrads;
+
+        GradRecordingNetParallel(Node node, int wholeTrainDataSize,
+                int nInputs, int nHiddenUnits, long seed)
+        {
+            super(node, wholeTrainDataSize, nInputs, nHiddenUnits, seed);
+        }
+
+        @Override
+        protected void accumulateGrads(int wholeTrainDataSize)
+        {
+            super.accumulateGrads(wholeTrainDataSize);
+            if (mFirstGrads == null) {
+                mFirstGrads = new Matrix[]{new Matrix(_InWGrad), new Matrix(_InBiasWGrad),
+                    new Matrix(_LayerWGrad), new Matrix(_LayerBiasWGrad)};
+            }
+        }
+    }
+
+
+    /** FFNetParallelFloat keeping a copy of the gradients accumulated in
+     * node 0 in the first epoch.
+     */
+    private static class GradRecordingNetParallelFloat extends FFNetParallelFloat {
+        FloatMatrix[] mFirstGrads;
+
+        GradRecordingNetParallelFloat(Node node, int wholeTrainDataSize,
+                int nInputs, int nHiddenUnits, long seed)
+        {
+            super(node, wholeTrainDataSize, nInputs, nHiddenUnits, seed);
+        }
+
+        @Override
+        protected void accumulateGrads(int wholeTrainDataSize)
+        {
+            super.accumulateGrads(wholeTrainDataSize);
+            if (mFirstGrads == null) {
+                mFirstGrads = new FloatMatrix[]{new FloatMatrix(_InWGrad),
+                    new FloatMatrix(_InBiasWGrad), new FloatMatrix(_LayerWGrad),
+                    new FloatMatrix(_LayerBiasWGrad)};
+            }
+        }
+    }
+
+
+    /** Compares the gradients with a tolerance relative to the largest
+     * magnitude in each gradient matrix.
+     */
+    private static boolean haveApproximatelyEqualGradients(FloatMatrix[] gradsF,
+            Matrix[] grads, double relEps)
+    {
+        for (int g = 0; g < grads.length; ++g) {
+            double maxAbs = 0;
+            for (int r = 0; r < grads[g].getNRows(); ++r) {
+                for (int c = 0; c < grads[g].getNCols(); ++c) {
+                    maxAbs = Math.max(maxAbs, Math.abs(grads[g].getElem(r, c)));
+                }
+            }
+            if (!gradsF[g].isEqualApproximately(grads[g], relEps * maxAbs)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
     private Matrix getRegressionDataIn(double min, double max, double step)
     {
         double[] data = NNUtils.generateSequenceFixedStep(min, max, step);
@@ -5,6 +5,7 @@
 
 package neuralnets;
 
+import datastructures.FloatMatrix;
 import datastructures.Matrix;
 import java.util.Collection;
 import java.util.Iterator;
@@ -90,11 +91,49 @@ public class EvaluationMeasures {
         }
         
         double sse = 0.0;
-        Matrix errors = actualOutput.subtract(desiredOutput);
         
-        for(int r = 0; r < errors.getNRows(); ++r){
-            for(int c = 0; c < errors.getNCols(); ++c){
-                double e = errors.getElem(r, c);
+        for(int r = 0; r < actualOutput.getNRows(); ++r){
+            for(int c = 0; c < actualOutput.getNCols(); ++c){
+                double e = actualOutput.getElem(r, c) - desiredOutput.getElem(r, c);
+                sse += e*e;
+            }
+        }
+        return sse;
+    }
+    
+    
+    /** Mean squared error (single precision data, double accumulator)
+     * 
+     * @param desiredOutput      - desired output [nOutputs, nTestObj]
+     * @param actualOutput      - actual output [nOutputs, nTestObj]
+     * @return 
+     */
+    public static double mse(FloatMatrix desiredOutput, FloatMatrix actualOutput)
+    {
+        double sse = sse(desiredOutput, actualOutput);
+        int nObj = desiredOutput.getNCols();
+        return sse/(double)nObj;
+    }
+    
+    
+    /** Sum of squared errors (single precision data, double accumulator).
+     * 
+     * @param desiredOutput
+     * @param actualOutput
+     * @return 
+     */
+    public static double sse(FloatMatrix desiredOutput, FloatMatrix actualOutput)
+    {
+        if (desiredOutput.getNRows()!= actualOutput.getNRows() || 
+                desiredOutput.getNCols() != actualOutput.getNCols()){
+            throw new IllegalArgumentException("desired and actual not of equal size");
+        }
+        
+        double sse = 0.0;
+        for(int r = 0; r < desiredOutput.getNRows(); ++r){
+            for(int c = 0; c < desiredOutput.getNCols(); ++c){
+                double e = (double) actualOutput.getElem(r, c)
+                        - desiredOutput.getElem(r, c);
                 sse += e*e;
             }
         }
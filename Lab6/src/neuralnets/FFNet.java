@@ -6,6 +6,7 @@
 package neuralnets;
 
 import datastructures.Matrix;
+import datastructures.MatrixWorkspace;
 import java.util.Random;
 import java.util.function.DoubleBinaryOperator;
 import org.jfree.data.xy.XYSeries;
@@ -93,6 +94,12 @@ public abstract class FFNet {
     
     protected Matrix _HiddenState;            //[nHiddenUnits x batchsize]      
     protected Matrix _deltasAtHidden;         //[nHiddenUnits x batchsize]
+    
+    /** Temporaries of forward and backward passes are acquired from here, so
+     * an epoch run inside a scope of the workspace does not allocate (after
+     * the first one).
+     */
+    protected final MatrixWorkspace _Workspace = new MatrixWorkspace();
 
    
     public class TrainParam
@@ -249,20 +256,28 @@ public abstract class FFNet {
      */
     protected Matrix forwardPass(Matrix input)
     {
-        Matrix inputToHidden = _InW.times(input).addInPlaceRepeatedColumn(_InBiasW);
-        _HiddenState = inputToHidden.applyFunctionElementwise(_AFHidden.getActivationFun());
-        Matrix inputToOutput = _LayerW.times(_HiddenState).addInPlaceRepeatedColumn(_LayerBiasW);
-        Matrix output = inputToOutput.applyFunctionElementwise(_AFOut.getActivationFun());
+        int batchsize = input.getNCols();
+        Matrix inputToHidden = _InW
+                .timesInto(input, _Workspace.acquire(_NHiddenUnits, batchsize))
+                .addInPlaceRepeatedColumn(_InBiasW);
+        _HiddenState = inputToHidden.applyFunctionElementwiseInPlace(_AFHidden.getActivationFun());
+        Matrix inputToOutput = _LayerW
+                .timesInto(_HiddenState, _Workspace.acquire(1, batchsize))
+                .addInPlaceRepeatedColumn(_LayerBiasW);
+        Matrix output = inputToOutput.applyFunctionElementwiseInPlace(_AFOut.getActivationFun());
         return output;
     }
     
     
     protected void backwardPass(Matrix lastDelta)
     {
-        Matrix derivHiddenActiv = _HiddenState.applyFunctionElementwise(_AFHidden.getGradientFun());
-        _deltasAtHidden = _LayerW.transpose()
-                            .times(lastDelta)
-                            .timesElementByElementInPlace(derivHiddenActiv);
+        Matrix derivHiddenActiv = _HiddenState.applyFunctionElementwiseInto(
+                _AFHidden.getGradientFun(), _Workspace.acquire(
+                        _HiddenState.getNRows(), _HiddenState.getNCols()));
+        _deltasAtHidden = _LayerW
+                .transposeTimesInto(lastDelta, _Workspace.acquire(
+                        _LayerW.getNCols(), lastDelta.getNCols()))
+                .timesElementByElementInPlace(derivHiddenActiv);
     }
     
     
@@ -280,22 +295,29 @@ public abstract class FFNet {
         
         DoubleBinaryOperator sum = (double v1, double v2) -> { return v1+v2; };
         
-        Matrix lastDelta = outputs.subtract(trainDataOut);
+        Matrix lastDelta = outputs.subtractInto(trainDataOut,
+                _Workspace.acquire(outputs.getNRows(), outputs.getNCols()));
         
         backwardPass(lastDelta);
         
         _LayerWGrad = lastDelta
-                        .timesByTranspose(_HiddenState)
-                        .divide(batchsize);
+                        .timesByTransposeInto(_HiddenState, acquireLike(_LayerW))
+                        .divideInPlace(batchsize);
         _LayerBiasWGrad = lastDelta
-                            .reduceRows(sum)
-                            .divide(batchsize);
+                            .reduceRowsInto(sum, acquireLike(_LayerBiasW))
+                            .divideInPlace(batchsize);
         _InWGrad = _deltasAtHidden
-                        .timesByTranspose(trainDataIn)
-                        .divide(batchsize);
+                        .timesByTransposeInto(trainDataIn, acquireLike(_InW))
+                        .divideInPlace(batchsize);
         _InBiasWGrad = _deltasAtHidden
-                        .reduceRows(sum)
-                        .divide(batchsize);
+                        .reduceRowsInto(sum, acquireLike(_InBiasW))
+                        .divideInPlace(batchsize);
+    }
+    
+    
+    protected Matrix acquireLike(Matrix m)
+    {
+        return _Workspace.acquire(m.getNRows(), m.getNCols());
     }
     
     
@@ -0,0 +1,324 @@
+/*
+ *  This code is for Parallel and Distributed Algorithms
+ *  laboratory at Gdansk University of Technology
+ */
+
+package neuralnets;
+
+import datastructures.FloatMatrix;
+import java.util.Random;
+import java.util.function.DoubleBinaryOperator;
+import org.jfree.data.xy.XYSeries;
+
+/** Single precision version of FFNet. The weights, gradients and states are
+ * kept in FloatMatrix objects (float storage), while all the sums (inner
+ * products, reductions over the batch, the performance measure) are
+ * accumulated in doubles.
+ *
+ * @author Karol Draszawka <kadr@eti.pg.gda.pl>
+ */
+public abstract class FFNetFloat {
+
+    protected final int _NInputs;       //number of inputs to the network
+    protected final int _NHiddenUnits;  //number of hidden units
+
+
+    /** Weights at input to hidden connections.
+     * Size: [nHidden , nFeatures]
+     */
+    protected FloatMatrix _InW;
+    protected FloatMatrix _InWGrad;        //gradients wrt corresponding weights
+
+    public FloatMatrix getInW(){
+        return _InW;
+    }
+    public void setInW(FloatMatrix inWeights){
+        _InW = inWeights;
+    }
+
+    /** Weights at bias to hidden connections.
+     * Size: [nHidden, 1]
+     */
+    protected FloatMatrix _InBiasW;
+    protected FloatMatrix _InBiasWGrad;        //gradients wrt corresponding weights
+
+    public FloatMatrix getInBiasW(){
+        return _InBiasW;
+    }
+    public void setInBiasW(FloatMatrix inBiasWeights){
+        _InBiasW = inBiasWeights;
+    }
+
+    /** Weights at hidden to output connections
+     * Size: [1, nHidden]
+     */
+    protected FloatMatrix _LayerW;
+    protected FloatMatrix _LayerWGrad;    //gradients wrt corresponding weights
+
+    public FloatMatrix getLayerW(){
+        return _LayerW;
+    }
+    public void setLayerW(FloatMatrix layerWeights){
+        _LayerW = layerWeights;
+    }
+
+    /** Weights at bias to hidden connections
+     * Size: [1, 1]
+     */
+    protected FloatMatrix _LayerBiasW;
+    protected FloatMatrix _LayerBiasWGrad;    //gradients wrt corresponding weights
+
+    public FloatMatrix getLayerBiasW(){
+        return _LayerBiasW;
+    }
+    public void setLayerBiasW(FloatMatrix layerBiasWeights){
+        _LayerBiasW = layerBiasWeights;
+    }
+
+
+    /** Activation unit of the hidden units (logistic)
+     */
+    protected ActivationUnit _AFHidden;
+
+    public ActivationUnit getHiddenActivFunc(){
+        return _AFHidden;
+    }
+    public void setHiddenActivFunc(ActivationUnit af){
+        _AFHidden = af;
+    }
+    /** Actication unit of the output unit (purelin)
+     */
+    protected final ActivationUnit _AFOut;
+
+
+    protected FloatMatrix _HiddenState;            //[nHiddenUnits x batchsize]
+    protected FloatMatrix _deltasAtHidden;         //[nHiddenUnits x batchsize]
+
+
+    public class TrainParam
+    {
+        public static final int DEFAULT_MAX_EPOCHS = 10000;
+        public static final double DEFAULT_PERFORMANCE_GOAL = 1e-4;
+        public static final int DEFAULT_SHOW_INTERVAL = 100;
+
+        public int maxEpochs;
+        public double performanceGoal;
+        public int showInterval;
+
+        //rprop parameters
+        public double positiveFactor = 1.5;
+        public double negativeFactor = 0.5;
+        public double minGain = 0.000001;
+        public double maxGain = 30;
+        public double initial_step_size = 0.001;
+
+        public TrainParam(){
+            maxEpochs = DEFAULT_MAX_EPOCHS;
+            performanceGoal = DEFAULT_PERFORMANCE_GOAL;
+            showInterval = DEFAULT_SHOW_INTERVAL;
+        }
+    }
+
+    protected final TrainParam _TrainParam;
+
+    public TrainParam getTrainParam(){
+        return _TrainParam;
+    }
+
+    /** XYSeries with performance train history to plot capabilities
+     *
+     */
+    protected final XYSeries _PerformanceHistory;
+    public XYSeries getPerformanceHistory(){
+        return _PerformanceHistory;
+    }
+
+    protected static final double DEFAULT_INIT_WEIGHTS_STD = 0.01;
+
+
+    /** Constructor. Initializes weights to random weights using specified seed.
+     * The random numbers are drawn exactly as in FFNet (and rounded to
+     * floats), so nets created with the same seed start from the same point.
+     *
+     * @param nInputs       - number of inputs to the net (=number of features)
+     * @param nHiddenUnits  - humber of units in the hidden layer
+     * @param seed          - seed for rng
+     */
+    public FFNetFloat(int nInputs, int nHiddenUnits, long seed){
+        this(nInputs, nHiddenUnits, new Random(seed));
+    }
+
+
+    /** Constructor. Initializes weights to random weights.
+     *
+     * @param nInputs       - number of inputs to the net (=number of features)
+     * @param nHiddenUnits  - humber of units in the hidden layer
+     */
+    public FFNetFloat(int nInputs, int nHiddenUnits){
+        this(nInputs, nHiddenUnits, new Random());
+    }
+
+
+    private FFNetFloat(int nInputs, int nHiddenUnits, Random r){
+
+        _NInputs = nInputs;
+        _NHiddenUnits = nHiddenUnits;
+        _AFHidden = ActivationUnit.getLogisticUnit();
+        _AFOut = ActivationUnit.getPurelinUnit();
+        _TrainParam = new TrainParam();
+        _PerformanceHistory = new XYSeries("Performance");
+
+        initializeWeights(DEFAULT_INIT_WEIGHTS_STD, r);
+    }
+
+
+    private void initializeWeights(double std, Random r) {
+        _InW = new FloatMatrix(_NHiddenUnits, _NInputs,
+                NNUtils.generateNormalRandomData(_NHiddenUnits*_NInputs, std, r));
+        _InBiasW = new FloatMatrix(_NHiddenUnits, 1,
+                NNUtils.generateNormalRandomData(_NHiddenUnits, std, r));
+        _LayerW = new FloatMatrix(1, _NHiddenUnits,
+                NNUtils.generateNormalRandomData(_NHiddenUnits, std, r));
+        _LayerBiasW = new FloatMatrix(1, 1,
+                NNUtils.generateNormalRandomData(1, std, r));
+    }
+
+    /** Train the net.
+     *
+     * @param trainDataIn       - input train data    [nFeats x nTrainObj]
+     * @param trainDataOut      - output train data   [1 x nTrainObj]
+     */
+    public abstract void train(FloatMatrix trainDataIn, FloatMatrix trainDataOut);
+
+
+
+    protected double calculatePerformanceEvaluation(FloatMatrix trainDataOut,
+            FloatMatrix outputs)
+    {
+        return EvaluationMeasures.mse(trainDataOut, outputs);
+    }
+
+
+    protected void addToPerformanceHistory(int epoch, double performance)
+    {
+        _PerformanceHistory.add(epoch, performance);
+    }
+
+
+    protected void printInfo(int epoch, double performance)
+    {
+        System.out.format("Epoch %d, trainMSE = %8.6f\n", epoch, performance);
+    }
+
+
+    /** Returns outputs of the net to a series of test objects
+     *
+     * @param testDataIn    - input test data       [nFeats x nTestObj]
+     * @return              - output of the net     [1 x nTestObj]
+     */
+    public FloatMatrix predict(FloatMatrix testDataIn){
+        return forwardPass(testDataIn);
+    }
+
+
+    /**
+     *
+     * @param input         [nInputs x batchsize]
+     * @return              [nOutputs x batchsize]
+     */
+    protected FloatMatrix forwardPass(FloatMatrix input)
+    {
+        FloatMatrix inputToHidden = _InW.times(input).addInPlaceRepeatedColumn(_InBiasW);
+        _HiddenState = inputToHidden.applyFunctionElementwiseInPlace(_AFHidden.getActivationFun());
+        FloatMatrix inputToOutput = _LayerW.times(_HiddenState).addInPlaceRepeatedColumn(_LayerBiasW);
+        return inputToOutput.applyFunctionElementwiseInPlace(_AFOut.getActivationFun());
+    }
+
+
+    protected void backwardPass(FloatMatrix lastDelta)
+    {
+        FloatMatrix derivHiddenActiv = _HiddenState.applyFunctionElementwise(_AFHidden.getGradientFun());
+        _deltasAtHidden = _LayerW.transposeTimes(lastDelta)
+                            .timesElementByElementInPlace(derivHiddenActiv);
+    }
+
+
+
+   /** The backpropagation algorithm to calculate gradients of the cost function
+    * wrt all the parameters.
+    *
+    * @param outputs
+    * @param trainDataIn
+    * @param trainDataOut
+    */
+    protected void calculateGradients(FloatMatrix outputs, FloatMatrix trainDataIn,
+            FloatMatrix trainDataOut)
+    {
+        int batchsize = trainDataIn.getNCols();
+
+        DoubleBinaryOperator sum = (double v1, double v2) -> { return v1+v2; };
+
+        FloatMatrix lastDelta = outputs.subtract(trainDataOut);
+
+        backwardPass(lastDelta);
+
+        _LayerWGrad = lastDelta
+                        .timesByTranspose(_HiddenState)
+                        .divideInPlace(batchsize);
+        _LayerBiasWGrad = lastDelta
+                            .reduceRows(sum)
+                            .divideInPlace(batchsize);
+        _InWGrad = _deltasAtHidden
+                        .timesByTranspose(trainDataIn)
+                        .divideInPlace(batchsize);
+        _InBiasWGrad = _deltasAtHidden
+                        .reduceRows(sum)
+                        .divideInPlace(batchsize);
+    }
+
+
+    /** Checks whether the weights of both nets are approximately equal.
+     *
+     * @param other
+     * @param eps       - the absolute tolerance between single corresponding
+     *                    elements in matrices
+     * @return
+     */
+    public boolean hasApproximatelyEqualWeights(FFNetFloat other, double eps)
+    {
+        if (!_InW.isEqualApproximately(other._InW, eps)){ return false;}
+        if (!_InBiasW.isEqualApproximately(other._InBiasW, eps)) { return false;}
+        if (!_LayerW.isEqualApproximately(other._LayerW, eps)) { return false; }
+        return _LayerBiasW.isEqualApproximately(other._LayerBiasW, eps);
+    }
+
+    /** Checks whether the weights of this net are approximately equal to the
+     * weights of a double precision net.
+     *
+     * @param other
+     * @param eps
+     * @return
+     */
+    public boolean hasApproximatelyEqualWeights(FFNet other, double eps)
+    {
+        if (!_InW.isEqualApproximately(other.getInW(), eps)){ return false;}
+        if (!_InBiasW.isEqualApproximately(other.getInBiasW(), eps)) { return false;}
+        if (!_LayerW.isEqualApproximately(other.getLayerW(), eps)) { return false; }
+        return _LayerBiasW.isEqualApproximately(other.getLayerBiasW(), eps);
+    }
+
+    @Override
+    public String toString(){
+        StringBuilder sb = new StringBuilder("Feed-forward neural network (float):\n");
+        sb.append("Input to hidden weights:\n");
+        sb.append(getInW().toString());
+        sb.append("\nTo hidden bias weights:\n");
+        sb.append(getInBiasW().toString());
+        sb.append("\nHidden to output weights:\n");
+        sb.append(getLayerW().toString());
+        sb.append("\nTo output bias weights:\n");
+        sb.append(getLayerBiasW().toString());
+        return sb.toString();
+    }
+
+}
@@ -342,8 +342,7 @@ public class FFNetHeavy {
     private void backwardPass(Matrix lastDelta)
     {
         Matrix derivHiddenActiv = _HiddenState.applyFunctionElementwise(_AFHidden.getGradientFun());
-        _deltasAtHidden = _LayerW.transpose()
-                            .times(lastDelta)
+        _deltasAtHidden = _LayerW.transposeTimes(lastDelta)
                             .timesElementByElementInPlace(derivHiddenActiv);
     }
     
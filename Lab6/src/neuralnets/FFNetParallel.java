@@ -7,8 +7,9 @@ package neuralnets;
 
 import algorithms.distributed.BasicCommunication;
 import datastructures.Matrix;
+import datastructures.MatrixPacker;
+import datastructures.MatrixWorkspace;
 import distributedmodel.Node;
-import java.util.function.BinaryOperator;
 
 /**
  *
@@ -19,6 +20,9 @@ public class FFNetParallel extends FFNetSequential {
     protected final Node _Node;
     protected final int _WholeTrainDataSize;
     
+    private MatrixPacker _GradsPacker;      //created at the first epoch
+    private MatrixPacker _WeightsPacker;
+    
     
     
     
@@ -41,6 +45,7 @@ public class FFNetParallel extends FFNetSequential {
     
 
     @Override
+    @SuppressWarnings("try")    //the workspace scope is only opened and closed
     public void train(Matrix trainDataIn, Matrix trainDataOut)
     {
         int epoch = 0;
@@ -48,40 +53,44 @@ public class FFNetParallel extends FFNetSequential {
         
         while(true){
             
-            //------------------------FORWARD-PASS------------------------------
+            //temporaries of the epoch are recycled when the scope is closed
+            try (MatrixWorkspace.Scope scope = _Workspace.openScope()){
+
+                //------------------------FORWARD-PASS------------------------------
             
-            Matrix outputs = forwardPass(trainDataIn);
+                Matrix outputs = forwardPass(trainDataIn);
             
-            //----------------------CHECK-PERFORMANCE---------------------------
-            //          (communication reduce-broadcast pattern)
-            performance = calculatePerformanceEvaluation(trainDataOut, outputs);
+                //----------------------CHECK-PERFORMANCE---------------------------
+                //          (communication reduce-broadcast pattern)
+                performance = calculatePerformanceEvaluation(trainDataOut, outputs);
             
-            if(performance < _TrainParam.performanceGoal)
-            {
-                if(_Node.getMyId() == 0){
-                    addToPerformanceHistory(epoch, performance);
-                    System.out.format("Performance goal met after %d epochs.\n", epoch);
+                if(performance < _TrainParam.performanceGoal)
+                {
+                    if(_Node.getMyId() == 0){
+                        addToPerformanceHistory(epoch, performance);
+                        System.out.format("Performance goal met after %d epochs.\n", epoch);
+                    }
+                    break;
                 }
-                break;
-            }
             
-            if(epoch%_TrainParam.showInterval == 0 && _Node.getMyId() == 0){
-                addToPerformanceHistory(epoch, performance);
-                printInfo(epoch, performance);
-            }
+                if(epoch%_TrainParam.showInterval == 0 && _Node.getMyId() == 0){
+                    addToPerformanceHistory(epoch, performance);
+                    printInfo(epoch, performance);
+                }
             
-            calculateGradients(outputs, trainDataIn, trainDataOut); //backpropagation
+                calculateGradients(outputs, trainDataIn, trainDataOut); //backpropagation
             
-            //communication phase 1: accumulate gradients in node 0
-            accumulateGrads(_WholeTrainDataSize);
+                //communication phase 1: accumulate gradients in node 0
+                accumulateGrads(_WholeTrainDataSize);
 
-            //update of the weights is done only in one node
-            if (_Node.getMyId() == 0){
-                updateWeightsRPROP();
-            }
+                //update of the weights is done only in one node
+                if (_Node.getMyId() == 0){
+                    updateWeightsRPROP();
+                }
             
-            //communication phase 2: broadcast the updated weights
-            broadcastWeights();
+                //communication phase 2: broadcast the updated weights
+                broadcastWeights();
+            }
             
             epoch++;
                 
@@ -117,34 +126,25 @@ public class FFNetParallel extends FFNetSequential {
     /** This method contains a communication phase between nodes in a distributed
      * system, that aims at accumulating gradients calculated in each node on a
      * disjoint subset of the train dataset into node 0.
+     *      All four gradients travel in one packed message; the packing buffer
+     * is reused in every epoch and the reduced sums are copied into the
+     * gradient matrices of node 0.
      *
      */
-    class SumMatrices implements BinaryOperator<double[]> {
-        @Override
-        public double[] apply(double[] doubles1, double[] doubles2) {
-            Matrix mat1 = Matrix.deserialize(doubles1);
-            Matrix mat2 = Matrix.deserialize(doubles2);
-            Matrix result = mat1.add(mat2);
-            return result.serialize();
-        }
-    }
     protected void accumulateGrads(int wholeTrainDataSize)
     {
-        SumMatrices sum = new SumMatrices();
-        Matrix inBiasWGrad = Matrix.deserialize(BasicCommunication.reduceWithBarrier(this._Node, this._InBiasWGrad.serialize(), sum));
-        Matrix layerBiasWGrad = Matrix.deserialize(BasicCommunication.reduceWithBarrier(this._Node, this._LayerBiasWGrad.serialize(), sum));
-        Matrix layerWGrad = Matrix.deserialize(BasicCommunication.reduceWithBarrier(this._Node, this._LayerWGrad.serialize(), sum));
-        Matrix inWGrad = Matrix.deserialize(BasicCommunication.reduceWithBarrier(this._Node, this._InWGrad.serialize(), sum));
-
-        inBiasWGrad.divide((double)wholeTrainDataSize);
-        layerBiasWGrad.divide((double)wholeTrainDataSize);
-        layerWGrad.divide((double)wholeTrainDataSize);
-        inWGrad.divide((double)wholeTrainDataSize);
-        if(this._Node.getMyId() == 0) {
-            this._InBiasWGrad = inBiasWGrad;
-            this._LayerBiasWGrad = layerBiasWGrad;
-            this._LayerWGrad = layerWGrad;
-            this._InWGrad = inWGrad;
+        if(_GradsPacker == null){
+            _GradsPacker = new MatrixPacker(_InBiasWGrad, _LayerBiasWGrad,
+                    _LayerWGrad, _InWGrad);
+        }
+        double[] packed = _GradsPacker.pack(_InBiasWGrad, _LayerBiasWGrad,
+                _LayerWGrad, _InWGrad);
+        double[] sums = BasicCommunication.reduceWithBarrier(_Node, packed,
+                _GradsPacker::addPacked);
+        
+        if(_Node.getMyId() == 0) {
+            _GradsPacker.unpack(sums, _InBiasWGrad, _LayerBiasWGrad,
+                    _LayerWGrad, _InWGrad);
         }
     }
     
@@ -153,14 +153,23 @@ public class FFNetParallel extends FFNetSequential {
     /** This method contains a communication phase between nodes in a distributed
      * system, that aims at broadcasting the updated weights (calculated in node
      * 0) to all the nodes in the system.
+     *      The weights are sent in one packed message and copied into the
+     * existing weight matrices of the receiving nodes.
      * 
      */
     protected void broadcastWeights()
     {
-        this._InBiasW = Matrix.deserialize(BasicCommunication.broadcast(this._Node, this._InBiasW.serialize()));
-        this._LayerBiasW = Matrix.deserialize(BasicCommunication.broadcast(this._Node, this._LayerBiasW.serialize()));
-        this._LayerW = Matrix.deserialize(BasicCommunication.broadcast(this._Node, this._LayerW.serialize()));
-        this._InW = Matrix.deserialize(BasicCommunication.broadcast(this._Node, this._InW.serialize()));
+        if(_WeightsPacker == null){
+            _WeightsPacker = new MatrixPacker(_InBiasW, _LayerBiasW, _LayerW, _InW);
+        }
+        double[] packed = null;
+        if(_Node.getMyId() == 0){
+            packed = _WeightsPacker.pack(_InBiasW, _LayerBiasW, _LayerW, _InW);
+        }
+        double[] received = BasicCommunication.broadcast(_Node, packed);
+        if(_Node.getMyId() != 0){
+            _WeightsPacker.unpack(received, _InBiasW, _LayerBiasW, _LayerW, _InW);
+        }
     }
     
 }
@@ -18,41 +18,75 @@ import java.util.function.DoubleBinaryOperator;
  */
 public class FFNetParallelDouble extends FFNetParallel{
     
-    private final int _NThreads;
+    /** Pass as nParts to let MatrixOperationsSM choose the grid of parts
+     * (and the tiling) for the shapes of the net.
+     */
+    public static final int N_PARTS_AUTO = 0;
     
+    private final int _NParts;
     
+    
+    /** The matrix products of a node are cut into nParts parts along the
+     * columns (see MatrixOperationsSM.multiplyMtx) and computed by the common
+     * ForkJoin pool - its parallelism, not nParts, is the number of threads.
+     * 
+     * @param node
+     * @param wholeTrainDataSize
+     * @param nParts            - or N_PARTS_AUTO
+     * @param nInputs
+     * @param nHiddenUnits 
+     */
     public FFNetParallelDouble(Node node, int wholeTrainDataSize,
-            int nThreads, int nInputs, int nHiddenUnits)
+            int nParts, int nInputs, int nHiddenUnits)
     {
         super(node, wholeTrainDataSize, nInputs, nHiddenUnits);
-        _NThreads = nThreads;
+        _NParts = nParts;
     }
     
     public FFNetParallelDouble(Node node, int wholeTrainDataSize,
-            int nThreads, int nInputs, int nHiddenUnits, long seed)
+            int nParts, int nInputs, int nHiddenUnits, long seed)
     {
         super(node, wholeTrainDataSize, nInputs, nHiddenUnits, seed);
-        _NThreads = nThreads;
+        _NParts = nParts;
     }
    
     
     @Override
     protected Matrix forwardPass(Matrix input)
     {
-        Matrix inputToHidden = MatrixOperationsSM.multiplyMtx(_InW , input, 1, _NThreads).addInPlaceRepeatedColumn(_InBiasW);
+        Matrix inputToHidden = multiply(_InW , input).addInPlaceRepeatedColumn(_InBiasW);
         _HiddenState = inputToHidden.applyFunctionElementwise(_AFHidden.getActivationFun());
-        Matrix inputToOutput =  MatrixOperationsSM.multiplyMtx(_LayerW, _HiddenState, 1, _NThreads).addInPlaceRepeatedColumn(_LayerBiasW);
+        Matrix inputToOutput =  multiply(_LayerW, _HiddenState).addInPlaceRepeatedColumn(_LayerBiasW);
         Matrix output = inputToOutput.applyFunctionElementwise(_AFOut.getActivationFun());
         return output;
     }
     
     
+    private Matrix multiply(Matrix a, Matrix b)
+    {
+        if(_NParts == N_PARTS_AUTO){
+            return MatrixOperationsSM.multiplyMtx(a, b);
+        }
+        return MatrixOperationsSM.multiplyMtx(a, b, 1, _NParts);
+    }
+    
+    
+    /** a^T * b, parallel like multiply().
+     */
+    private Matrix multiplyTransposed(Matrix a, Matrix b)
+    {
+        if(_NParts == N_PARTS_AUTO){
+            return MatrixOperationsSM.multiplyTransposedMtx(a, b);
+        }
+        return MatrixOperationsSM.multiplyTransposedMtx(a, b, 1, _NParts);
+    }
+    
     
     @Override
     protected void backwardPass(Matrix lastDelta)
     {
         Matrix derivHiddenActiv = _HiddenState.applyFunctionElementwise(_AFHidden.getGradientFun());
-        _deltasAtHidden = MatrixOperationsSM.multiplyMtx(_LayerW.transpose(), lastDelta, 1, _NThreads)
+        _deltasAtHidden = multiplyTransposed(_LayerW, lastDelta)
                 .timesElementByElementInPlace(derivHiddenActiv);
     }
     
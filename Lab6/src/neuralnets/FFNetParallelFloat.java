@@ -0,0 +1,161 @@
+/*
+ *  This code is for Parallel and Distributed Algorithms
+ *  laboratory at Gdansk University of Technology
+ */
+
+package neuralnets;
+
+import algorithms.distributed.BasicCommunication;
+import datastructures.FloatMatrix;
+import distributedmodel.Node;
+import java.util.function.BinaryOperator;
+
+/** Single precision version of FFNetParallel. The gradients and weights are
+ * sent as FloatMatrix.serialize() messages (two floats per double), which
+ * halves the communication volume of accumulateGrads() and broadcastWeights().
+ * The partial sums of gradients are added in double and rounded to float once
+ * per reduction step; the performance measure is reduced in double.
+ *
+ * @author Karol Draszawka <kadr@eti.pg.gda.pl>
+ */
+public class FFNetParallelFloat extends FFNetSequentialFloat {
+
+    protected final Node _Node;
+    protected final int _WholeTrainDataSize;
+    
+    
+    public FFNetParallelFloat(Node node, int wholeTrainDataSize,
+            int nInputs, int nHiddenUnits)
+    {
+        super(nInputs, nHiddenUnits);
+        _Node = node;
+        _WholeTrainDataSize = wholeTrainDataSize;
+    }
+    
+    public FFNetParallelFloat(Node node, int wholeTrainDataSize,
+            int nInputs, int nHiddenUnits, long seed)
+    {
+        super(nInputs, nHiddenUnits, seed);
+        _Node = node;
+        _WholeTrainDataSize = wholeTrainDataSize;
+    }
+    
+
+    @Override
+    public void train(FloatMatrix trainDataIn, FloatMatrix trainDataOut)
+    {
+        int epoch = 0;
+        double performance;
+        
+        while(true){
+            
+            //------------------------FORWARD-PASS------------------------------
+            
+            FloatMatrix outputs = forwardPass(trainDataIn);
+            
+            //----------------------CHECK-PERFORMANCE---------------------------
+            //          (communication reduce-broadcast pattern)
+            performance = calculatePerformanceEvaluation(trainDataOut, outputs);
+            
+            if(performance < _TrainParam.performanceGoal)
+            {
+                if(_Node.getMyId() == 0){
+                    addToPerformanceHistory(epoch, performance);
+                    System.out.format("Performance goal met after %d epochs.\n", epoch);
+                }
+                break;
+            }
+            
+            if(epoch%_TrainParam.showInterval == 0 && _Node.getMyId() == 0){
+                addToPerformanceHistory(epoch, performance);
+                printInfo(epoch, performance);
+            }
+            
+            calculateGradients(outputs, trainDataIn, trainDataOut); //backpropagation
+            
+            //communication phase 1: accumulate gradients in node 0
+            accumulateGrads(_WholeTrainDataSize);
+
+            //update of the weights is done only in one node
+            if (_Node.getMyId() == 0){
+                updateWeightsRPROP();
+            }
+            
+            //communication phase 2: broadcast the updated weights
+            broadcastWeights();
+            
+            epoch++;
+                
+            if(epoch > _TrainParam.maxEpochs){
+                if(_Node.getMyId() == 0){
+                    System.out.println("Maximum epochs reached.");
+                }
+                break;
+            }
+            
+        }
+    }
+    
+    
+    @Override
+    protected double calculatePerformanceEvaluation(FloatMatrix trainDataOut,
+            FloatMatrix outputs)
+    {
+        double localPerf = EvaluationMeasures.sse(trainDataOut, outputs);
+        
+        double performance = BasicCommunication.reduceWithBarrier(_Node,
+                        localPerf, (double p1, double p2) -> {
+                            return p1+p2;                         
+                        })/_WholeTrainDataSize;
+
+        return BasicCommunication.broadcastWithBarrier(_Node,performance);
+    }
+    
+    
+    /** Adds two serialized FloatMatrix objects.
+     */
+    static class SumFloatMatrices implements BinaryOperator<double[]> {
+        @Override
+        public double[] apply(double[] doubles1, double[] doubles2) {
+            FloatMatrix mat1 = FloatMatrix.deserialize(doubles1);
+            FloatMatrix mat2 = FloatMatrix.deserialize(doubles2);
+            return mat1.addInPlace(mat2).serialize();
+        }
+    }
+    
+    /** Accumulates gradients calculated in each node on a disjoint subset of
+     * the train dataset into node 0. As in FFNetParallel, node 0 gets the sums
+     * of the nodes' gradients, i.e. the gradients over the whole dataset, the
+     * same as the sequential net computes.
+     * 
+     * @param wholeTrainDataSize 
+     */
+    protected void accumulateGrads(int wholeTrainDataSize)
+    {
+        SumFloatMatrices sum = new SumFloatMatrices();
+        FloatMatrix inBiasWGrad = FloatMatrix.deserialize(BasicCommunication.reduceWithBarrier(_Node, _InBiasWGrad.serialize(), sum));
+        FloatMatrix layerBiasWGrad = FloatMatrix.deserialize(BasicCommunication.reduceWithBarrier(_Node, _LayerBiasWGrad.serialize(), sum));
+        FloatMatrix layerWGrad = FloatMatrix.deserialize(BasicCommunication.reduceWithBarrier(_Node, _LayerWGrad.serialize(), sum));
+        FloatMatrix inWGrad = FloatMatrix.deserialize(BasicCommunication.reduceWithBarrier(_Node, _InWGrad.serialize(), sum));
+
+        if(_Node.getMyId() == 0) {
+            _InBiasWGrad = inBiasWGrad;
+            _LayerBiasWGrad = layerBiasWGrad;
+            _LayerWGrad = layerWGrad;
+            _InWGrad = inWGrad;
+        }
+    }
+    
+    
+    /** Broadcasts the updated weights (calculated in node 0) to all the nodes
+     * in the system.
+     */
+    protected void broadcastWeights()
+    {
+        _InBiasW = FloatMatrix.deserialize(BasicCommunication.broadcast(_Node, _InBiasW.serialize()));
+        _LayerBiasW = FloatMatrix.deserialize(BasicCommunication.broadcast(_Node, _LayerBiasW.serialize()));
+        _LayerW = FloatMatrix.deserialize(BasicCommunication.broadcast(_Node, _LayerW.serialize()));
+        _InW = FloatMatrix.deserialize(BasicCommunication.broadcast(_Node, _InW.serialize()));
+    }
+    
+}
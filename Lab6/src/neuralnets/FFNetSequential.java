@@ -6,6 +6,7 @@
 package neuralnets;
 
 import datastructures.Matrix;
+import datastructures.MatrixWorkspace;
 import java.util.function.DoubleUnaryOperator;
 
 /**
@@ -51,6 +52,7 @@ public class FFNetSequential extends FFNet{
     }
     
     @Override
+    @SuppressWarnings("try")    //the workspace scope is only opened and closed
     public void train(Matrix trainDataIn, Matrix trainDataOut)
     {
         int epoch = 0;
@@ -58,25 +60,29 @@ public class FFNetSequential extends FFNet{
         
         while(true){
             
-            Matrix outputs = forwardPass(trainDataIn);
+            //temporaries of the epoch are recycled when the scope is closed
+            try (MatrixWorkspace.Scope scope = _Workspace.openScope()){
             
-            performance = calculatePerformanceEvaluation(trainDataOut, outputs);
-            
-            if(performance < _TrainParam.performanceGoal){
-                addToPerformanceHistory(epoch, performance);
-                System.out.format("Performance goal met after %d epochs.\n", epoch);
-                break;
-            }
-            
-            if(epoch%_TrainParam.showInterval == 0){
-                addToPerformanceHistory(epoch, performance);
-                printInfo(epoch, performance);
+                Matrix outputs = forwardPass(trainDataIn);
+
+                performance = calculatePerformanceEvaluation(trainDataOut, outputs);
+
+                if(performance < _TrainParam.performanceGoal){
+                    addToPerformanceHistory(epoch, performance);
+                    System.out.format("Performance goal met after %d epochs.\n", epoch);
+                    break;
+                }
+
+                if(epoch%_TrainParam.showInterval == 0){
+                    addToPerformanceHistory(epoch, performance);
+                    printInfo(epoch, performance);
+                }
+
+                calculateGradients(outputs, trainDataIn, trainDataOut); //backpropagation
+
+                updateWeightsRPROP();
             }
             
-            calculateGradients(outputs, trainDataIn, trainDataOut); //backpropagation
-            
-            updateWeightsRPROP();
-            
             epoch++;
                 
             if(epoch > _TrainParam.maxEpochs){
@@ -96,30 +102,33 @@ public class FFNetSequential extends FFNet{
         updateLocalStepSizes(_LayerWStepSizes, _LayerWPrevGrad, _LayerWGrad);
         updateLocalStepSizes(_LayerBiasWStepSizes, _LayerBiasWPrevGrad, _LayerBiasWGrad);
         
+        updateWeightsRPROP(_InW, _InWGrad, _InWStepSizes, _InWPrevGrad);
+        updateWeightsRPROP(_InBiasW, _InBiasWGrad, _InBiasWStepSizes, _InBiasWPrevGrad);
+        updateWeightsRPROP(_LayerW, _LayerWGrad, _LayerWStepSizes, _LayerWPrevGrad);
+        updateWeightsRPROP(_LayerBiasW, _LayerBiasWGrad, _LayerBiasWStepSizes, _LayerBiasWPrevGrad);
+    }
+    
+    
+    private void updateWeightsRPROP(Matrix weights, Matrix grad,
+            Matrix stepSizes, Matrix prevGrad)
+    {
         DoubleUnaryOperator signum = (double v) -> {
             return (v > 0.0)? 1.0 : -1.0;
         };
         
-        _InW.subtractInPlace(_InWGrad.applyFunctionElementwiseInPlace(signum).timesElementByElement(_InWStepSizes));
-        _InBiasW.subtractInPlace(_InBiasWGrad.applyFunctionElementwiseInPlace(signum).timesElementByElement(_InBiasWStepSizes));
-        _LayerW.subtractInPlace(_LayerWGrad.applyFunctionElementwiseInPlace(signum).timesElementByElement(_LayerWStepSizes));
-        _LayerBiasW.subtractInPlace(_LayerBiasWGrad.applyFunctionElementwiseInPlace(signum).timesElementByElement(_LayerBiasWStepSizes));
-        
-        _InWPrevGrad = new Matrix(_InWGrad);            //copy constructor
-        _InBiasWPrevGrad = new Matrix(_InBiasWGrad);    //copy constructor
-        _LayerWPrevGrad = new Matrix(_LayerWGrad);
-        _LayerBiasWPrevGrad = new Matrix(_LayerBiasWGrad);
-        
+        grad.applyFunctionElementwiseInPlace(signum);
+        weights.subtractInPlace(grad.timesElementByElementInto(stepSizes,
+                acquireLike(grad)));
+        grad.copyInto(prevGrad);
     }
     
     
     private void updateLocalStepSizes(Matrix stepSizes, Matrix prevGrad, Matrix grad)
     {
-        Matrix tmp = prevGrad.timesElementByElement(grad);
-        for(int i = 0; i < tmp.getNRows(); ++i){
-            for(int j = 0; j < tmp.getNCols(); ++j){
+        for(int i = 0; i < grad.getNRows(); ++i){
+            for(int j = 0; j < grad.getNCols(); ++j){
                 double oldStep = stepSizes.getElem(i, j);
-                double newStep = (tmp.getElem(i, j) > 0.0)? //if the same direction
+                double newStep = (prevGrad.getElem(i, j) * grad.getElem(i, j) > 0.0)? //if the same direction
                     oldStep*_TrainParam.positiveFactor : oldStep*_TrainParam.negativeFactor;
                 if (newStep < _TrainParam.minGain){ newStep = _TrainParam.minGain; }
                 if (newStep > _TrainParam.maxGain){ newStep = _TrainParam.maxGain; }
@@ -0,0 +1,132 @@
+/*
+ *  This code is for Parallel and Distributed Algorithms
+ *  laboratory at Gdansk University of Technology
+ */
+
+package neuralnets;
+
+import datastructures.FloatMatrix;
+import java.util.function.DoubleUnaryOperator;
+
+/** Single precision version of FFNetSequential (RPROP training).
+ *
+ * @author Karol Draszawka <kadr@eti.pg.gda.pl>
+ */
+public class FFNetSequentialFloat extends FFNetFloat{
+
+    private FloatMatrix _InWPrevGrad;        //previous gradients
+    private FloatMatrix _InWStepSizes;
+    
+    private FloatMatrix _InBiasWPrevGrad;    //previous gradients
+    private FloatMatrix _InBiasWStepSizes;
+    
+    private FloatMatrix _LayerWPrevGrad;     //previous gradients
+    private FloatMatrix _LayerWStepSizes;
+    
+    private FloatMatrix _LayerBiasWPrevGrad;  //previous gradients
+    private FloatMatrix _LayerBiasWStepSizes;
+    
+    
+    public FFNetSequentialFloat(int nInputs, int nHiddenUnits) {
+        super(nInputs, nHiddenUnits);
+        initializeAuxiliaries();
+    }
+
+    public FFNetSequentialFloat(int nInputs, int nHiddenUnits, long seed) {
+        super(nInputs, nHiddenUnits, seed);
+        initializeAuxiliaries();
+    }
+    
+    
+    private void initializeAuxiliaries() {
+        _InWPrevGrad = new FloatMatrix(_InW.getNRows(), _InW.getNCols());
+        _InBiasWPrevGrad = new FloatMatrix(_InBiasW.getNRows(), _InBiasW.getNCols());
+        _LayerWPrevGrad = new FloatMatrix(_LayerW.getNRows(), _LayerW.getNCols());
+        _LayerBiasWPrevGrad = new FloatMatrix(_LayerBiasW.getNRows(), _LayerBiasW.getNCols());
+        
+        _InWStepSizes = new FloatMatrix(_InW.getNRows(), _InW.getNCols()).add(_TrainParam.initial_step_size);
+        _InBiasWStepSizes = new FloatMatrix(_InBiasW.getNRows(), _InBiasW.getNCols()).add(_TrainParam.initial_step_size);
+        _LayerWStepSizes = new FloatMatrix(_LayerW.getNRows(), _LayerW.getNCols()).add(_TrainParam.initial_step_size);
+        _LayerBiasWStepSizes = new FloatMatrix(_LayerBiasW.getNRows(), _LayerBiasW.getNCols()).add(_TrainParam.initial_step_size);
+    }
+    
+    @Override
+    public void train(FloatMatrix trainDataIn, FloatMatrix trainDataOut)
+    {
+        int epoch = 0;
+        double performance;
+        
+        while(true){
+            
+            FloatMatrix outputs = forwardPass(trainDataIn);
+            
+            performance = calculatePerformanceEvaluation(trainDataOut, outputs);
+            
+            if(performance < _TrainParam.performanceGoal){
+                addToPerformanceHistory(epoch, performance);
+                System.out.format("Performance goal met after %d epochs.\n", epoch);
+                break;
+            }
+            
+            if(epoch%_TrainParam.showInterval == 0){
+                addToPerformanceHistory(epoch, performance);
+                printInfo(epoch, performance);
+            }
+            
+            calculateGradients(outputs, trainDataIn, trainDataOut); //backpropagation
+            
+            updateWeightsRPROP();
+            
+            epoch++;
+                
+            if(epoch > _TrainParam.maxEpochs){
+                System.out.println("Maximum epochs reached.");
+                break;
+            }
+            
+        }
+    }
+    
+    
+    
+    protected void updateWeightsRPROP()
+    {
+        updateLocalStepSizes(_InWStepSizes, _InWPrevGrad, _InWGrad);
+        updateLocalStepSizes(_InBiasWStepSizes, _InBiasWPrevGrad, _InBiasWGrad);
+        updateLocalStepSizes(_LayerWStepSizes, _LayerWPrevGrad, _LayerWGrad);
+        updateLocalStepSizes(_LayerBiasWStepSizes, _LayerBiasWPrevGrad, _LayerBiasWGrad);
+        
+        DoubleUnaryOperator signum = (double v) -> {
+            return (v > 0.0)? 1.0 : -1.0;
+        };
+        
+        _InW.subtractInPlace(_InWGrad.applyFunctionElementwiseInPlace(signum).timesElementByElement(_InWStepSizes));
+        _InBiasW.subtractInPlace(_InBiasWGrad.applyFunctionElementwiseInPlace(signum).timesElementByElement(_InBiasWStepSizes));
+        _LayerW.subtractInPlace(_LayerWGrad.applyFunctionElementwiseInPlace(signum).timesElementByElement(_LayerWStepSizes));
+        _LayerBiasW.subtractInPlace(_LayerBiasWGrad.applyFunctionElementwiseInPlace(signum).timesElementByElement(_LayerBiasWStepSizes));
+        
+        _InWPrevGrad = new FloatMatrix(_InWGrad);            //copy constructor
+        _InBiasWPrevGrad = new FloatMatrix(_InBiasWGrad);    //copy constructor
+        _LayerWPrevGrad = new FloatMatrix(_LayerWGrad);
+        _LayerBiasWPrevGrad = new FloatMatrix(_LayerBiasWGrad);
+        
+    }
+    
+    
+    private void updateLocalStepSizes(FloatMatrix stepSizes, FloatMatrix prevGrad,
+            FloatMatrix grad)
+    {
+        for(int i = 0; i < grad.getNRows(); ++i){
+            for(int j = 0; j < grad.getNCols(); ++j){
+                double oldStep = stepSizes.getElem(i, j);
+                double newStep = (prevGrad.getElem(i, j) * grad.getElem(i, j) > 0.0)? //if the same direction
+                    oldStep*_TrainParam.positiveFactor : oldStep*_TrainParam.negativeFactor;
+                if (newStep < _TrainParam.minGain){ newStep = _TrainParam.minGain; }
+                if (newStep > _TrainParam.maxGain){ newStep = _TrainParam.maxGain; }
+                stepSizes.setElem(i, j, (float) newStep);
+            }
+        }
+    }
+    
+    
+}